@@ -43,11 +43,23 @@ CREATE TABLE text_segments (
                         fragment_index  INT              NOT NULL COMMENT '片段序号',
                         text_data       TEXT             COMMENT '文本内容',
                         encoding_model  VARCHAR(32)      COMMENT '编码模型版本',
+                        canonical_md5   VARCHAR(32)      NULL COMMENT '近重复时的规范片段所属文档MD5（等于本文档时不编码索引）',
+                        canonical_index INT              NULL COMMENT '近重复时的规范片段序号',
                         PRIMARY KEY (segment_id),
                         INDEX idx_document_md5 (document_md5) COMMENT '文档MD5索引',
                         INDEX idx_fragment (document_md5, fragment_index) COMMENT '文档和片段组合索引'
 ) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COMMENT='文本片段存储表';
 
+DROP TABLE IF EXISTS embedding_store;
+CREATE TABLE embedding_store (
+                        content_hash    CHAR(64)         NOT NULL COMMENT 'SHA-256(模型|维度|片段文本)',
+                        encoding_model  VARCHAR(64)      NOT NULL COMMENT '编码模型',
+                        dimension       INT              NOT NULL COMMENT '向量维度',
+                        vector_data     MEDIUMBLOB       NOT NULL COMMENT '向量（小端 float32）',
+                        created_at      TIMESTAMP        NOT NULL DEFAULT CURRENT_TIMESTAMP COMMENT '创建时间',
+                        PRIMARY KEY (content_hash)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COMMENT='片段向量内容寻址存储表';
+
 DROP TABLE IF EXISTS messages;
 CREATE TABLE messages (
                         id          BIGINT       NOT NULL AUTO_INCREMENT COMMENT '主键ID',
@@ -88,3 +100,25 @@ CREATE TABLE message_feedback (
                         INDEX idx_feedback_user (user_id) COMMENT '用户索引'
 ) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COMMENT='消息反馈表';
 
+DROP TABLE IF EXISTS document_feedback_stats;
+CREATE TABLE document_feedback_stats (
+                        document_md5  VARCHAR(32)  NOT NULL COMMENT '文档MD5',
+                        score_sum     BIGINT       NOT NULL DEFAULT 0 COMMENT '评分总和',
+                        score_count   BIGINT       NOT NULL DEFAULT 0 COMMENT '评分次数',
+                        avg_score     DOUBLE       NOT NULL DEFAULT 0 COMMENT '平均评分',
+                        updated_at    TIMESTAMP    NOT NULL DEFAULT CURRENT_TIMESTAMP ON UPDATE CURRENT_TIMESTAMP COMMENT '更新时间',
+                        PRIMARY KEY (document_md5)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COMMENT='文档反馈聚合表';
+
+-- 已有部署升级：上面的脚本会重建整个库，保留数据时只执行下列语句（embedding_store、document_feedback_stats 按上方建表语句单独创建）
+-- ALTER TABLE text_segments
+--     ADD COLUMN canonical_md5   VARCHAR(32) NULL COMMENT '近重复时的规范片段所属文档MD5（等于本文档时不编码索引）' AFTER encoding_model,
+--     ADD COLUMN canonical_index INT         NULL COMMENT '近重复时的规范片段序号' AFTER canonical_md5;
+--
+-- 创建 document_feedback_stats 后必须执行下列回填：聚合表只随新反馈增量更新，
+-- 不回填则已有反馈不会参与检索加权
+-- INSERT INTO document_feedback_stats (document_md5, score_sum, score_count, avg_score)
+-- SELECT s.document_md5, SUM(f.score), COUNT(*), AVG(f.score)
+-- FROM message_sources s
+-- JOIN message_feedback f ON s.message_id = f.message_id
+-- GROUP BY s.document_md5;
@@ -3,10 +3,12 @@ package org.buaa.rag;
 import org.mybatis.spring.annotation.MapperScan;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.scheduling.annotation.EnableScheduling;
 
 
 @SpringBootApplication
 @MapperScan("org.buaa.rag.dao.mapper")
+@EnableScheduling
 public class RagApp {
 
     public static void main(String[] args) {
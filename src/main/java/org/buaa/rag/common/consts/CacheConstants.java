@@ -46,4 +46,19 @@ public class CacheConstants {
      */
     public static final String USER_INFO_KEY = "rag:user:info:";
 
+    /**
+     * 知识库语料代数，文档入库/删除后递增
+     */
+    public static final String CORPUS_GENERATION_KEY = "rag:corpus:generation";
+
+    /**
+     * 检索结果缓存标识
+     */
+    public static final String RETRIEVAL_RESULT_KEY = "rag:retrieval:result:";
+
+    /**
+     * 辅助提示补全缓存标识
+     */
+    public static final String LLM_COMPLETION_KEY = "rag:llm:completion:";
+
 }
@@ -0,0 +1,29 @@
+package org.buaa.rag.common.event;
+
+import org.buaa.rag.dao.entity.DocumentDO;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * 文档变更事件
+ * 由文档服务在事务提交后发布，供检索侧的内存索引与缓存同步
+ */
+@Getter
+@AllArgsConstructor
+public class DocumentChangedEvent {
+
+    private final Type type;
+
+    private final String md5Hash;
+
+    /**
+     * 变更后的文档记录，删除事件为 null
+     */
+    private final DocumentDO record;
+
+    public enum Type {
+        UPSERTED,
+        DELETED
+    }
+}
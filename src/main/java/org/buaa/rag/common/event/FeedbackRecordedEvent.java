@@ -0,0 +1,17 @@
+package org.buaa.rag.common.event;
+
+import java.util.Set;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * 反馈记录事件
+ * 文档反馈聚合更新后发布，供反馈加权缓存刷新对应文档
+ */
+@Getter
+@AllArgsConstructor
+public class FeedbackRecordedEvent {
+
+    private final Set<String> documentMd5s;
+}
@@ -1,5 +1,6 @@
 package org.buaa.rag.config;
 
+import co.elastic.clients.elasticsearch.ElasticsearchAsyncClient;
 import co.elastic.clients.elasticsearch.ElasticsearchClient;
 import co.elastic.clients.json.jackson.JacksonJsonpMapper;
 import co.elastic.clients.transport.rest_client.RestClientTransport;
@@ -55,4 +56,14 @@ public class EsConfiguration {
 
         return new ElasticsearchClient(transport);
     }
+
+    /**
+     * 与同步客户端共用连接的异步客户端，用于需要客户端侧超时的检索请求
+     *
+     * @return ES异步客户端
+     */
+    @Bean
+    public ElasticsearchAsyncClient elasticsearchAsyncClient(ElasticsearchClient elasticsearchClient) {
+        return new ElasticsearchAsyncClient(elasticsearchClient._transport());
+    }
 }
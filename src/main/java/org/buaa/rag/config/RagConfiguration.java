@@ -4,6 +4,9 @@ import lombok.Data;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.stereotype.Component;
 
+import java.util.HashMap;
+import java.util.Map;
+
 /**
  * RAG检索增强配置
  */
@@ -15,10 +18,28 @@ public class RagConfiguration {
     private Rewrite rewrite = new Rewrite();
     private Hyde hyde = new Hyde();
     private Fusion fusion = new Fusion();
+    private Hybrid hybrid = new Hybrid();
     private Rerank rerank = new Rerank();
     private Routing routing = new Routing();
     private Crag crag = new Crag();
     private Feedback feedback = new Feedback();
+    private QueryCache queryCache = new QueryCache();
+    private StatsReport statsReport = new StatsReport();
+    private AccessIndex accessIndex = new AccessIndex();
+    private MetadataCache metadataCache = new MetadataCache();
+    private MetadataBackfill metadataBackfill = new MetadataBackfill();
+    private AnswerCache answerCache = new AnswerCache();
+    private RetrievalCache retrievalCache = new RetrievalCache();
+    private AdaptiveRecall adaptiveRecall = new AdaptiveRecall();
+    private Deadline deadline = new Deadline();
+    private EmbeddingStore embeddingStore = new EmbeddingStore();
+    private NearDuplicate nearDuplicate = new NearDuplicate();
+    private QueryBatching queryBatching = new QueryBatching();
+    private EmbeddingScheduler embeddingScheduler = new EmbeddingScheduler();
+    private CompletionCache completionCache = new CompletionCache();
+    private Lucene lucene = new Lucene();
+    private Quantization quantization = new Quantization();
+    private Matryoshka matryoshka = new Matryoshka();
 
     @Data
     public static class Rewrite {
@@ -39,6 +60,35 @@ public class RagConfiguration {
         private boolean enabled = true;
         private int rrfK = 60;
         private int maxQueries = 4;
+        private boolean parallel = true;
+        private long timeoutMillis = 5000;
+        private int executorThreads = 16;
+        private boolean multiSearch = true;
+    }
+
+    @Data
+    public static class Hybrid {
+        /**
+         * RESCORE：kNN + 文本匹配单次检索并按 BM25 重排序；LINEAR：kNN 与 BM25 独立召回后归一化加权融合
+         */
+        private Mode mode = Mode.RESCORE;
+        private Normalization normalization = Normalization.MIN_MAX;
+        private double vectorWeight = 0.6;
+        private double textWeight = 0.4;
+        private int candidateFactor = 4;
+        private boolean rescoreEnabled = true;
+        private int rescoreWindow = 100;
+        private int rescoreMinQueryLength = 7;
+
+        public enum Mode {
+            RESCORE,
+            LINEAR
+        }
+
+        public enum Normalization {
+            MIN_MAX,
+            Z_SCORE
+        }
     }
 
     @Data
@@ -72,5 +122,169 @@ public class RagConfiguration {
     public static class Feedback {
         private boolean enabled = true;
         private double maxBoost = 0.15;
+        private long refreshSeconds = 300;
+    }
+
+    @Data
+    public static class QueryCache {
+        private boolean enabled = true;
+        private int maxEntries = 2048;
+        private long ttlSeconds = 3600;
+    }
+
+    @Data
+    public static class StatsReport {
+        private boolean enabled = true;
+        private long intervalSeconds = 300;
+    }
+
+    @Data
+    public static class AccessIndex {
+        private boolean enabled = true;
+        private long refreshSeconds = 300;
+    }
+
+    @Data
+    public static class MetadataCache {
+        private boolean enabled = true;
+        private long refreshSeconds = 300;
+    }
+
+    @Data
+    public static class MetadataBackfill {
+        /**
+         * 启动时为旧分块回填权限与元数据字段，回填完成前检索只使用后置过滤
+         */
+        private boolean migrateOnStartup = true;
+        private int pageSize = 200;
+    }
+
+    @Data
+    public static class AnswerCache {
+        private boolean enabled = true;
+        private double similarityThreshold = 0.95;
+        private int maxEntries = 1000;
+        private long ttlSeconds = 86400;
+        private int replayChunkSize = 16;
+    }
+
+    @Data
+    public static class RetrievalCache {
+        private boolean enabled = true;
+        private int maxEntries = 4096;
+        private long ttlSeconds = 600;
+        private boolean l2Enabled = true;
+    }
+
+    @Data
+    public static class AdaptiveRecall {
+        private boolean enabled = true;
+        private long latencyBudgetMillis = 300;
+        private double shortFactor = 50;
+        private double longFactor = 30;
+        private double vectorFactor = 30;
+        private double minFactor = 5;
+        private double maxFactor = 60;
+        private int maxRecallSize = 300;
+        private double probeRate = 0.02;
+        private double targetChangeRate = 0.05;
+        private int adjustEvery = 50;
+    }
+
+    @Data
+    public static class Deadline {
+        private boolean enabled = true;
+        private long turnBudgetMillis = 15000;
+        private long optionalStageMinMillis = 1500;
+        private long llmTimeoutMillis = 30000;
+    }
+
+    @Data
+    public static class EmbeddingStore {
+        private boolean enabled = true;
+        private int batchSize = 500;
+    }
+
+    @Data
+    public static class NearDuplicate {
+        private boolean enabled = true;
+        private boolean crossDocument = true;
+        private int shingleSize = 5;
+        private int bands = 16;
+        private int rows = 4;
+        private double threshold = 0.9;
+        private int minChars = 20;
+    }
+
+    @Data
+    public static class QueryBatching {
+        private boolean enabled = true;
+        private long windowMillis = 5;
+        private int maxBatch = 10;
+        /**
+         * 查询向量最长等待时间，应小于 rag.deadline.turn-budget-millis；传入本轮截止时间时取较早者
+         */
+        private long timeoutMillis = 10000;
+    }
+
+    @Data
+    public static class EmbeddingScheduler {
+        private boolean enabled = true;
+        private double requestsPerSecond = 10;
+        private int burst = 10;
+        private int interactiveReserve = 2;
+        private long maxBackgroundWaitMillis = 30000;
+    }
+
+    @Data
+    public static class CompletionCache {
+        private boolean enabled = true;
+        private int maxEntries = 2048;
+        private boolean l2Enabled = true;
+        private long defaultTtlSeconds = 3600;
+        /**
+         * 按用途（rewrite/hyde/routing/crag/clarify/rerank）覆盖 TTL，0 表示该用途不缓存
+         */
+        private Map<String, Long> ttlSeconds = new HashMap<>();
+    }
+
+    @Data
+    public static class Quantization {
+        /**
+         * NONE：kNN 直接使用浮点向量；INT8：kNN 使用 int8 量化向量字段，再以浮点向量精确余弦重排序。
+         * 切换到 INT8 前需先完成 migrate-on-startup 回填，新建索引使用 datasource/knowledge_int8.json
+         */
+        private Mode mode = Mode.NONE;
+        private double oversample = 3.0;
+        private boolean migrateOnStartup = false;
+
+        public enum Mode {
+            NONE,
+            INT8
+        }
+    }
+
+    @Data
+    public static class Matryoshka {
+        /**
+         * 启用后 kNN 先在低维前缀字段 vectorPrefix 上宽召回，再以完整向量精确余弦重排序（优先于 INT8 量化召回）。
+         * 开启前需先完成 migrate-on-startup 回填
+         */
+        private boolean enabled = false;
+        private int prefixDimension = 256;
+        private double oversample = 4.0;
+        private boolean migrateOnStartup = false;
+    }
+
+    @Data
+    public static class Lucene {
+        /**
+         * 启用后检索与索引写入改用本地嵌入式 Lucene，不再访问 Elasticsearch
+         */
+        private boolean enabled = false;
+        private String indexPath = "data/lucene-index";
+        private int hnswMaxConn = 16;
+        private int hnswBeamWidth = 100;
+        private double ramBufferMb = 64;
     }
 }
@@ -7,6 +7,7 @@ import org.springframework.web.bind.annotation.DeleteMapping;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.PutMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
@@ -39,6 +40,17 @@ public class DocumentController {
         return documentService.listDocuments(userId);
     }
 
+    @PutMapping("/{md5Hash}")
+    public Result<Map<String, Object>> updateMetadata(@PathVariable String md5Hash,
+                                                      @RequestParam String userId,
+                                                      @RequestParam(required = false) String visibility,
+                                                      @RequestParam(required = false) String department,
+                                                      @RequestParam(required = false) String docType,
+                                                      @RequestParam(required = false) String policyYear,
+                                                      @RequestParam(required = false) String tags) {
+        return documentService.updateMetadata(md5Hash, userId, visibility, department, docType, policyYear, tags);
+    }
+
     @DeleteMapping("/{md5Hash}")
     public Result<Map<String, Object>> deleteDocument(@PathVariable String md5Hash,
                                                       @RequestParam String userId) {
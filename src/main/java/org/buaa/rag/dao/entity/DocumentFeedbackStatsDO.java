@@ -0,0 +1,34 @@
+package org.buaa.rag.dao.entity;
+
+import com.baomidou.mybatisplus.annotation.IdType;
+import com.baomidou.mybatisplus.annotation.TableId;
+import com.baomidou.mybatisplus.annotation.TableName;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDateTime;
+
+/**
+ * 文档反馈聚合
+ * 按文档累计引用该文档的回答所获评分，记录反馈时增量维护
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@TableName("document_feedback_stats")
+public class DocumentFeedbackStatsDO {
+
+    @TableId(type = IdType.INPUT)
+    private String documentMd5;
+
+    private Long scoreSum;
+
+    private Long scoreCount;
+
+    private Double avgScore;
+
+    private LocalDateTime updatedAt;
+}
@@ -0,0 +1,37 @@
+package org.buaa.rag.dao.entity;
+
+import com.baomidou.mybatisplus.annotation.IdType;
+import com.baomidou.mybatisplus.annotation.TableId;
+import com.baomidou.mybatisplus.annotation.TableName;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDateTime;
+
+/**
+ * 片段向量存储
+ * 以 SHA-256(模型|维度|片段文本) 为键保存已编码的向量，重复文本直接复用
+ */
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+@TableName("embedding_store")
+public class EmbeddingStoreDO {
+
+    @TableId(type = IdType.INPUT)
+    private String contentHash;
+
+    private String encodingModel;
+
+    private Integer dimension;
+
+    /**
+     * 小端 float32 字节
+     */
+    private byte[] vectorData;
+
+    private LocalDateTime createdAt;
+}
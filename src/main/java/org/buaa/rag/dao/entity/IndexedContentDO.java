@@ -6,6 +6,8 @@ import lombok.Builder;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 
+import java.util.List;
+
 /**
  * 索引内容模型
  * 用于Elasticsearch存储的文档结构
@@ -26,6 +28,31 @@ public class IndexedContentDO {
     private String textPayload;
     
     private float[] vectorEmbedding;
+
+    /**
+     * int8 量化向量，仅在 rag.quantization.mode=INT8 时写入，供 kNN 召回使用
+     */
+    private int[] vectorQuantized;
+
+    /**
+     * 归一化的低维向量前缀，仅在 rag.matryoshka.enabled=true 时写入，供粗召回使用
+     */
+    private float[] vectorPrefix;
     
     private String encoderVersion;
+
+    /**
+     * 以下为冗余的文档元数据，供检索时在 Elasticsearch 内直接过滤
+     */
+    private String visibility;
+
+    private String ownerId;
+
+    private String department;
+
+    private String docType;
+
+    private String policyYear;
+
+    private List<String> tags;
 }
@@ -31,4 +31,12 @@ public class TextSegmentDO {
 
     private String encodingModel;
 
+    /**
+     * 近重复片段对应的规范片段（所属文档MD5与序号），非重复片段为空。
+     * 规范片段位于同一文档时，本片段不再编码与索引。
+     */
+    private String canonicalMd5;
+
+    private Integer canonicalIndex;
+
 }
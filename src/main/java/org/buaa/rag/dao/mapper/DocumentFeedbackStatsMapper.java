@@ -0,0 +1,22 @@
+package org.buaa.rag.dao.mapper;
+
+import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Insert;
+import org.apache.ibatis.annotations.Param;
+import org.buaa.rag.dao.entity.DocumentFeedbackStatsDO;
+
+public interface DocumentFeedbackStatsMapper extends BaseMapper<DocumentFeedbackStatsDO> {
+
+    /**
+     * 累加文档反馈评分（不存在则插入）
+     */
+    @Insert("INSERT INTO document_feedback_stats (document_md5, score_sum, score_count, avg_score) " +
+            "VALUES (#{documentMd5}, #{scoreSum}, #{scoreCount}, #{scoreSum} / #{scoreCount}) " +
+            "ON DUPLICATE KEY UPDATE " +
+            "score_sum = score_sum + VALUES(score_sum), " +
+            "score_count = score_count + VALUES(score_count), " +
+            "avg_score = score_sum / score_count")
+    int accumulate(@Param("documentMd5") String documentMd5,
+                   @Param("scoreSum") long scoreSum,
+                   @Param("scoreCount") long scoreCount);
+}
@@ -0,0 +1,22 @@
+package org.buaa.rag.dao.mapper;
+
+import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Insert;
+import org.apache.ibatis.annotations.Param;
+import org.buaa.rag.dao.entity.EmbeddingStoreDO;
+
+import java.util.List;
+
+public interface EmbeddingStoreMapper extends BaseMapper<EmbeddingStoreDO> {
+
+    /**
+     * 批量写入向量，已存在的键保持不变
+     */
+    @Insert("<script>" +
+            "INSERT IGNORE INTO embedding_store (content_hash, encoding_model, dimension, vector_data) VALUES " +
+            "<foreach collection='entries' item='e' separator=','>" +
+            "(#{e.contentHash}, #{e.encodingModel}, #{e.dimension}, #{e.vectorData})" +
+            "</foreach>" +
+            "</script>")
+    int insertIgnoreBatch(@Param("entries") List<EmbeddingStoreDO> entries);
+}
@@ -0,0 +1,24 @@
+package org.buaa.rag.dto;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import lombok.Data;
+
+import java.util.List;
+
+/**
+ * 检索命中投影
+ * 只包含构造检索结果所需的字段，检索请求按 {@link #SOURCE_FIELDS} 过滤 _source，
+ * 命中由 Jackson 流式绑定到该对象，不再传输和解析向量字段
+ */
+@Data
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class IndexedHit {
+
+    public static final List<String> SOURCE_FIELDS = List.of("sourceMd5", "segmentNumber", "textPayload");
+
+    private String sourceMd5;
+
+    private Integer segmentNumber;
+
+    private String textPayload;
+}
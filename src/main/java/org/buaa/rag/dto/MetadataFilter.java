@@ -7,6 +7,7 @@ import lombok.NoArgsConstructor;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Locale;
 
 /**
  * 检索元数据过滤条件
@@ -43,6 +44,29 @@ public class MetadataFilter {
         return normalized;
     }
 
+    /**
+     * 规范化的过滤条件标识，用于缓存键：字段小写，标签排序去重
+     */
+    public String cacheKey() {
+        if (isEmpty()) {
+            return "";
+        }
+        StringBuilder key = new StringBuilder()
+            .append(normalizeField(department)).append('|')
+            .append(normalizeField(docType)).append('|')
+            .append(normalizeField(policyYear)).append('|');
+        normalizedTags().stream()
+            .map(tag -> tag.toLowerCase(Locale.ROOT))
+            .sorted()
+            .distinct()
+            .forEach(tag -> key.append(tag).append(','));
+        return key.toString();
+    }
+
+    private String normalizeField(String value) {
+        return value == null ? "" : value.trim().toLowerCase(Locale.ROOT);
+    }
+
     private boolean isBlank(String value) {
         return value == null || value.isBlank();
     }
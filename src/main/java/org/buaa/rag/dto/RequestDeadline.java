@@ -0,0 +1,75 @@
+package org.buaa.rag.dto;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 单轮对话的截止时间
+ *
+ * <p>由对话服务在每轮开始时创建，沿 查询分析 → 检索 → 后处理 逐级传递。
+ * 可选阶段（改写、HyDE、LLM 路由、LLM 重排、LLM 质量评估）在剩余预算不足
+ * optionalStageMinMillis 时跳过；每次 LLM 调用的超时取单次上限与剩余预算的较小值。</p>
+ */
+public final class RequestDeadline {
+
+    private static final long UNBOUNDED_NANOS = TimeUnit.DAYS.toNanos(365);
+    private static final long DEFAULT_LLM_TIMEOUT_MILLIS = 30_000;
+
+    private final long deadlineNanos;
+    private final long optionalStageMinMillis;
+    private final long llmTimeoutMillis;
+
+    private RequestDeadline(long deadlineNanos, long optionalStageMinMillis, long llmTimeoutMillis) {
+        this.deadlineNanos = deadlineNanos;
+        this.optionalStageMinMillis = optionalStageMinMillis;
+        this.llmTimeoutMillis = llmTimeoutMillis;
+    }
+
+    /**
+     * 从当前时刻起 budgetMillis 后截止
+     */
+    public static RequestDeadline after(long budgetMillis, long optionalStageMinMillis, long llmTimeoutMillis) {
+        return new RequestDeadline(
+            System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0, budgetMillis)),
+            Math.max(0, optionalStageMinMillis),
+            Math.max(1, llmTimeoutMillis)
+        );
+    }
+
+    /**
+     * 不设整体预算（各阶段沿用自身超时）
+     */
+    public static RequestDeadline unbounded() {
+        return new RequestDeadline(System.nanoTime() + UNBOUNDED_NANOS, 0, DEFAULT_LLM_TIMEOUT_MILLIS);
+    }
+
+    public long remainingMillis() {
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime()));
+    }
+
+    public boolean isExpired() {
+        return deadlineNanos - System.nanoTime() <= 0;
+    }
+
+    /**
+     * 剩余预算是否足以执行可选阶段
+     */
+    public boolean allowsOptionalStage() {
+        return !isExpired() && remainingMillis() >= optionalStageMinMillis;
+    }
+
+    /**
+     * 单次 LLM 调用的超时
+     */
+    public Duration llmTimeout() {
+        return Duration.ofMillis(Math.min(llmTimeoutMillis, remainingMillis()));
+    }
+
+    /**
+     * 阶段截止时间：阶段自身超时与整体截止时间取较早者（{@link System#nanoTime()} 时间基准）
+     */
+    public long stageDeadlineNanos(long stageTimeoutMillis) {
+        long stageDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(stageTimeoutMillis);
+        return stageDeadline - deadlineNanos < 0 ? stageDeadline : deadlineNanos;
+    }
+}
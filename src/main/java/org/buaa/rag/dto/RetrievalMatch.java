@@ -33,6 +33,13 @@ public class RetrievalMatch {
         this.relevanceScore = score;
     }
 
+    /**
+     * 复制一份结果，供缓存返回给可能修改分数的调用方
+     */
+    public RetrievalMatch copy() {
+        return new RetrievalMatch(fileMd5, chunkId, textContent, relevanceScore, sourceFileName);
+    }
+
     /**
      * 判断是否为高相关度结果
      */
@@ -32,6 +32,17 @@ public interface DocumentService {
      */
     Result<Map<String, Object>> deleteDocument(String md5Hash, String userId);
 
+    /**
+     * 更新文档元数据（同步到检索索引）
+     */
+    Result<Map<String, Object>> updateMetadata(String md5Hash,
+                                               String userId,
+                                               String visibility,
+                                               String department,
+                                               String docType,
+                                               String policyYear,
+                                               String tags);
+
     /**
      * 异步摄取文档
      */
@@ -2,6 +2,7 @@ package org.buaa.rag.service;
 
 import org.buaa.rag.dto.MetadataFilter;
 import org.buaa.rag.dto.QueryPlan;
+import org.buaa.rag.dto.RequestDeadline;
 
 /**
  * 查询分析服务接口
@@ -14,8 +15,18 @@ public interface QueryAnalysisService {
      */
     QueryPlan createPlan(String userQuery);
 
+    /**
+     * 创建查询计划（剩余预算不足时跳过改写与 HyDE）
+     */
+    QueryPlan createPlan(String userQuery, RequestDeadline deadline);
+
     /**
      * 解析查询过滤条件
      */
     MetadataFilter resolveFilter(String query);
+
+    /**
+     * 解析查询过滤条件（剩余预算不足时仅使用规则解析）
+     */
+    MetadataFilter resolveFilter(String query, RequestDeadline deadline);
 }
@@ -1,6 +1,7 @@
 package org.buaa.rag.service;
 
 import org.buaa.rag.dto.CragDecision;
+import org.buaa.rag.dto.RequestDeadline;
 import org.buaa.rag.dto.RetrievalMatch;
 
 import java.util.List;
@@ -16,6 +17,11 @@ public interface RetrievalPostProcessorService {
      */
     CragDecision evaluate(String query, List<RetrievalMatch> matches);
 
+    /**
+     * 评估检索结果质量（剩余预算不足时跳过 LLM 评估，仅按得分判断）
+     */
+    CragDecision evaluate(String query, List<RetrievalMatch> matches, RequestDeadline deadline);
+
     /**
      * 获取无结果提示信息
      */
@@ -25,4 +31,9 @@ public interface RetrievalPostProcessorService {
      * 对检索结果进行重排
      */
     List<RetrievalMatch> rerank(String query, List<RetrievalMatch> matches, int topK);
+
+    /**
+     * 对检索结果进行重排（剩余预算不足时保持原排序）
+     */
+    List<RetrievalMatch> rerank(String query, List<RetrievalMatch> matches, int topK, RequestDeadline deadline);
 }
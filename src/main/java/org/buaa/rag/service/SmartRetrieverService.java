@@ -1,6 +1,8 @@
 package org.buaa.rag.service;
 
 import org.buaa.rag.dto.MetadataFilter;
+import org.buaa.rag.dto.QueryPlan;
+import org.buaa.rag.dto.RequestDeadline;
 import org.buaa.rag.dto.RetrievalMatch;
 
 import java.util.List;
@@ -67,6 +69,36 @@ public interface SmartRetrieverService {
                                          String userId,
                                          MetadataFilter filter);
 
+    /**
+     * 纯文本检索，请求超时取 rag.fusion.timeout-millis 与单轮截止时间的较早者
+     */
+    List<RetrievalMatch> retrieveTextOnly(String queryText,
+                                         int topK,
+                                         String userId,
+                                         MetadataFilter filter,
+                                         RequestDeadline deadline);
+
+    /**
+     * 按查询计划检索
+     * 所有查询变体只做一次批量向量编码，原始查询与改写走混合检索，HyDE 答案走纯向量检索；
+     * 各路检索并发执行，受 rag.fusion.timeout-millis 约束
+     *
+     * @return 各路检索结果，依次为原始查询、改写查询、HyDE 答案（若存在）；超时或失败的分支为 null
+     */
+    List<List<RetrievalMatch>> retrieveByPlan(QueryPlan plan,
+                                              int topK,
+                                              String userId,
+                                              MetadataFilter filter);
+
+    /**
+     * 按查询计划检索，截止时间取 rag.fusion.timeout-millis 与单轮截止时间的较早者
+     */
+    List<List<RetrievalMatch>> retrieveByPlan(QueryPlan plan,
+                                              int topK,
+                                              String userId,
+                                              MetadataFilter filter,
+                                              RequestDeadline deadline);
+
     /**
      * 记录用户反馈
      */
@@ -17,12 +17,17 @@ import org.buaa.rag.dto.CragDecision;
 import org.buaa.rag.dto.FeedbackRequest;
 import org.buaa.rag.dto.MetadataFilter;
 import org.buaa.rag.dto.QueryPlan;
+import org.buaa.rag.dto.RequestDeadline;
 import org.buaa.rag.dto.RetrievalMatch;
 import org.buaa.rag.service.ChatService;
 import org.buaa.rag.service.QueryAnalysisService;
 import org.buaa.rag.service.RetrievalPostProcessorService;
 import org.buaa.rag.service.SmartRetrieverService;
 import org.buaa.rag.tool.LlmChat;
+import org.buaa.rag.tool.QueryEncodingBatcher;
+import org.buaa.rag.tool.QueryVectorCache;
+import org.buaa.rag.tool.RetrievalFanout;
+import org.buaa.rag.tool.SemanticAnswerCache;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -36,12 +41,15 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.UUID;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
+import java.util.stream.Collectors;
 
 @Service
 public class ChatServiceImpl implements ChatService {
@@ -81,6 +89,18 @@ public class ChatServiceImpl implements ChatService {
     @Autowired
     private RagConfiguration ragConfiguration;
 
+    @Autowired
+    private RetrievalFanout retrievalFanout;
+
+    @Autowired
+    private SemanticAnswerCache answerCache;
+
+    @Autowired
+    private QueryVectorCache queryVectorCache;
+
+    @Autowired
+    private QueryEncodingBatcher queryEncodingBatcher;
+
     @Override
     public Result<Map<String, Object>> handleChatRequest(Map<String, String> payload) {
         String userMessage = payload == null ? null : payload.get("message");
@@ -194,6 +214,7 @@ public class ChatServiceImpl implements ChatService {
 
     private ChatRespDTO handleMessage(String userId, String userMessage) {
         log.info("处理用户消息 - 用户: {}", userId);
+        RequestDeadline deadline = newTurnDeadline();
 
         try {
             // 步骤1: 获取或创建会话
@@ -206,11 +227,21 @@ public class ChatServiceImpl implements ChatService {
 
             // 步骤3: 执行知识检索
             int retrievalK = determineRetrievalK(userMessage);
-            MetadataFilter filter = queryAnalysisService.resolveFilter(userMessage);
-            List<RetrievalMatch> retrievalResults = retrieveMatches(userId, userMessage, retrievalK, filter);
+            MetadataFilter filter = queryAnalysisService.resolveFilter(userMessage, deadline);
+            // 回答依赖对话历史，只有无历史的首轮问题才读写语义答案缓存
+            float[] questionVector = conversationHistory.isEmpty() ? resolveQuestionVector(userMessage, deadline) : null;
+            SemanticAnswerCache.CachedAnswer cachedAnswer = answerCache.lookup(userId, filter, questionVector);
+            if (cachedAnswer != null) {
+                log.info("语义答案缓存命中 - 用户: {}", userId);
+                Long messageId = appendToHistory(
+                    sessionId, userId, userMessage, cachedAnswer.getAnswer(), cachedAnswer.getSources());
+                return new ChatRespDTO(cachedAnswer.getAnswer(), cachedAnswer.getSources(), messageId);
+            }
+
+            List<RetrievalMatch> retrievalResults = retrieveMatches(userId, userMessage, retrievalK, filter, deadline);
             log.debug("检索到 {} 条相关结果", retrievalResults.size());
 
-            CragDecision decision = postProcessorService.evaluate(userMessage, retrievalResults);
+            CragDecision decision = postProcessorService.evaluate(userMessage, retrievalResults, deadline);
             if (decision.getAction() == CragDecision.Action.CLARIFY
                 || decision.getAction() == CragDecision.Action.NO_ANSWER) {
                 String response = decision.getMessage();
@@ -218,12 +249,14 @@ public class ChatServiceImpl implements ChatService {
                 return new ChatRespDTO(response, retrievalResults, messageId);
             }
 
-            if (decision.getAction() == CragDecision.Action.REFINE) {
+            // 剩余预算不足一个可选阶段时放弃回退检索，使用已有结果作答
+            if (decision.getAction() == CragDecision.Action.REFINE && deadline.allowsOptionalStage()) {
                 List<RetrievalMatch> fallback = runFallbackRetrieval(
                     userId,
                     userMessage,
                     retrievalK,
-                    filter
+                    filter,
+                    deadline
                 );
                 if (!fallback.isEmpty()) {
                     retrievalResults = fallback;
@@ -267,6 +300,7 @@ public class ChatServiceImpl implements ChatService {
 
             String finalResponse = responseBuilder.toString();
             log.info("LLM响应完成，长度: {}", finalResponse.length());
+            answerCache.put(userId, filter, questionVector, finalResponse, retrievalResults);
 
             // 步骤6: 更新对话历史
             Long messageId = appendToHistory(sessionId, userId, userMessage, finalResponse, retrievalResults);
@@ -290,16 +324,26 @@ public class ChatServiceImpl implements ChatService {
                                              Consumer<List<?>> sourcesHandler,
                                              Consumer<Long> messageIdHandler,
                                              Runnable completionHandler) {
+        RequestDeadline deadline = newTurnDeadline();
         try {
             String sessionId = obtainOrCreateSession(userId);
             List<Map<String, String>> conversationHistory = loadConversationHistory(sessionId);
             int retrievalK = determineRetrievalK(userMessage);
-            MetadataFilter filter = queryAnalysisService.resolveFilter(userMessage);
-            List<RetrievalMatch> retrievalResults = retrieveMatches(userId, userMessage, retrievalK, filter);
+            MetadataFilter filter = queryAnalysisService.resolveFilter(userMessage, deadline);
+            // 回答依赖对话历史，只有无历史的首轮问题才读写语义答案缓存
+            float[] questionVector = conversationHistory.isEmpty() ? resolveQuestionVector(userMessage, deadline) : null;
+            SemanticAnswerCache.CachedAnswer cachedAnswer = answerCache.lookup(userId, filter, questionVector);
+            if (cachedAnswer != null) {
+                replayCachedAnswer(sessionId, userId, userMessage, cachedAnswer,
+                    chunkHandler, sourcesHandler, messageIdHandler, completionHandler);
+                return;
+            }
+
+            List<RetrievalMatch> retrievalResults = retrieveMatches(userId, userMessage, retrievalK, filter, deadline);
             String referenceContext = constructReferenceContext(retrievalResults);
             StringBuilder responseBuilder = new StringBuilder();
 
-            CragDecision decision = postProcessorService.evaluate(userMessage, retrievalResults);
+            CragDecision decision = postProcessorService.evaluate(userMessage, retrievalResults, deadline);
             if (decision.getAction() == CragDecision.Action.CLARIFY
                 || decision.getAction() == CragDecision.Action.NO_ANSWER) {
                 String response = decision.getMessage();
@@ -320,12 +364,14 @@ public class ChatServiceImpl implements ChatService {
                 return;
             }
 
-            if (decision.getAction() == CragDecision.Action.REFINE) {
+            // 剩余预算不足一个可选阶段时放弃回退检索，使用已有结果作答
+            if (decision.getAction() == CragDecision.Action.REFINE && deadline.allowsOptionalStage()) {
                 List<RetrievalMatch> fallback = runFallbackRetrieval(
                     userId,
                     userMessage,
                     retrievalK,
-                    filter
+                    filter,
+                    deadline
                 );
                 if (!fallback.isEmpty()) {
                     retrievalResults = fallback;
@@ -369,6 +415,7 @@ public class ChatServiceImpl implements ChatService {
                 },
                 () -> {
                     String finalResponse = responseBuilder.toString();
+                    answerCache.put(userId, filter, questionVector, finalResponse, finalResults);
                     Long messageId = appendToHistory(sessionId, userId, userMessage, finalResponse, finalResults);
                     if (sourcesHandler != null) {
                         sourcesHandler.accept(finalResults);
@@ -388,6 +435,80 @@ public class ChatServiceImpl implements ChatService {
         }
     }
 
+    /**
+     * 以合成流的方式回放缓存的回答，事件顺序与正常生成一致
+     */
+    private void replayCachedAnswer(String sessionId,
+                                    String userId,
+                                    String userMessage,
+                                    SemanticAnswerCache.CachedAnswer cachedAnswer,
+                                    Consumer<String> chunkHandler,
+                                    Consumer<List<?>> sourcesHandler,
+                                    Consumer<Long> messageIdHandler,
+                                    Runnable completionHandler) {
+        log.info("语义答案缓存命中，回放缓存回答 - 用户: {}", userId);
+        String answer = cachedAnswer.getAnswer();
+        if (chunkHandler != null) {
+            int chunkSize = Math.max(1, ragConfiguration.getAnswerCache().getReplayChunkSize());
+            int offset = 0;
+            while (offset < answer.length()) {
+                int codePoints = Math.min(chunkSize, answer.codePointCount(offset, answer.length()));
+                int end = answer.offsetByCodePoints(offset, codePoints);
+                chunkHandler.accept(answer.substring(offset, end));
+                offset = end;
+            }
+        }
+        Long messageId = appendToHistory(sessionId, userId, userMessage, answer, cachedAnswer.getSources());
+        if (sourcesHandler != null) {
+            sourcesHandler.accept(cachedAnswer.getSources());
+        }
+        if (messageIdHandler != null) {
+            messageIdHandler.accept(messageId);
+        }
+        if (completionHandler != null) {
+            completionHandler.run();
+        }
+    }
+
+    /**
+     * 生成问题向量供语义答案缓存匹配，同时写入查询向量缓存供后续检索复用
+     */
+    private float[] resolveQuestionVector(String message, RequestDeadline deadline) {
+        if (!answerCache.isEnabled()) {
+            return null;
+        }
+        float[] cached = queryVectorCache.get(message);
+        if (cached != null) {
+            return cached;
+        }
+        try {
+            float[] vector = queryEncodingBatcher.encode(message, deadline);
+            if (vector == null) {
+                return null;
+            }
+            queryVectorCache.put(message, vector);
+            return vector;
+        } catch (Exception e) {
+            log.debug("问题向量生成失败，跳过语义答案缓存: {}", e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * 创建本轮对话的截止时间，覆盖首个 token 之前的全部阶段
+     */
+    private RequestDeadline newTurnDeadline() {
+        RagConfiguration.Deadline config = ragConfiguration.getDeadline();
+        if (config == null || !config.isEnabled()) {
+            return RequestDeadline.unbounded();
+        }
+        return RequestDeadline.after(
+            config.getTurnBudgetMillis(),
+            config.getOptionalStageMinMillis(),
+            config.getLlmTimeoutMillis()
+        );
+    }
+
     private String obtainOrCreateSession(String userId) {
         return userSessionMap.computeIfAbsent(userId, key -> {
             String existingSession = loadLatestSessionId(userId);
@@ -457,40 +578,64 @@ public class ChatServiceImpl implements ChatService {
     private List<RetrievalMatch> retrieveMatches(String userId,
                                                  String message,
                                                  int topK,
-                                                 MetadataFilter filter) {
-        QueryPlan plan = queryAnalysisService.createPlan(message);
-        List<List<RetrievalMatch>> resultSets = new ArrayList<>();
+                                                 MetadataFilter filter,
+                                                 RequestDeadline deadline) {
+        QueryPlan plan = buildRetrievalPlan(queryAnalysisService.createPlan(message, deadline));
+        long deadlineNanos = deadline.stageDeadlineNanos(ragConfiguration.getFusion().getTimeoutMillis());
+        List<List<RetrievalMatch>> planResults = new ArrayList<>(
+            retrieverService.retrieveByPlan(plan, topK, userId, filter, deadline)
+        );
 
-        resultSets.add(retrieveWithFallback(userId, message, topK, filter));
+        // 原始查询与改写查询在结果过差时做一次规范化重试，HyDE 结果原样保留
+        List<String> hybridQueries = new ArrayList<>();
+        hybridQueries.add(message);
+        hybridQueries.addAll(plan.getRewrittenQueries());
+        refineLowQualityBranches(userId, hybridQueries, planResults, topK, filter, deadlineNanos);
+
+        // 超时被取消的分支不参与融合
+        List<RetrievalMatch> primary = planResults.get(0) != null ? planResults.get(0) : Collections.emptyList();
+        List<List<RetrievalMatch>> resultSets = planResults.stream()
+            .filter(Objects::nonNull)
+            .collect(Collectors.toList());
+
+        if (!ragConfiguration.getFusion().isEnabled() || resultSets.isEmpty()) {
+            return postProcessorService.rerank(message, primary, topK, deadline);
+        }
+        if (resultSets.size() == 1) {
+            return postProcessorService.rerank(message, resultSets.get(0), topK, deadline);
+        }
+
+        List<RetrievalMatch> fused = fuseByRrf(resultSets, topK, ragConfiguration.getFusion().getRrfK());
+        return postProcessorService.rerank(message, fused, topK, deadline);
+    }
 
+    /**
+     * 按配置裁剪查询计划，只保留本轮实际参与检索的查询变体
+     */
+    private QueryPlan buildRetrievalPlan(QueryPlan plan) {
         int remainingQueries = ragConfiguration.getFusion().getMaxQueries() - 1;
         if (ragConfiguration.getHyde().isEnabled()) {
             remainingQueries -= 1;
         }
 
+        List<String> rewrites = new ArrayList<>();
         if (ragConfiguration.getRewrite().isEnabled() && remainingQueries > 0) {
-            List<String> rewrites = plan.getRewrittenQueries();
-            if (rewrites != null && !rewrites.isEmpty()) {
-                int limit = Math.min(remainingQueries, rewrites.size());
-                for (int i = 0; i < limit; i++) {
-                    resultSets.add(retrieveWithFallback(userId, rewrites.get(i), topK, filter));
-                }
+            List<String> candidates = plan.getRewrittenQueries();
+            if (candidates != null && !candidates.isEmpty()) {
+                int limit = Math.min(remainingQueries, candidates.size());
+                rewrites.addAll(candidates.subList(0, limit));
             }
         }
 
+        String hydeAnswer = null;
         if (ragConfiguration.getHyde().isEnabled()) {
-            String hydeAnswer = plan.getHydeAnswer();
-            if (hydeAnswer != null && !hydeAnswer.isBlank()) {
-                resultSets.add(retrieverService.retrieveVectorOnly(hydeAnswer, topK, userId, filter));
+            String candidate = plan.getHydeAnswer();
+            if (candidate != null && !candidate.isBlank()) {
+                hydeAnswer = candidate;
             }
         }
 
-        if (!ragConfiguration.getFusion().isEnabled() || resultSets.size() == 1) {
-            return postProcessorService.rerank(message, resultSets.get(0), topK);
-        }
-
-        List<RetrievalMatch> fused = fuseByRrf(resultSets, topK, ragConfiguration.getFusion().getRrfK());
-        return postProcessorService.rerank(message, fused, topK);
+        return new QueryPlan(plan.getOriginalQuery(), rewrites, hydeAnswer);
     }
 
     private int determineRetrievalK(String message) {
@@ -514,29 +659,43 @@ public class ChatServiceImpl implements ChatService {
         return message.contains("以及") || message.contains("和") || message.contains("、");
     }
 
-    private List<RetrievalMatch> retrieveWithFallback(String userId,
-                                                      String message,
-                                                      int topK,
-                                                      MetadataFilter filter) {
-        List<RetrievalMatch> results = retrieverService.retrieve(message, topK, userId, filter);
-        if (!isLowQualityForFallback(results)) {
-            return results;
-        }
-
-        String refinedQuery = normalizeQuery(message);
-        if (!refinedQuery.equals(message)) {
-            List<RetrievalMatch> refined = retrieverService.retrieve(
-                refinedQuery,
-                Math.min(topK * 2, MAX_RETRIEVAL_K),
-                userId,
-                filter
-            );
-            if (!isLowQualityForFallback(refined)) {
-                return refined;
+    /**
+     * 对结果过差的分支并发执行规范化查询重试，结果更好时替换原分支
+     */
+    private void refineLowQualityBranches(String userId,
+                                          List<String> queries,
+                                          List<List<RetrievalMatch>> resultSets,
+                                          int topK,
+                                          MetadataFilter filter,
+                                          long deadlineNanos) {
+        List<Integer> branchIndexes = new ArrayList<>();
+        List<Callable<List<RetrievalMatch>>> tasks = new ArrayList<>();
+        int refineK = Math.min(topK * 2, MAX_RETRIEVAL_K);
+
+        for (int i = 0; i < queries.size() && i < resultSets.size(); i++) {
+            List<RetrievalMatch> results = resultSets.get(i);
+            if (results == null || !isLowQualityForFallback(results)) {
+                continue;
+            }
+            String query = queries.get(i);
+            String refinedQuery = normalizeQuery(query);
+            if (refinedQuery.equals(query)) {
+                continue;
             }
+            branchIndexes.add(i);
+            tasks.add(() -> retrieverService.retrieve(refinedQuery, refineK, userId, filter));
+        }
+        if (tasks.isEmpty()) {
+            return;
         }
 
-        return results;
+        List<List<RetrievalMatch>> refinedSets = retrievalFanout.invokeAll(tasks, deadlineNanos);
+        for (int i = 0; i < branchIndexes.size(); i++) {
+            List<RetrievalMatch> refined = refinedSets.get(i);
+            if (refined != null && !isLowQualityForFallback(refined)) {
+                resultSets.set(branchIndexes.get(i), refined);
+            }
+        }
     }
 
     private List<RetrievalMatch> fuseByRrf(List<List<RetrievalMatch>> resultSets,
@@ -607,7 +766,8 @@ public class ChatServiceImpl implements ChatService {
     private List<RetrievalMatch> runFallbackRetrieval(String userId,
                                                       String message,
                                                       int topK,
-                                                      MetadataFilter filter) {
+                                                      MetadataFilter filter,
+                                                      RequestDeadline deadline) {
         RagConfiguration.Crag config = ragConfiguration.getCrag();
         int multiplier = config != null ? config.getFallbackMultiplier() : 2;
         int fallbackK = Math.min(topK * Math.max(1, multiplier), MAX_RETRIEVAL_K);
@@ -615,9 +775,10 @@ public class ChatServiceImpl implements ChatService {
             message,
             fallbackK,
             userId,
-            filter
+            filter,
+            deadline
         );
-        return postProcessorService.rerank(message, fallback, topK);
+        return postProcessorService.rerank(message, fallback, topK, deadline);
     }
 
     private String loadLatestSessionId(String userId) {
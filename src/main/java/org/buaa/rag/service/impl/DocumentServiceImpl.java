@@ -4,6 +4,7 @@ import static org.buaa.rag.common.enums.ServiceErrorCodeEnum.DOCUMENT_NOT_FOUND;
 import static org.buaa.rag.common.enums.ServiceErrorCodeEnum.FILE_ACCESS_DENIED;
 import static org.buaa.rag.common.enums.ServiceErrorCodeEnum.FILE_TYPE_NOT_SUPPORTED;
 import static org.buaa.rag.common.enums.ServiceErrorCodeEnum.FILE_UPLOAD_FAILED;
+import static org.buaa.rag.common.enums.ServiceErrorCodeEnum.PARAM_INVALID;
 import static org.buaa.rag.common.enums.ServiceErrorCodeEnum.STORAGE_SERVICE_ERROR;
 
 import java.io.IOException;
@@ -12,6 +13,7 @@ import java.time.LocalDateTime;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
@@ -31,7 +33,9 @@ import org.buaa.rag.common.convention.exception.ClientException;
 import org.buaa.rag.common.convention.exception.ServiceException;
 import org.buaa.rag.common.convention.result.Result;
 import org.buaa.rag.common.convention.result.Results;
+import org.buaa.rag.common.event.DocumentChangedEvent;
 import org.buaa.rag.common.user.UserContext;
+import org.buaa.rag.config.RagConfiguration;
 import org.buaa.rag.dao.entity.DocumentDO;
 import org.buaa.rag.dao.entity.IndexedContentDO;
 import org.buaa.rag.dao.entity.TextSegmentDO;
@@ -39,9 +43,15 @@ import org.buaa.rag.dao.mapper.DocumentMapper;
 import org.buaa.rag.dao.mapper.TextSegmentMapper;
 import org.buaa.rag.dto.ContentFragment;
 import org.buaa.rag.service.DocumentService;
-import org.buaa.rag.tool.VectorEncoding;
+import org.buaa.rag.tool.EmbeddingStore;
+import org.buaa.rag.tool.LuceneIndexStore;
+import org.buaa.rag.tool.NearDuplicateDetector;
+import org.buaa.rag.tool.MatryoshkaVectors;
+import org.buaa.rag.tool.MetadataFieldMigrator;
+import org.buaa.rag.tool.VectorQuantizer;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.context.annotation.Lazy;
 import org.springframework.scheduling.annotation.Async;
 import org.springframework.stereotype.Service;
@@ -56,11 +66,14 @@ import com.hankcs.hanlp.seg.common.Term;
 import com.hankcs.hanlp.tokenizer.StandardTokenizer;
 
 import co.elastic.clients.elasticsearch.ElasticsearchClient;
+import co.elastic.clients.elasticsearch._types.Conflicts;
 import co.elastic.clients.elasticsearch.core.BulkRequest;
 import co.elastic.clients.elasticsearch.core.BulkResponse;
 import co.elastic.clients.elasticsearch.core.DeleteByQueryResponse;
+import co.elastic.clients.elasticsearch.core.UpdateByQueryResponse;
 import co.elastic.clients.elasticsearch.core.bulk.BulkOperation;
 import co.elastic.clients.elasticsearch.core.bulk.BulkResponseItem;
+import co.elastic.clients.json.JsonData;
 import io.minio.GetObjectArgs;
 import io.minio.MinioClient;
 import io.minio.PutObjectArgs;
@@ -77,6 +90,7 @@ import lombok.extern.slf4j.Slf4j;
 public class DocumentServiceImpl extends ServiceImpl<DocumentMapper, DocumentDO> implements DocumentService {
 
     private static final String DEFAULT_VISIBILITY = "PRIVATE";
+    private static final Set<String> VISIBILITIES = Set.of("PRIVATE", "PUBLIC");
     private static final String MODEL_VERSION = "text-embedding-v4";
     private static final Set<String> ALLOWED_FILE_TYPES = Set.of(
             "pdf", "doc", "docx", "txt", "md", "html", "htm",
@@ -84,9 +98,13 @@ public class DocumentServiceImpl extends ServiceImpl<DocumentMapper, DocumentDO>
     );
 
     private final MinioClient minioClient;
-    private final VectorEncoding encodingService;
+    private final EmbeddingStore embeddingStore;
+    private final NearDuplicateDetector nearDuplicateDetector;
     private final ElasticsearchClient searchClient;
+    private final LuceneIndexStore luceneIndexStore;
+    private final RagConfiguration ragConfiguration;
     private final TextSegmentMapper segmentRepository;
+    private final ApplicationEventPublisher eventPublisher;
 
     @Lazy
     @Autowired
@@ -136,10 +154,15 @@ public class DocumentServiceImpl extends ServiceImpl<DocumentMapper, DocumentDO>
             record.setOriginalFileName(originalFilename);
             record.setFileSizeBytes(file.getSize());
             record.setProcessingStatus(0);
-            record.setVisibility(visibility != null ? visibility : DEFAULT_VISIBILITY);
+            record.setVisibility(visibility != null && !visibility.isBlank() ? normalizeVisibility(visibility) : DEFAULT_VISIBILITY);
             record.setUserId(currentUserId);
+            record.setDepartment(trimToNull(department));
+            record.setDocType(trimToNull(docType));
+            record.setPolicyYear(trimToNull(policyYear));
+            record.setTags(normalizeTags(tags));
             record.setProcessedAt(null);
             baseMapper.insert(record);
+            eventPublisher.publishEvent(new DocumentChangedEvent(DocumentChangedEvent.Type.UPSERTED, md5Hash, record));
 
             // 使用代理触发 @Async
             self.ingestDocumentAsync(md5Hash, originalFilename);
@@ -186,10 +209,54 @@ public class DocumentServiceImpl extends ServiceImpl<DocumentMapper, DocumentDO>
         removeDocumentIndex(md5Hash);
         deleteSegments(md5Hash);
         baseMapper.deleteByMd5Hash(md5Hash);
+        eventPublisher.publishEvent(new DocumentChangedEvent(DocumentChangedEvent.Type.DELETED, md5Hash, null));
 
         return Results.success(Map.of("fileMd5", md5Hash, "message", "删除成功"));
     }
 
+    @Override
+    @Transactional
+    public Result<Map<String, Object>> updateMetadata(String md5Hash,
+                                                      String userId,
+                                                      String visibility,
+                                                      String department,
+                                                      String docType,
+                                                      String policyYear,
+                                                      String tags) {
+        Optional<DocumentDO> recordOpt = baseMapper.findByMd5Hash(md5Hash);
+        if (recordOpt.isEmpty()) {
+            throw new ClientException("文档不存在", DOCUMENT_NOT_FOUND);
+        }
+
+        DocumentDO record = recordOpt.get();
+        if (!Objects.equals(record.getUserId(), userId)) {
+            throw new ClientException("无权限修改该文档", FILE_ACCESS_DENIED);
+        }
+
+        // 部分更新：参数为 null 表示不修改，空串表示清空
+        if (visibility != null && !visibility.isBlank()) {
+            record.setVisibility(normalizeVisibility(visibility));
+        }
+        if (department != null) {
+            record.setDepartment(trimToNull(department));
+        }
+        if (docType != null) {
+            record.setDocType(trimToNull(docType));
+        }
+        if (policyYear != null) {
+            record.setPolicyYear(trimToNull(policyYear));
+        }
+        if (tags != null) {
+            record.setTags(normalizeTags(tags));
+        }
+        baseMapper.updateById(record);
+
+        syncIndexMetadata(record);
+        eventPublisher.publishEvent(new DocumentChangedEvent(DocumentChangedEvent.Type.UPSERTED, md5Hash, record));
+
+        return Results.success(Map.of("fileMd5", md5Hash, "message", "更新成功"));
+    }
+
     @Override
     @Async("documentIngestionExecutor")
     @Transactional
@@ -233,11 +300,14 @@ public class DocumentServiceImpl extends ServiceImpl<DocumentMapper, DocumentDO>
                 return;
             }
 
+            DocumentDO record = baseMapper.findByMd5Hash(documentMd5)
+                .orElseThrow(() -> new IllegalStateException("文档记录不存在: " + documentMd5));
+
             List<String> textContents = extractTextContents(fragments);
-            List<float[]> vectorEmbeddings = encodingService.encode(textContents);
+            List<float[]> vectorEmbeddings = embeddingStore.encode(textContents);
 
             List<IndexedContentDO> indexDocuments = buildIndexedDocuments(
-                documentMd5,
+                record,
                 fragments,
                 vectorEmbeddings
             );
@@ -253,6 +323,11 @@ public class DocumentServiceImpl extends ServiceImpl<DocumentMapper, DocumentDO>
 
     private void removeDocumentIndex(String documentMd5) {
         try {
+            if (luceneIndexStore.isEnabled()) {
+                luceneIndexStore.deleteBySource(documentMd5);
+                log.info("Lucene 索引删除完成: {}", documentMd5);
+                return;
+            }
             DeleteByQueryResponse response = searchClient.deleteByQuery(builder ->
                 builder.index(indexName)
                     .query(query -> query.term(term -> term.field("sourceMd5").value(documentMd5)))
@@ -264,10 +339,54 @@ public class DocumentServiceImpl extends ServiceImpl<DocumentMapper, DocumentDO>
         }
     }
 
+    /**
+     * 将文档元数据同步到已索引的全部分块，保证检索过滤条件与数据库一致
+     */
+    private void syncIndexMetadata(DocumentDO record) {
+        Map<String, JsonData> params = MetadataFieldMigrator.metadataParams(record);
+
+        try {
+            if (luceneIndexStore.isEnabled()) {
+                int updated = luceneIndexStore.updateMetadata(
+                    record.getMd5Hash(),
+                    record.getVisibility(),
+                    record.getUserId(),
+                    normalizeMetadataValue(record.getDepartment()),
+                    normalizeMetadataValue(record.getDocType()),
+                    normalizeMetadataValue(record.getPolicyYear()),
+                    normalizeMetadataTags(record.getTags())
+                );
+                log.info("Lucene 索引元数据同步完成: {}, 更新数: {}", record.getMd5Hash(), updated);
+                return;
+            }
+            UpdateByQueryResponse response = searchClient.updateByQuery(builder -> builder
+                .index(indexName)
+                .query(query -> query.term(term -> term.field("sourceMd5").value(record.getMd5Hash())))
+                .script(script -> script.inline(inline -> inline
+                    .lang("painless")
+                    .source(MetadataFieldMigrator.METADATA_SYNC_SCRIPT)
+                    .params(params)
+                ))
+                .conflicts(Conflicts.Proceed)
+                .refresh(true)
+            );
+            log.info("索引元数据同步完成: {}, 更新数: {}", record.getMd5Hash(), response.updated());
+        } catch (Exception e) {
+            log.error("索引元数据同步失败: {}", record.getMd5Hash(), e);
+            throw new ServiceException("索引元数据同步失败: " + e.getMessage(), e, STORAGE_SERVICE_ERROR);
+        }
+    }
+
     private void performBulkIndexing(List<IndexedContentDO> documents) {
         try {
             log.info("执行批量索引，文档数: {}", documents.size());
 
+            if (luceneIndexStore.isEnabled()) {
+                luceneIndexStore.index(documents);
+                log.info("Lucene 批量索引成功，文档数: {}", documents.size());
+                return;
+            }
+
             List<BulkOperation> operations = documents.stream()
                 .map(this::createIndexOperation)
                 .collect(Collectors.toList());
@@ -312,6 +431,7 @@ public class DocumentServiceImpl extends ServiceImpl<DocumentMapper, DocumentDO>
     private List<ContentFragment> loadTextFragments(String documentMd5) {
         List<TextSegmentDO> segments = segmentRepository.findByDocumentMd5(documentMd5);
         return segments.stream()
+            .filter(seg -> !documentMd5.equals(seg.getCanonicalMd5()))
             .map(seg -> new ContentFragment(seg.getFragmentIndex(), seg.getTextData()))
             .collect(Collectors.toList());
     }
@@ -322,29 +442,73 @@ public class DocumentServiceImpl extends ServiceImpl<DocumentMapper, DocumentDO>
             .collect(Collectors.toList());
     }
 
-    private List<IndexedContentDO> buildIndexedDocuments(String documentMd5,
+    private List<IndexedContentDO> buildIndexedDocuments(DocumentDO record,
                                                          List<ContentFragment> fragments,
                                                          List<float[]> vectors) {
         return IntStream.range(0, fragments.size())
             .mapToObj(i -> createIndexedContent(
-                documentMd5,
+                record,
                 fragments.get(i),
                 vectors.get(i)
             ))
             .collect(Collectors.toList());
     }
 
-    private IndexedContentDO createIndexedContent(String documentMd5,
+    private IndexedContentDO createIndexedContent(DocumentDO record,
                                                   ContentFragment fragment,
                                                   float[] vector) {
-        return new IndexedContentDO(
-            UUID.randomUUID().toString(),
-            documentMd5,
-            fragment.getFragmentId(),
-            fragment.getTextContent(),
-            vector,
-            MODEL_VERSION
-        );
+        return IndexedContentDO.builder()
+            .documentId(UUID.randomUUID().toString())
+            .sourceMd5(record.getMd5Hash())
+            .segmentNumber(fragment.getFragmentId())
+            .textPayload(fragment.getTextContent())
+            .vectorEmbedding(vector)
+            .vectorQuantized(isQuantized() ? VectorQuantizer.quantizeInt8(vector) : null)
+            .vectorPrefix(ragConfiguration.getMatryoshka().isEnabled()
+                ? MatryoshkaVectors.prefix(vector, ragConfiguration.getMatryoshka().getPrefixDimension())
+                : null)
+            .encoderVersion(MODEL_VERSION)
+            .visibility(record.getVisibility())
+            .ownerId(record.getUserId())
+            .department(normalizeMetadataValue(record.getDepartment()))
+            .docType(normalizeMetadataValue(record.getDocType()))
+            .policyYear(normalizeMetadataValue(record.getPolicyYear()))
+            .tags(normalizeMetadataTags(record.getTags()))
+            .build();
+    }
+
+    private boolean isQuantized() {
+        return ragConfiguration.getQuantization().getMode() == RagConfiguration.Quantization.Mode.INT8;
+    }
+
+    /**
+     * 索引中的元数据统一小写存储，与检索端的过滤条件规范化方式一致
+     */
+    private String normalizeMetadataValue(String value) {
+        String trimmed = trimToNull(value);
+        return trimmed == null ? null : trimmed.toLowerCase(Locale.ROOT);
+    }
+
+    private List<String> normalizeMetadataTags(String tags) {
+        return parseTags(tags).stream()
+            .map(tag -> tag.toLowerCase(Locale.ROOT))
+            .distinct()
+            .toList();
+    }
+
+    private String trimToNull(String value) {
+        if (value == null || value.isBlank()) {
+            return null;
+        }
+        return value.trim();
+    }
+
+    private String normalizeVisibility(String visibility) {
+        String normalized = visibility.trim().toUpperCase(Locale.ROOT);
+        if (!VISIBILITIES.contains(normalized)) {
+            throw new ClientException("可见性只能为 PRIVATE 或 PUBLIC", PARAM_INVALID);
+        }
+        return normalized;
     }
 
     private boolean isValidFileType(String filename) {
@@ -415,6 +579,8 @@ public class DocumentServiceImpl extends ServiceImpl<DocumentMapper, DocumentDO>
             record.setProcessingStatus(1);
             record.setProcessedAt(LocalDateTime.now());
             baseMapper.updateById(record);
+            // 片段已写入索引，递增语料代数使依赖检索结果的缓存失效
+            eventPublisher.publishEvent(new DocumentChangedEvent(DocumentChangedEvent.Type.UPSERTED, documentMd5, record));
         });
     }
 
@@ -424,6 +590,8 @@ public class DocumentServiceImpl extends ServiceImpl<DocumentMapper, DocumentDO>
             record.setProcessingStatus(-1);
             record.setProcessedAt(LocalDateTime.now());
             baseMapper.updateById(record);
+            // 批量索引可能已部分写入，同样递增语料代数
+            eventPublisher.publishEvent(new DocumentChangedEvent(DocumentChangedEvent.Type.UPSERTED, documentMd5, record));
         });
     }
 
@@ -467,12 +635,18 @@ public class DocumentServiceImpl extends ServiceImpl<DocumentMapper, DocumentDO>
     }
 
     private void persistTextSegments(String documentMd5, List<String> chunks) {
+        List<NearDuplicateDetector.CanonicalChunk> canonicals = nearDuplicateDetector.detect(documentMd5, chunks);
         int index = 1;
         for (String chunkText : chunks) {
             TextSegmentDO segment = new TextSegmentDO();
             segment.setDocumentMd5(documentMd5);
             segment.setFragmentIndex(index);
             segment.setTextData(chunkText);
+            NearDuplicateDetector.CanonicalChunk canonical = canonicals.get(index - 1);
+            if (canonical != null) {
+                segment.setCanonicalMd5(canonical.getDocumentMd5());
+                segment.setCanonicalIndex(canonical.getFragmentIndex());
+            }
             segmentRepository.insert(segment);
             index++;
         }
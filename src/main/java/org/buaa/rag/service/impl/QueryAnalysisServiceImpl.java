@@ -5,8 +5,9 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import org.buaa.rag.config.RagConfiguration;
 import org.buaa.rag.dto.MetadataFilter;
 import org.buaa.rag.dto.QueryPlan;
+import org.buaa.rag.dto.RequestDeadline;
 import org.buaa.rag.service.QueryAnalysisService;
-import org.buaa.rag.tool.LlmChat;
+import org.buaa.rag.tool.CompletionCache;
 import org.springframework.stereotype.Service;
 
 import java.util.ArrayList;
@@ -83,41 +84,51 @@ public class QueryAnalysisServiceImpl implements QueryAnalysisService {
         DEPARTMENT_KEYWORDS.put("物理学院", "物理学院");
     }
 
-    private final LlmChat llmChat;
+    private final CompletionCache completionCache;
     private final RagConfiguration ragConfiguration;
     private final ObjectMapper objectMapper;
 
-    public QueryAnalysisServiceImpl(LlmChat llmChat,
+    public QueryAnalysisServiceImpl(CompletionCache completionCache,
                                     RagConfiguration ragConfiguration) {
-        this.llmChat = llmChat;
+        this.completionCache = completionCache;
         this.ragConfiguration = ragConfiguration;
         this.objectMapper = new ObjectMapper();
     }
 
     @Override
     public QueryPlan createPlan(String userQuery) {
-        List<String> rewrites = generateRewrites(userQuery);
-        String hydeAnswer = generateHydeAnswer(userQuery);
+        return createPlan(userQuery, RequestDeadline.unbounded());
+    }
+
+    @Override
+    public QueryPlan createPlan(String userQuery, RequestDeadline deadline) {
+        List<String> rewrites = generateRewrites(userQuery, deadline);
+        String hydeAnswer = generateHydeAnswer(userQuery, deadline);
         return new QueryPlan(userQuery, rewrites, hydeAnswer);
     }
 
     @Override
     public MetadataFilter resolveFilter(String query) {
+        return resolveFilter(query, RequestDeadline.unbounded());
+    }
+
+    @Override
+    public MetadataFilter resolveFilter(String query, RequestDeadline deadline) {
         MetadataFilter heuristic = buildHeuristicFilter(query);
         RagConfiguration.Routing routing = ragConfiguration.getRouting();
         if (routing == null || !routing.isEnabled()) {
             return heuristic;
         }
-        if (!routing.isUseLlm()) {
+        if (!routing.isUseLlm() || !deadline.allowsOptionalStage()) {
             return heuristic;
         }
 
-        MetadataFilter llmFilter = buildLlmFilter(query, routing);
+        MetadataFilter llmFilter = buildLlmFilter(query, routing, deadline);
         return mergeFilters(heuristic, llmFilter, routing.getMaxTags());
     }
 
-    private List<String> generateRewrites(String userQuery) {
-        if (!ragConfiguration.getRewrite().isEnabled()) {
+    private List<String> generateRewrites(String userQuery, RequestDeadline deadline) {
+        if (!ragConfiguration.getRewrite().isEnabled() || !deadline.allowsOptionalStage()) {
             return List.of();
         }
 
@@ -126,12 +137,13 @@ public class QueryAnalysisServiceImpl implements QueryAnalysisService {
             prompt = DEFAULT_REWRITE_PROMPT;
         }
 
-        String output = llmChat.generateCompletion(prompt, userQuery, 256);
+        String output = completionCache.generate(
+            CompletionCache.Purpose.REWRITE, prompt, userQuery, 256, deadline.llmTimeout());
         return normalizeRewrites(output, ragConfiguration.getRewrite().getVariants());
     }
 
-    private String generateHydeAnswer(String userQuery) {
-        if (!ragConfiguration.getHyde().isEnabled()) {
+    private String generateHydeAnswer(String userQuery, RequestDeadline deadline) {
+        if (!ragConfiguration.getHyde().isEnabled() || !deadline.allowsOptionalStage()) {
             return null;
         }
 
@@ -140,10 +152,12 @@ public class QueryAnalysisServiceImpl implements QueryAnalysisService {
             prompt = DEFAULT_HYDE_PROMPT;
         }
 
-        return llmChat.generateCompletion(
+        return completionCache.generate(
+            CompletionCache.Purpose.HYDE,
             prompt,
             userQuery,
-            ragConfiguration.getHyde().getMaxTokens()
+            ragConfiguration.getHyde().getMaxTokens(),
+            deadline.llmTimeout()
         );
     }
 
@@ -208,13 +222,14 @@ public class QueryAnalysisServiceImpl implements QueryAnalysisService {
         return filter;
     }
 
-    private MetadataFilter buildLlmFilter(String query, RagConfiguration.Routing routing) {
+    private MetadataFilter buildLlmFilter(String query, RagConfiguration.Routing routing, RequestDeadline deadline) {
         String prompt = routing.getPrompt();
         if (prompt == null || prompt.isBlank()) {
             prompt = DEFAULT_ROUTING_PROMPT;
         }
 
-        String output = llmChat.generateCompletion(prompt, query, 256);
+        String output = completionCache.generate(
+            CompletionCache.Purpose.ROUTING, prompt, query, 256, deadline.llmTimeout());
         if (output == null || output.isBlank()) {
             return new MetadataFilter();
         }
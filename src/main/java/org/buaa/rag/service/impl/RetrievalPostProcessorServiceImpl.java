@@ -5,9 +5,10 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import org.buaa.rag.config.LlmConfiguration;
 import org.buaa.rag.config.RagConfiguration;
 import org.buaa.rag.dto.CragDecision;
+import org.buaa.rag.dto.RequestDeadline;
 import org.buaa.rag.dto.RetrievalMatch;
 import org.buaa.rag.service.RetrievalPostProcessorService;
-import org.buaa.rag.tool.LlmChat;
+import org.buaa.rag.tool.CompletionCache;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.stereotype.Service;
@@ -54,15 +55,15 @@ public class RetrievalPostProcessorServiceImpl implements RetrievalPostProcessor
 3. 不要输出多余解释或符号
 """;
 
-    private final LlmChat llmChat;
+    private final CompletionCache completionCache;
     private final RagConfiguration ragConfiguration;
     private final LlmConfiguration llmConfiguration;
     private final ObjectMapper objectMapper;
 
-    public RetrievalPostProcessorServiceImpl(LlmChat llmChat,
+    public RetrievalPostProcessorServiceImpl(CompletionCache completionCache,
                                              RagConfiguration ragConfiguration,
                                              LlmConfiguration llmConfiguration) {
-        this.llmChat = llmChat;
+        this.completionCache = completionCache;
         this.ragConfiguration = ragConfiguration;
         this.llmConfiguration = llmConfiguration;
         this.objectMapper = new ObjectMapper();
@@ -70,6 +71,11 @@ public class RetrievalPostProcessorServiceImpl implements RetrievalPostProcessor
 
     @Override
     public CragDecision evaluate(String query, List<RetrievalMatch> matches) {
+        return evaluate(query, matches, RequestDeadline.unbounded());
+    }
+
+    @Override
+    public CragDecision evaluate(String query, List<RetrievalMatch> matches, RequestDeadline deadline) {
         RagConfiguration.Crag config = ragConfiguration.getCrag();
         if (config == null || !config.isEnabled()) {
             return new CragDecision(CragDecision.Action.ANSWER, null);
@@ -77,13 +83,13 @@ public class RetrievalPostProcessorServiceImpl implements RetrievalPostProcessor
 
         if (matches == null || matches.isEmpty()) {
             if (isLikelyAmbiguous(query)) {
-                return new CragDecision(CragDecision.Action.CLARIFY, buildClarifyQuestion(query, config));
+                return new CragDecision(CragDecision.Action.CLARIFY, buildClarifyQuestion(query, config, deadline));
             }
             return new CragDecision(CragDecision.Action.NO_ANSWER, noResultMessage());
         }
 
-        if (config.isUseLlm() && shouldReviewWithLlm(matches, config)) {
-            CragDecision decision = evaluateWithLlm(query, matches, config);
+        if (config.isUseLlm() && deadline.allowsOptionalStage() && shouldReviewWithLlm(matches, config)) {
+            CragDecision decision = evaluateWithLlm(query, matches, config, deadline);
             if (decision != null) {
                 return decision;
             }
@@ -109,6 +115,14 @@ public class RetrievalPostProcessorServiceImpl implements RetrievalPostProcessor
 
     @Override
     public List<RetrievalMatch> rerank(String query, List<RetrievalMatch> matches, int topK) {
+        return rerank(query, matches, topK, RequestDeadline.unbounded());
+    }
+
+    @Override
+    public List<RetrievalMatch> rerank(String query,
+                                       List<RetrievalMatch> matches,
+                                       int topK,
+                                       RequestDeadline deadline) {
         if (matches == null || matches.size() <= 1) {
             return matches;
         }
@@ -116,15 +130,21 @@ public class RetrievalPostProcessorServiceImpl implements RetrievalPostProcessor
         if (config == null || !config.isEnabled()) {
             return matches;
         }
+        if (!deadline.allowsOptionalStage()) {
+            log.debug("剩余预算 {}ms 不足，跳过重排", deadline.remainingMillis());
+            return matches.size() > topK ? matches.subList(0, topK) : matches;
+        }
 
         int candidateLimit = Math.min(config.getMaxCandidates(), matches.size());
         List<RetrievalMatch> candidates = new ArrayList<>(matches.subList(0, candidateLimit));
         String prompt = buildRerankPrompt(query, candidates, config);
 
-        String output = llmChat.generateCompletion(
+        String output = completionCache.generate(
+            CompletionCache.Purpose.RERANK,
             resolveRerankPrompt(config),
             prompt,
-            256
+            256,
+            deadline.llmTimeout()
         );
 
         Map<Integer, Double> scoreMap = parseScores(output);
@@ -177,7 +197,8 @@ public class RetrievalPostProcessorServiceImpl implements RetrievalPostProcessor
 
     private CragDecision evaluateWithLlm(String query,
                                          List<RetrievalMatch> matches,
-                                         RagConfiguration.Crag config) {
+                                         RagConfiguration.Crag config,
+                                         RequestDeadline deadline) {
         String prompt = config.getPrompt();
         if (prompt == null || prompt.isBlank()) {
             prompt = DEFAULT_CRAG_PROMPT;
@@ -195,7 +216,8 @@ public class RetrievalPostProcessorServiceImpl implements RetrievalPostProcessor
                 .append("\n");
         }
 
-        String output = llmChat.generateCompletion(prompt, content.toString(), 256);
+        String output = completionCache.generate(
+            CompletionCache.Purpose.CRAG, prompt, content.toString(), 256, deadline.llmTimeout());
         if (output == null || output.isBlank()) {
             return null;
         }
@@ -210,7 +232,7 @@ public class RetrievalPostProcessorServiceImpl implements RetrievalPostProcessor
             String clarifyQuestion = node.path("clarifyQuestion").asText(null);
             if (action == CragDecision.Action.CLARIFY) {
                 if (clarifyQuestion == null || clarifyQuestion.isBlank()) {
-                    clarifyQuestion = buildClarifyQuestion(query, config);
+                    clarifyQuestion = buildClarifyQuestion(query, config, deadline);
                 }
                 return new CragDecision(action, clarifyQuestion);
             }
@@ -235,15 +257,16 @@ public class RetrievalPostProcessorServiceImpl implements RetrievalPostProcessor
         }
     }
 
-    private String buildClarifyQuestion(String query, RagConfiguration.Crag config) {
-        if (!config.isUseLlm()) {
+    private String buildClarifyQuestion(String query, RagConfiguration.Crag config, RequestDeadline deadline) {
+        if (!config.isUseLlm() || !deadline.allowsOptionalStage()) {
             return "为了更准确回答，请补充问题的具体场景，例如涉及哪一年、学院或制度名称。";
         }
         String prompt = config.getClarifyPrompt();
         if (prompt == null || prompt.isBlank()) {
             prompt = DEFAULT_CLARIFY_PROMPT;
         }
-        String output = llmChat.generateCompletion(prompt, query, 64);
+        String output = completionCache.generate(
+            CompletionCache.Purpose.CLARIFY, prompt, query, 64, deadline.llmTimeout());
         if (output == null || output.isBlank()) {
             return "为了更准确回答，请补充问题的具体场景，例如涉及哪一年、学院或制度名称。";
         }
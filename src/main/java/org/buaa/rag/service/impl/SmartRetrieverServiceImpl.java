@@ -1,24 +1,55 @@
 package org.buaa.rag.service.impl;
 
-import co.elastic.clients.elasticsearch.ElasticsearchClient;
+import co.elastic.clients.elasticsearch.ElasticsearchAsyncClient;
+import co.elastic.clients.elasticsearch._types.ErrorResponse;
+import co.elastic.clients.elasticsearch._types.KnnQuery;
 import co.elastic.clients.elasticsearch._types.query_dsl.Operator;
+import co.elastic.clients.elasticsearch._types.query_dsl.Query;
+import co.elastic.clients.elasticsearch.core.MsearchResponse;
 import co.elastic.clients.elasticsearch.core.SearchResponse;
+import co.elastic.clients.elasticsearch.core.msearch.MultiSearchResponseItem;
+import co.elastic.clients.elasticsearch.core.msearch.MultisearchBody;
+import co.elastic.clients.elasticsearch.core.msearch.RequestItem;
+import co.elastic.clients.elasticsearch.core.search.Hit;
+import co.elastic.clients.elasticsearch.core.search.Rescore;
+import co.elastic.clients.elasticsearch.core.search.SourceConfig;
+import co.elastic.clients.json.JsonData;
+import com.baomidou.mybatisplus.core.toolkit.Wrappers;
+import org.buaa.rag.common.event.FeedbackRecordedEvent;
 import org.buaa.rag.config.RagConfiguration;
 import org.buaa.rag.dao.entity.DocumentDO;
-import org.buaa.rag.dao.entity.IndexedContentDO;
 import org.buaa.rag.dao.entity.MessageFeedbackDO;
+import org.buaa.rag.dao.entity.MessageSourceDO;
+import org.buaa.rag.dao.mapper.DocumentFeedbackStatsMapper;
 import org.buaa.rag.dao.mapper.DocumentMapper;
 import org.buaa.rag.dao.mapper.MessageFeedbackMapper;
 import org.buaa.rag.dao.mapper.MessageSourceMapper;
+import org.buaa.rag.dto.IndexedHit;
 import org.buaa.rag.dto.MetadataFilter;
+import org.buaa.rag.dto.QueryPlan;
+import org.buaa.rag.dto.RequestDeadline;
 import org.buaa.rag.dto.RetrievalMatch;
 import org.buaa.rag.service.SmartRetrieverService;
-import org.buaa.rag.tool.VectorEncoding;
+import org.buaa.rag.tool.AdaptiveRecallController;
+import org.buaa.rag.tool.DocumentAccessIndex;
+import org.buaa.rag.tool.DocumentMetadataCache;
+import org.buaa.rag.tool.MetadataFieldMigrator;
+import org.buaa.rag.tool.FeedbackBoostCache;
+import org.buaa.rag.tool.HybridScoreFusion;
+import org.buaa.rag.tool.LuceneIndexStore;
+import org.buaa.rag.tool.MatryoshkaVectors;
+import org.buaa.rag.tool.QueryEncodingBatcher;
+import org.buaa.rag.tool.QueryVectorCache;
+import org.buaa.rag.tool.RetrievalFanout;
+import org.buaa.rag.tool.RetrievalResultCache;
+import org.buaa.rag.tool.VectorQuantizer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
 
 import java.util.ArrayList;
 import java.util.Collections;
@@ -27,7 +58,15 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 /**
@@ -38,16 +77,55 @@ import java.util.stream.Collectors;
 public class SmartRetrieverServiceImpl implements SmartRetrieverService {
 
     private static final Logger log = LoggerFactory.getLogger(SmartRetrieverServiceImpl.class);
-    private static final int MAX_RECALL_SIZE = 300;
+    private static final SourceConfig HIT_SOURCE = SourceConfig.of(source -> source
+        .filter(filter -> filter.includes(IndexedHit.SOURCE_FIELDS))
+    );
+    private static final String EXACT_COSINE_SCRIPT =
+        "(cosineSimilarity(params.query_vector, 'vectorEmbedding') + 1.0) / 2.0";
+    /**
+     * 反馈加权可能改变排序，后置过滤保留 topK 的该倍数候选，读取缓存后再加权截断
+     */
+    private static final int FEEDBACK_CANDIDATE_FACTOR = 2;
+    /**
+     * 当前线程上的检索是否收到 Elasticsearch timed_out 的部分结果，此类结果不写入缓存
+     */
+    private static final ThreadLocal<Boolean> PARTIAL_RESULT = new ThreadLocal<>();
 
     @Value("${elasticsearch.index:knowledge_base}")
     private String knowledgeIndex;
 
     @Autowired
-    private ElasticsearchClient esClient;
+    private ElasticsearchAsyncClient esAsyncClient;
+
+    @Autowired
+    private QueryEncodingBatcher queryEncodingBatcher;
+
+    @Autowired
+    private QueryVectorCache queryVectorCache;
 
     @Autowired
-    private VectorEncoding encodingService;
+    private RetrievalFanout retrievalFanout;
+
+    @Autowired
+    private RetrievalResultCache retrievalResultCache;
+
+    @Autowired
+    private HybridScoreFusion hybridScoreFusion;
+
+    @Autowired
+    private AdaptiveRecallController recallController;
+
+    @Autowired
+    private LuceneIndexStore luceneIndexStore;
+
+    @Autowired
+    private DocumentAccessIndex accessIndex;
+
+    @Autowired
+    private DocumentMetadataCache documentMetadataCache;
+
+    @Autowired
+    private MetadataFieldMigrator metadataFieldMigrator;
 
     @Autowired
     private DocumentMapper documentMapper;
@@ -61,6 +139,15 @@ public class SmartRetrieverServiceImpl implements SmartRetrieverService {
     @Autowired
     private MessageSourceMapper sourceRepository;
 
+    @Autowired
+    private DocumentFeedbackStatsMapper feedbackStatsMapper;
+
+    @Autowired
+    private FeedbackBoostCache feedbackBoostCache;
+
+    @Autowired
+    private ApplicationEventPublisher eventPublisher;
+
     @Override
     public List<RetrievalMatch> retrieve(String queryText, int topK) {
         return retrieve(queryText, topK, null);
@@ -73,30 +160,24 @@ public class SmartRetrieverServiceImpl implements SmartRetrieverService {
 
     @Override
     public List<RetrievalMatch> retrieve(String queryText, int topK, String userId, MetadataFilter filter) {
-        try {
-            log.debug("执行混合检索 - 查询: {}, K值: {}", queryText, topK);
+        log.debug("执行混合检索 - 查询: {}, K值: {}", queryText, topK);
 
-            // 生成查询向量
-            final List<Float> queryVector = generateQueryVector(queryText);
-            
-            // 向量生成失败则降级到纯文本检索
-            if (queryVector == null) {
-                log.warn("向量生成失败，降级为纯文本检索");
-                return performTextOnlyRetrieval(queryText, topK, userId, filter);
-            }
+        String cacheKey = retrievalResultCache.buildKey(
+            "single", Collections.singletonList(queryText), topK, userId, filter);
+        List<List<RetrievalMatch>> cached = retrievalResultCache.get(cacheKey);
+        if (cached != null && !cached.isEmpty() && cached.get(0) != null) {
+            return rankWithFeedback(cached.get(0), topK);
+        }
 
-            // 执行混合检索
-            List<RetrievalMatch> matches = performHybridRetrieval(queryText, queryVector, topK);
-            
-            return filterAndEnrichMatches(matches, userId, topK, filter);
-        } catch (Exception e) {
-            if (isIndexMissing(e)) {
-                log.warn("索引 {} 不存在，返回空结果", knowledgeIndex);
-                return Collections.emptyList();
-            }
-            log.error("检索失败", e);
-            throw new RuntimeException("检索过程发生异常");
+        // 生成查询向量
+        List<Float> queryVector = generateQueryVector(queryText);
+        AtomicBoolean partial = new AtomicBoolean(false);
+        List<RetrievalMatch> results = trackPartial(() -> retrieveWithVector(
+            queryText, queryVector, topK, userId, filter, fusionDeadlineNanos()), partial);
+        if (!results.isEmpty() && !partial.get()) {
+            retrievalResultCache.put(cacheKey, Collections.singletonList(results));
         }
+        return rankWithFeedback(results, topK);
     }
 
     @Override
@@ -109,43 +190,100 @@ public class SmartRetrieverServiceImpl implements SmartRetrieverService {
                                                    int topK,
                                                    String userId,
                                                    MetadataFilter filter) {
-        try {
-            List<Float> vector = generateQueryVector(queryText);
-            if (vector == null) {
-                return Collections.emptyList();
-            }
+        List<Float> vector = generateQueryVector(queryText);
+        return rankWithFeedback(retrieveVectorOnlyWithVector(queryText, vector, topK, userId, filter), topK);
+    }
 
-            int recallSize = calculateRecallSize(queryText, topK);
-            SearchResponse<IndexedContentDO> response = esClient.search(searchBuilder -> {
-                searchBuilder.index(knowledgeIndex);
-                searchBuilder.knn(knnBuilder -> knnBuilder
-                    .field("vectorEmbedding")
-                    .queryVector(vector)
-                    .k(recallSize)
-                    .numCandidates(recallSize)
-                );
-                searchBuilder.size(topK);
-                return searchBuilder;
-            }, IndexedContentDO.class);
-
-            List<RetrievalMatch> results = response.hits().hits().stream()
-                .filter(hit -> hit.source() != null)
-                .map(hit -> new RetrievalMatch(
-                    hit.source().getSourceMd5(),
-                    hit.source().getSegmentNumber(),
-                    hit.source().getTextPayload(),
-                    hit.score()
-                ))
-                .collect(Collectors.toList());
+    @Override
+    public List<List<RetrievalMatch>> retrieveByPlan(QueryPlan plan,
+                                                     int topK,
+                                                     String userId,
+                                                     MetadataFilter filter) {
+        return retrieveByPlan(plan, topK, userId, filter, RequestDeadline.unbounded());
+    }
 
-            return filterAndEnrichMatches(results, userId, topK, filter);
-        } catch (Exception e) {
-            if (isIndexMissing(e)) {
-                log.warn("索引 {} 不存在，向量检索返回空结果", knowledgeIndex);
-                return Collections.emptyList();
+    @Override
+    public List<List<RetrievalMatch>> retrieveByPlan(QueryPlan plan,
+                                                     int topK,
+                                                     String userId,
+                                                     MetadataFilter filter,
+                                                     RequestDeadline deadline) {
+        long deadlineNanos = deadline.stageDeadlineNanos(ragConfiguration.getFusion().getTimeoutMillis());
+
+        List<String> hybridQueries = new ArrayList<>();
+        hybridQueries.add(plan.getOriginalQuery());
+        if (plan.getRewrittenQueries() != null) {
+            hybridQueries.addAll(plan.getRewrittenQueries());
+        }
+        String hydeAnswer = plan.getHydeAnswer();
+        boolean hasHyde = hydeAnswer != null && !hydeAnswer.isBlank();
+
+        List<String> allQueries = new ArrayList<>(hybridQueries);
+        if (hasHyde) {
+            allQueries.add(hydeAnswer);
+        }
+
+        String cacheKey = retrievalResultCache.buildKey("plan", allQueries, topK, userId, filter);
+        List<List<RetrievalMatch>> cached = retrievalResultCache.get(cacheKey);
+        if (cached != null && cached.size() == allQueries.size()) {
+            return rankPlanWithFeedback(cached, topK);
+        }
+
+        // 所有查询变体一次批量编码
+        Map<String, List<Float>> vectors = generateQueryVectors(allQueries, deadline);
+
+        List<List<RetrievalMatch>> results;
+        AtomicBoolean partial = new AtomicBoolean(false);
+        if (ragConfiguration.getFusion().isMultiSearch() && !luceneIndexStore.isEnabled()) {
+            results = trackPartial(() -> retrieveByMultiSearch(
+                hybridQueries,
+                hasHyde ? hydeAnswer : null,
+                vectors,
+                topK,
+                userId,
+                filter,
+                deadlineNanos
+            ), partial);
+            cachePlanResults(cacheKey, results, partial.get());
+            return rankPlanWithFeedback(results, topK);
+        }
+
+        // 各路检索并发执行，原始查询在当前线程执行；超时或被丢弃的改写/HyDE 分支返回 null
+        List<Callable<List<RetrievalMatch>>> branches = new ArrayList<>();
+        for (String query : hybridQueries) {
+            branches.add(() -> trackPartial(() -> retrieveWithVector(
+                query, vectors.get(query), topK, userId, filter, deadlineNanos), partial));
+        }
+        if (hasHyde) {
+            branches.add(() -> trackPartial(() -> retrieveVectorOnlyWithVector(
+                hydeAnswer,
+                vectors.get(hydeAnswer),
+                topK,
+                userId,
+                filter
+            ), partial));
+        }
+        results = retrievalFanout.invokeAll(branches, deadlineNanos, true);
+        cachePlanResults(cacheKey, results, partial.get());
+        return rankPlanWithFeedback(results, topK);
+    }
+
+    /**
+     * 缓存查询计划的检索结果；存在超时分支、部分结果或全部为空时不缓存，避免固化降级结果
+     */
+    private void cachePlanResults(String cacheKey, List<List<RetrievalMatch>> results, boolean partial) {
+        if (partial) {
+            return;
+        }
+        boolean anyHit = false;
+        for (List<RetrievalMatch> branch : results) {
+            if (branch == null) {
+                return;
             }
-            log.error("向量检索失败", e);
-            return Collections.emptyList();
+            anyHit |= !branch.isEmpty();
+        }
+        if (anyHit) {
+            retrievalResultCache.put(cacheKey, results);
         }
     }
 
@@ -154,8 +292,24 @@ public class SmartRetrieverServiceImpl implements SmartRetrieverService {
                                                  int topK,
                                                  String userId,
                                                  MetadataFilter filter) {
+        return retrieveTextOnly(queryText, topK, userId, filter, null);
+    }
+
+    @Override
+    public List<RetrievalMatch> retrieveTextOnly(String queryText,
+                                                 int topK,
+                                                 String userId,
+                                                 MetadataFilter filter,
+                                                 RequestDeadline deadline) {
+        String timeout = null;
+        long deadlineNanos = fusionDeadlineNanos();
+        if (deadline != null) {
+            deadlineNanos = deadline.stageDeadlineNanos(ragConfiguration.getFusion().getTimeoutMillis());
+            timeout = Math.max(1L, TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime())) + "ms";
+        }
         try {
-            return performTextOnlyRetrieval(queryText, topK, userId, filter);
+            return rankWithFeedback(
+                performTextOnlyRetrieval(queryText, topK, userId, filter, timeout, deadlineNanos), topK);
         } catch (Exception e) {
             if (isIndexMissing(e)) {
                 log.warn("索引 {} 不存在，文本检索返回空结果", knowledgeIndex);
@@ -167,6 +321,7 @@ public class SmartRetrieverServiceImpl implements SmartRetrieverService {
     }
 
     @Override
+    @Transactional
     public void recordFeedback(Long messageId, String userId, int score, String comment) {
         MessageFeedbackDO feedback = new MessageFeedbackDO();
         feedback.setMessageId(messageId);
@@ -174,6 +329,137 @@ public class SmartRetrieverServiceImpl implements SmartRetrieverService {
         feedback.setScore(score);
         feedback.setComment(comment);
         feedbackRepository.insert(feedback);
+
+        // 按来源记录数累加到文档反馈聚合，与按来源-反馈连接求平均的口径一致
+        Map<String, Long> referenceCounts = sourceRepository.selectList(Wrappers.lambdaQuery(MessageSourceDO.class)
+                .select(MessageSourceDO::getDocumentMd5)
+                .eq(MessageSourceDO::getMessageId, messageId))
+            .stream()
+            .map(MessageSourceDO::getDocumentMd5)
+            .filter(Objects::nonNull)
+            .collect(Collectors.groupingBy(md5 -> md5, Collectors.counting()));
+        if (referenceCounts.isEmpty()) {
+            return;
+        }
+        referenceCounts.forEach((md5, count) -> feedbackStatsMapper.accumulate(md5, score * count, count));
+        eventPublisher.publishEvent(new FeedbackRecordedEvent(referenceCounts.keySet()));
+    }
+
+    /**
+     * 使用已生成的查询向量执行混合检索
+     */
+    private List<RetrievalMatch> retrieveWithVector(String queryText,
+                                                    List<Float> queryVector,
+                                                    int topK,
+                                                    String userId,
+                                                    MetadataFilter filter,
+                                                    long deadlineNanos) {
+        try {
+            // 向量生成失败则降级到纯文本检索
+            if (queryVector == null) {
+                log.warn("向量生成失败，降级为纯文本检索");
+                return performTextOnlyRetrieval(queryText, topK, userId, filter, null, deadlineNanos);
+            }
+
+            // 执行混合检索
+            AdaptiveRecallController.QueryClass queryClass = recallController.classify(queryText, false);
+            int recallSize = recallController.recallSize(queryClass, topK);
+            long startNanos = System.nanoTime();
+            List<RetrievalMatch> matches = performHybridRetrieval(
+                queryText, queryVector, topK, recallSize, userId, filter, deadlineNanos);
+            recallController.recordLatency(queryClass, elapsedMillis(startNanos));
+            probeHybridRecall(queryClass, queryText, queryVector, topK, userId, filter);
+
+            return filterAndEnrichMatches(matches, userId, topK, filter);
+        } catch (Exception e) {
+            if (isIndexMissing(e)) {
+                log.warn("索引 {} 不存在，返回空结果", knowledgeIndex);
+                return Collections.emptyList();
+            }
+            log.error("检索失败", e);
+            throw new RuntimeException("检索过程发生异常");
+        }
+    }
+
+    /**
+     * 使用已生成的查询向量执行纯向量检索
+     */
+    private List<RetrievalMatch> retrieveVectorOnlyWithVector(String queryText,
+                                                              List<Float> vector,
+                                                              int topK,
+                                                              String userId,
+                                                              MetadataFilter filter) {
+        try {
+            if (vector == null) {
+                return Collections.emptyList();
+            }
+
+            AdaptiveRecallController.QueryClass queryClass = recallController.classify(queryText, true);
+            int recallSize = recallController.recallSize(queryClass, topK);
+            long startNanos = System.nanoTime();
+            List<RetrievalMatch> matches = searchVectorOnly(vector, topK, recallSize, userId, filter);
+            recallController.recordLatency(queryClass, elapsedMillis(startNanos));
+            recallController.probe(queryClass, topK,
+                recall -> searchVectorOnlyQuietly(vector, topK, recall, userId, filter));
+
+            return filterAndEnrichMatches(matches, userId, topK, filter);
+        } catch (Exception e) {
+            if (isIndexMissing(e)) {
+                log.warn("索引 {} 不存在，向量检索返回空结果", knowledgeIndex);
+                return Collections.emptyList();
+            }
+            log.error("向量检索失败", e);
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * 纯向量召回（未做权限与元数据后过滤）
+     */
+    private List<RetrievalMatch> searchVectorOnly(List<Float> vector,
+                                                  int topK,
+                                                  int recallSize,
+                                                  String userId,
+                                                  MetadataFilter filter) throws Exception {
+        if (luceneIndexStore.isEnabled()) {
+            return luceneIndexStore.searchVector(
+                toVectorArray(vector), topK, recallSize, normalizeUserId(userId), filter);
+        }
+        SearchResponse<IndexedHit> response = searchWithBody(
+            buildVectorOnlyBody(vector, recallSize, recallSize, topK, buildSearchFilters(userId, filter), null),
+            fusionDeadlineNanos()
+        );
+        return toMatches(response.hits().hits());
+    }
+
+    private List<RetrievalMatch> searchVectorOnlyQuietly(List<Float> vector,
+                                                         int topK,
+                                                         int recallSize,
+                                                         String userId,
+                                                         MetadataFilter filter) {
+        try {
+            return searchVectorOnly(vector, topK, recallSize, userId, filter);
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * 抽样比较混合检索在当前召回数与加深召回数下的 top-K
+     */
+    private void probeHybridRecall(AdaptiveRecallController.QueryClass queryClass,
+                                   String query,
+                                   List<Float> vector,
+                                   int topK,
+                                   String userId,
+                                   MetadataFilter filter) {
+        recallController.probe(queryClass, topK, recall -> {
+            try {
+                return performHybridRetrieval(query, vector, topK, recall, userId, filter, fusionDeadlineNanos());
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
     }
 
     /**
@@ -181,59 +467,39 @@ public class SmartRetrieverServiceImpl implements SmartRetrieverService {
      */
     private List<RetrievalMatch> performHybridRetrieval(String query, 
                                                         List<Float> vector, 
-                                                        int topK) throws Exception {
-        int recallSize = calculateRecallSize(query, topK);
-        Operator matchOperator = resolveOperator(query);
+                                                        int topK,
+                                                        int recallSize,
+                                                        String userId,
+                                                        MetadataFilter filter,
+                                                        long deadlineNanos) throws Exception {
+        if (luceneIndexStore.isEnabled()) {
+            return performLuceneHybridRetrieval(query, vector, topK, recallSize, userId, filter);
+        }
+
+        List<Query> searchFilters = buildSearchFilters(userId, filter);
         
         try {
-            SearchResponse<IndexedContentDO> response = esClient.search(searchBuilder -> {
-                // kNN向量召回
-                searchBuilder.index(knowledgeIndex);
-                searchBuilder.knn(knnBuilder -> knnBuilder
-                    .field("vectorEmbedding")
-                    .queryVector(vector)
-                    .k(recallSize)
-                    .numCandidates(recallSize)
-                );
-
-                // 文本匹配过滤
-                searchBuilder.query(queryBuilder -> queryBuilder
-                    .match(matchBuilder -> matchBuilder
-                        .field("textPayload")
-                        .query(query)
-                        .operator(matchOperator)
-                    )
-                );
-
-                // BM25重排序
-                searchBuilder.rescore(rescoreBuilder -> rescoreBuilder
-                    .windowSize(recallSize)
-                    .query(rescoreQueryBuilder -> rescoreQueryBuilder
-                        .queryWeight(0.2)  // 向量得分权重
-                        .rescoreQueryWeight(1.0)  // BM25得分权重
-                        .query(innerQueryBuilder -> innerQueryBuilder
-                            .match(matchBuilder -> matchBuilder
-                                .field("textPayload")
-                                .query(query)
-                                .operator(matchOperator)
-                            )
-                        )
-                    )
-                );
-                
-                searchBuilder.size(topK);
-                return searchBuilder;
-            }, IndexedContentDO.class);
-
-            return response.hits().hits().stream()
-                .filter(hit -> hit.source() != null)
-                .map(hit -> new RetrievalMatch(
-                    hit.source().getSourceMd5(),
-                    hit.source().getSegmentNumber(),
-                    hit.source().getTextPayload(),
-                    hit.score()
-                ))
-                .collect(Collectors.toList());
+            if (isLinearHybrid()) {
+                // kNN 与 BM25 两路召回合并为一次 _msearch
+                List<RequestItem> legs = buildHybridBodies(query, vector, topK, recallSize, searchFilters, null).stream()
+                    .map(this::buildRequestItem)
+                    .collect(Collectors.toList());
+                MsearchResponse<IndexedHit> response = awaitResponse(
+                    esAsyncClient.msearch(m -> m.index(knowledgeIndex).searches(legs), IndexedHit.class),
+                    deadlineNanos);
+                List<RetrievalMatch> fused = combineHybridItems(response.responses(), 0, legs.size(), topK);
+                if (fused == null) {
+                    throw new IllegalStateException("混合检索两路召回均失败");
+                }
+                return fused;
+            }
+
+            SearchResponse<IndexedHit> response = searchWithBody(
+                buildHybridBodies(query, vector, topK, recallSize, searchFilters, null).get(0),
+                deadlineNanos
+            );
+
+            return toMatches(response.hits().hits());
         } catch (Exception e) {
             if (isIndexMissing(e)) {
                 log.warn("索引 {} 不存在，混合检索返回空结果", knowledgeIndex);
@@ -243,10 +509,490 @@ public class SmartRetrieverServiceImpl implements SmartRetrieverService {
         }
     }
 
-    private int calculateRecallSize(String query, int topK) {
-        int factor = isShortQuery(query) ? 50 : 30;
-        int recall = topK * factor;
-        return Math.min(recall, MAX_RECALL_SIZE);
+    /**
+     * 嵌入式 Lucene 混合检索
+     * HNSW 与 BM25 两路独立召回后按 LINEAR 模式的归一化加权融合，进程内检索无需重排序阶段
+     */
+    private List<RetrievalMatch> performLuceneHybridRetrieval(String query,
+                                                              List<Float> vector,
+                                                              int topK,
+                                                              int recallSize,
+                                                              String userId,
+                                                              MetadataFilter filter) throws Exception {
+        int candidates = Math.min(recallSize, topK * Math.max(1, ragConfiguration.getHybrid().getCandidateFactor()));
+        String normalizedUserId = normalizeUserId(userId);
+        List<RetrievalMatch> vectorMatches = luceneIndexStore.searchVector(
+            toVectorArray(vector), candidates, recallSize, normalizedUserId, filter);
+        List<RetrievalMatch> textMatches = luceneIndexStore.searchText(
+            query, candidates, false, normalizedUserId, filter);
+        return hybridScoreFusion.fuse(vectorMatches, textMatches, topK);
+    }
+
+    /**
+     * 通过一次 _msearch 请求执行查询计划中的全部检索分支
+     *
+     * <p>原始查询与改写查询走混合检索（向量缺失时降级为纯文本），HyDE 走纯向量检索；
+     * LINEAR 模式下每个混合分支拆为 kNN 与 BM25 两个请求项。
+     * 各分支的超时通过请求体 timeout 下发给 Elasticsearch。</p>
+     *
+     * @return 与分支顺序一致的结果，失败的分支为 null
+     */
+    private List<List<RetrievalMatch>> retrieveByMultiSearch(List<String> hybridQueries,
+                                                             String hydeAnswer,
+                                                             Map<String, List<Float>> vectors,
+                                                             int topK,
+                                                             String userId,
+                                                             MetadataFilter filter,
+                                                             long deadlineNanos) {
+        int branchCount = hybridQueries.size() + (hydeAnswer != null ? 1 : 0);
+        List<Query> searchFilters = buildSearchFilters(userId, filter);
+        String timeout = Math.max(1L, TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime())) + "ms";
+
+        // 向量缺失的 HyDE 分支不下发，直接返回空结果
+        List<BranchSlice> slices = new ArrayList<>(branchCount);
+        List<RequestItem> searches = new ArrayList<>();
+        List<AdaptiveRecallController.QueryClass> branchClasses = new ArrayList<>(branchCount);
+        for (int i = 0; i < hybridQueries.size(); i++) {
+            String query = hybridQueries.get(i);
+            AdaptiveRecallController.QueryClass queryClass = recallController.classify(query, false);
+            branchClasses.add(queryClass);
+            List<MultisearchBody> bodies = buildHybridBodies(
+                query, vectors.get(query), topK, recallController.recallSize(queryClass, topK), searchFilters, timeout);
+            slices.add(new BranchSlice(i, searches.size(), bodies.size()));
+            bodies.forEach(body -> searches.add(buildRequestItem(body)));
+        }
+        if (hydeAnswer != null) {
+            branchClasses.add(AdaptiveRecallController.QueryClass.VECTOR);
+        }
+        if (hydeAnswer != null && vectors.get(hydeAnswer) != null) {
+            int hydeRecallSize = recallController.recallSize(AdaptiveRecallController.QueryClass.VECTOR, topK);
+            slices.add(new BranchSlice(hybridQueries.size(), searches.size(), 1));
+            searches.add(buildRequestItem(buildVectorOnlyBody(
+                vectors.get(hydeAnswer),
+                hydeRecallSize,
+                hydeRecallSize,
+                topK,
+                searchFilters,
+                timeout
+            )));
+        }
+
+        List<List<RetrievalMatch>> results = new ArrayList<>(Collections.nCopies(branchCount, null));
+        if (hydeAnswer != null && vectors.get(hydeAnswer) == null) {
+            results.set(hybridQueries.size(), Collections.emptyList());
+        }
+        if (searches.isEmpty()) {
+            return results;
+        }
+
+        MsearchResponse<IndexedHit> response;
+        try {
+            response = awaitResponse(
+                esAsyncClient.msearch(m -> m.index(knowledgeIndex).searches(searches), IndexedHit.class),
+                deadlineNanos);
+        } catch (TimeoutException e) {
+            log.warn("多路检索请求超出截止时间，已放弃等待");
+            return results;
+        } catch (Exception e) {
+            if (isIndexMissing(e)) {
+                log.warn("索引 {} 不存在，多路检索返回空结果", knowledgeIndex);
+                slices.forEach(slice -> results.set(slice.branch, Collections.emptyList()));
+            } else {
+                log.error("多路检索请求失败", e);
+            }
+            return results;
+        }
+
+        // 多个分支共用一次请求，整体耗时受最慢分支支配；各分支按自身响应项的 took 计入所属类别
+        List<MultiSearchResponseItem<IndexedHit>> items = response.responses();
+        for (BranchSlice slice : slices) {
+            long tookMillis = branchTookMillis(items, slice);
+            if (tookMillis >= 0) {
+                recallController.recordLatency(branchClasses.get(slice.branch), tookMillis);
+            }
+        }
+        for (int i = 0; i < hybridQueries.size(); i++) {
+            String query = hybridQueries.get(i);
+            if (vectors.get(query) != null) {
+                probeHybridRecall(branchClasses.get(i), query, vectors.get(query), topK, userId, filter);
+            }
+        }
+        if (hydeAnswer != null && vectors.get(hydeAnswer) != null) {
+            List<Float> hydeVector = vectors.get(hydeAnswer);
+            recallController.probe(AdaptiveRecallController.QueryClass.VECTOR, topK,
+                recall -> searchVectorOnlyQuietly(hydeVector, topK, recall, userId, filter));
+        }
+
+        for (BranchSlice slice : slices) {
+            if (slice.offset + slice.count > items.size()) {
+                continue;
+            }
+            List<RetrievalMatch> matches = combineHybridItems(items, slice.offset, slice.count, topK);
+            if (matches != null) {
+                results.set(slice.branch, filterAndEnrichMatches(matches, userId, topK, filter));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * 分支在 _msearch 中的服务端耗时（多个请求项并行执行，取最大值），无成功响应项时返回 -1
+     */
+    private static long branchTookMillis(List<MultiSearchResponseItem<IndexedHit>> items, BranchSlice slice) {
+        long took = -1;
+        for (int i = slice.offset; i < slice.offset + slice.count && i < items.size(); i++) {
+            MultiSearchResponseItem<IndexedHit> item = items.get(i);
+            if (item.isResult()) {
+                took = Math.max(took, item.result().took());
+            }
+        }
+        return took;
+    }
+
+    /**
+     * 构建混合检索请求体
+     *
+     * <p>向量缺失时降级为单个纯文本请求；RESCORE 模式为 kNN + 文本匹配的单个请求，
+     * 仅在查询足够长时附加 BM25 重排序；LINEAR 模式返回 kNN 与 BM25 两个独立召回请求。</p>
+     *
+     * @param recallSize kNN 召回数
+     * @param timeout    单个请求的超时，null 表示不设置
+     */
+    private List<MultisearchBody> buildHybridBodies(String query,
+                                                    List<Float> vector,
+                                                    int topK,
+                                                    int recallSize,
+                                                    List<Query> searchFilters,
+                                                    String timeout) {
+        if (vector == null) {
+            return List.of(MultisearchBody.of(body -> body
+                .query(buildTextQuery(query, null, searchFilters))
+                .size(topK)
+                .source(HIT_SOURCE)
+                .timeout(timeout)
+            ));
+        }
+
+        RagConfiguration.Hybrid config = ragConfiguration.getHybrid();
+        if (isLinearHybrid()) {
+            int candidates = Math.min(recallSize, topK * Math.max(1, config.getCandidateFactor()));
+            MultisearchBody vectorLeg = buildVectorOnlyBody(vector, candidates, recallSize, candidates, searchFilters, timeout);
+            // 文本召回独立进行，使用 OR 匹配避免过滤掉向量相关但词面不完全一致的片段
+            MultisearchBody textLeg = MultisearchBody.of(body -> body
+                .query(buildTextQuery(query, Operator.Or, searchFilters))
+                .size(candidates)
+                .source(HIT_SOURCE)
+                .timeout(timeout)
+            );
+            return List.of(vectorLeg, textLeg);
+        }
+
+        Operator matchOperator = resolveOperator(query);
+        Query textQuery = buildTextQuery(query, matchOperator, searchFilters);
+        int knnK = isCoarseRecall() ? oversample(recallSize) : recallSize;
+        List<Rescore> rescores = new ArrayList<>();
+        if (isCoarseRecall()) {
+            // 粗召回的近似向量得分替换为精确余弦得分，文本匹配得分保持不变
+            rescores.add(buildExactVectorRescore(vector, textQuery, knnK));
+        }
+        if (shouldRescore(query, topK)) {
+            int rescoreWindow = recallController.rescoreWindow(
+                recallController.classify(query, false), config.getRescoreWindow(), topK, recallSize);
+            rescores.add(buildBm25Rescore(query, matchOperator, rescoreWindow));
+        }
+        return List.of(MultisearchBody.of(body -> {
+            body.knn(buildKnnQuery(vector, knnK, knnK, searchFilters))
+                .query(textQuery)
+                .size(topK)
+                .source(HIT_SOURCE)
+                .timeout(timeout);
+            if (!rescores.isEmpty()) {
+                body.rescore(rescores);
+            }
+            return body;
+        }));
+    }
+
+    /**
+     * 构建纯向量检索请求体
+     * 粗召回模式（Matryoshka 前缀或 int8 量化）下按 oversample 放大召回数，再以完整浮点向量精确余弦重排序
+     */
+    private MultisearchBody buildVectorOnlyBody(List<Float> vector,
+                                                int k,
+                                                int numCandidates,
+                                                int size,
+                                                List<Query> searchFilters,
+                                                String timeout) {
+        int knnK = isCoarseRecall() ? oversample(k) : k;
+        return MultisearchBody.of(body -> {
+            body.knn(buildKnnQuery(vector, knnK, Math.max(numCandidates, knnK), searchFilters))
+                .size(size)
+                .source(HIT_SOURCE)
+                .timeout(timeout);
+            if (isCoarseRecall()) {
+                body.rescore(buildExactVectorRescore(vector, null, knnK));
+            }
+            return body;
+        });
+    }
+
+    /**
+     * 以单次 search 请求执行请求体（非 _msearch 路径）
+     */
+    private SearchResponse<IndexedHit> searchWithBody(MultisearchBody body, long deadlineNanos) throws Exception {
+        SearchResponse<IndexedHit> response = awaitResponse(esAsyncClient.search(searchBuilder -> {
+            searchBuilder.index(knowledgeIndex).size(body.size()).source(body.source());
+            if (!body.knn().isEmpty()) {
+                searchBuilder.knn(body.knn());
+            }
+            if (body.query() != null) {
+                searchBuilder.query(body.query());
+            }
+            if (!body.rescore().isEmpty()) {
+                searchBuilder.rescore(body.rescore());
+            }
+            if (body.timeout() != null) {
+                searchBuilder.timeout(body.timeout());
+            }
+            return searchBuilder;
+        }, IndexedHit.class), deadlineNanos);
+        if (response.timedOut()) {
+            PARTIAL_RESULT.set(Boolean.TRUE);
+        }
+        return response;
+    }
+
+    /**
+     * 执行一路检索并记录其是否返回了部分结果（检索在当前线程内完成）
+     */
+    private static <T> T trackPartial(Supplier<T> task, AtomicBoolean partial) {
+        PARTIAL_RESULT.remove();
+        try {
+            return task.get();
+        } finally {
+            if (Boolean.TRUE.equals(PARTIAL_RESULT.get())) {
+                partial.set(true);
+            }
+            PARTIAL_RESULT.remove();
+        }
+    }
+
+    /**
+     * 在截止时间内等待异步请求结果，超时后取消请求并抛出 {@link TimeoutException}
+     *
+     * <p>请求体中的 timeout 只让 Elasticsearch 返回部分结果，不能约束集群无响应的情况，因此客户端侧同样设限。</p>
+     */
+    private static <T> T awaitResponse(CompletableFuture<T> future, long deadlineNanos) throws Exception {
+        try {
+            return future.get(Math.max(0L, deadlineNanos - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            throw e;
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw e;
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception cause ? cause : e;
+        }
+    }
+
+    private long fusionDeadlineNanos() {
+        return System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ragConfiguration.getFusion().getTimeoutMillis());
+    }
+
+    /**
+     * 合并一个分支对应的 _msearch 响应项
+     *
+     * @return 单项时直接转换，两项时按 kNN、BM25 顺序融合；全部失败返回 null
+     */
+    private List<RetrievalMatch> combineHybridItems(List<MultiSearchResponseItem<IndexedHit>> items,
+                                                    int offset,
+                                                    int count,
+                                                    int topK) {
+        List<List<RetrievalMatch>> legs = new ArrayList<>(count);
+        boolean anySucceeded = false;
+        for (int i = offset; i < offset + count; i++) {
+            MultiSearchResponseItem<IndexedHit> item = items.get(i);
+            if (item.isResult()) {
+                legs.add(toMatches(item.result().hits().hits()));
+                anySucceeded = true;
+                if (item.result().timedOut()) {
+                    PARTIAL_RESULT.set(Boolean.TRUE);
+                }
+            } else if (item.isFailure() && isIndexMissing(item.failure())) {
+                legs.add(Collections.emptyList());
+                anySucceeded = true;
+            } else {
+                log.warn("检索请求项 {} 执行失败: {}", i,
+                    item.isFailure() ? item.failure().error().reason() : "unknown");
+                legs.add(Collections.emptyList());
+            }
+        }
+        if (!anySucceeded) {
+            return null;
+        }
+        if (count == 1) {
+            return legs.get(0);
+        }
+        return hybridScoreFusion.fuse(legs.get(0), legs.get(1), topK);
+    }
+
+    private boolean isMatryoshka() {
+        return ragConfiguration.getMatryoshka().isEnabled();
+    }
+
+    private boolean isQuantized() {
+        return ragConfiguration.getQuantization().getMode() == RagConfiguration.Quantization.Mode.INT8;
+    }
+
+    /**
+     * kNN 是否在近似字段上粗召回（需要精确向量重排序）
+     */
+    private boolean isCoarseRecall() {
+        return isMatryoshka() || isQuantized();
+    }
+
+    private int oversample(int k) {
+        double factor = isMatryoshka()
+            ? ragConfiguration.getMatryoshka().getOversample()
+            : ragConfiguration.getQuantization().getOversample();
+        return (int) Math.ceil(k * Math.max(1.0, factor));
+    }
+
+    private boolean isLinearHybrid() {
+        return ragConfiguration.getHybrid().getMode() == RagConfiguration.Hybrid.Mode.LINEAR;
+    }
+
+    /**
+     * 仅在查询足够长时做 BM25 重排序：短查询使用 OR 匹配，词面得分区分度低，重排序收益有限
+     */
+    private boolean shouldRescore(String query, int topK) {
+        RagConfiguration.Hybrid config = ragConfiguration.getHybrid();
+        if (!config.isRescoreEnabled() || config.getRescoreWindow() <= topK || query == null) {
+            return false;
+        }
+        return query.trim().length() >= config.getRescoreMinQueryLength();
+    }
+
+    private RequestItem buildRequestItem(MultisearchBody body) {
+        return RequestItem.of(item -> item
+            .header(header -> header.index(knowledgeIndex))
+            .body(body)
+        );
+    }
+
+    /**
+     * kNN 向量召回（权限与元数据过滤在召回阶段生效）
+     * Matryoshka 模式检索低维前缀字段，量化模式检索 int8 向量字段
+     */
+    private KnnQuery buildKnnQuery(List<Float> vector, int k, int numCandidates, List<Query> searchFilters) {
+        String field;
+        List<Float> queryVector;
+        if (isMatryoshka()) {
+            field = "vectorPrefix";
+            queryVector = MatryoshkaVectors.prefix(vector, ragConfiguration.getMatryoshka().getPrefixDimension());
+        } else if (isQuantized()) {
+            field = "vectorQuantized";
+            queryVector = VectorQuantizer.quantizeInt8(vector);
+        } else {
+            field = "vectorEmbedding";
+            queryVector = vector;
+        }
+        return KnnQuery.of(knnBuilder -> knnBuilder
+            .field(field)
+            .queryVector(queryVector)
+            .k(k)
+            .numCandidates(numCandidates)
+            .filter(searchFilters)
+        );
+    }
+
+    /**
+     * 文本匹配查询，operator 为 null 时使用默认匹配方式
+     */
+    private Query buildTextQuery(String query, Operator operator, List<Query> searchFilters) {
+        return Query.of(queryBuilder -> queryBuilder
+            .bool(boolBuilder -> boolBuilder
+                .must(mustBuilder -> mustBuilder
+                    .match(matchBuilder -> {
+                        matchBuilder.field("textPayload").query(query);
+                        if (operator != null) {
+                            matchBuilder.operator(operator);
+                        }
+                        return matchBuilder;
+                    })
+                )
+                .filter(searchFilters)
+            )
+        );
+    }
+
+    /**
+     * 精确向量重排序
+     * 以浮点向量计算余弦得分（与 kNN 的 (1 + cos) / 2 得分口径一致）替换召回阶段的近似得分，
+     * textQuery 不为空时一并计入文本匹配得分
+     */
+    private Rescore buildExactVectorRescore(List<Float> vector, Query textQuery, int windowSize) {
+        Query exactVectorQuery = Query.of(q -> q.scriptScore(scriptScore -> scriptScore
+            .query(inner -> inner.matchAll(matchAll -> matchAll))
+            .script(script -> script.inline(inline -> inline
+                .source(EXACT_COSINE_SCRIPT)
+                .params("query_vector", JsonData.of(vector))
+            ))
+        ));
+        return Rescore.of(rescoreBuilder -> rescoreBuilder
+            .windowSize(windowSize)
+            .query(rescoreQueryBuilder -> rescoreQueryBuilder
+                .queryWeight(0.0)
+                .rescoreQueryWeight(1.0)
+                .query(innerQueryBuilder -> innerQueryBuilder
+                    .bool(boolBuilder -> {
+                        boolBuilder.should(exactVectorQuery);
+                        if (textQuery != null) {
+                            boolBuilder.should(textQuery);
+                        }
+                        return boolBuilder;
+                    })
+                )
+            )
+        );
+    }
+
+    /**
+     * BM25重排序
+     */
+    private Rescore buildBm25Rescore(String query, Operator operator, int windowSize) {
+        return Rescore.of(rescoreBuilder -> rescoreBuilder
+            .windowSize(windowSize)
+            .query(rescoreQueryBuilder -> rescoreQueryBuilder
+                .queryWeight(0.2)  // 向量得分权重
+                .rescoreQueryWeight(1.0)  // BM25得分权重
+                .query(innerQueryBuilder -> innerQueryBuilder
+                    .match(matchBuilder -> matchBuilder
+                        .field("textPayload")
+                        .query(query)
+                        .operator(operator)
+                    )
+                )
+            )
+        );
+    }
+
+    private List<RetrievalMatch> toMatches(List<Hit<IndexedHit>> hits) {
+        return hits.stream()
+            .filter(hit -> hit.source() != null)
+            .map(hit -> new RetrievalMatch(
+                hit.source().getSourceMd5(),
+                hit.source().getSegmentNumber(),
+                hit.source().getTextPayload(),
+                hit.score()
+            ))
+            .collect(Collectors.toList());
+    }
+
+    private long elapsedMillis(long startNanos) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
     }
 
     private Operator resolveOperator(String query) {
@@ -266,33 +1012,26 @@ public class SmartRetrieverServiceImpl implements SmartRetrieverService {
     private List<RetrievalMatch> performTextOnlyRetrieval(String query,
                                                           int topK,
                                                           String userId,
-                                                          MetadataFilter filter)
+                                                          MetadataFilter filter,
+                                                          String timeout,
+                                                          long deadlineNanos)
             throws Exception {
+        if (luceneIndexStore.isEnabled()) {
+            List<RetrievalMatch> matches = luceneIndexStore.searchText(
+                query, topK, false, normalizeUserId(userId), filter);
+            return filterAndEnrichMatches(matches, userId, topK, filter);
+        }
+
+        List<Query> searchFilters = buildSearchFilters(userId, filter);
         try {
-            SearchResponse<IndexedContentDO> response = esClient.search(searchBuilder ->
-                searchBuilder
-                    .index(knowledgeIndex)
-                    .query(queryBuilder -> queryBuilder
-                        .match(matchBuilder -> matchBuilder
-                            .field("textPayload")
-                            .query(query)
-                        )
-                    )
-                    .size(topK),
-                IndexedContentDO.class
-            );
+            SearchResponse<IndexedHit> response = searchWithBody(MultisearchBody.of(body -> body
+                .query(buildTextQuery(query, null, searchFilters))
+                .size(topK)
+                .source(HIT_SOURCE)
+                .timeout(timeout)
+            ), deadlineNanos);
 
-            List<RetrievalMatch> results = response.hits().hits().stream()
-                .filter(hit -> hit.source() != null)
-                .map(hit -> new RetrievalMatch(
-                    hit.source().getSourceMd5(),
-                    hit.source().getSegmentNumber(),
-                    hit.source().getTextPayload(),
-                    hit.score()
-                ))
-                .collect(Collectors.toList());
-            
-            return filterAndEnrichMatches(results, userId, topK, filter);
+            return filterAndEnrichMatches(toMatches(response.hits().hits()), userId, topK, filter);
         } catch (Exception e) {
             if (isIndexMissing(e)) {
                 log.warn("索引 {} 不存在，文本检索返回空结果", knowledgeIndex);
@@ -302,29 +1041,139 @@ public class SmartRetrieverServiceImpl implements SmartRetrieverService {
         }
     }
 
+    /**
+     * 构建 Elasticsearch 过滤条件
+     *
+     * <p>权限：PUBLIC 文档或本人上传的文档；元数据：与 {@link DocumentMetadataCache.CompiledMetadata#matches} 一致的
+     * 大小写不敏感包含匹配。索引端元数据已按小写存储。</p>
+     */
+    private List<Query> buildSearchFilters(String userId, MetadataFilter filter) {
+        List<Query> filters = new ArrayList<>();
+        if (!metadataFieldMigrator.isFilterReady()) {
+            // 旧分块尚未回填权限字段，仅依赖后置过滤
+            return filters;
+        }
+        String normalizedUserId = normalizeUserId(userId);
+        filters.add(Query.of(q -> q.bool(b -> b
+            .should(s -> s.term(t -> t.field("visibility").value("PUBLIC")))
+            .should(s -> s.term(t -> t.field("ownerId").value(normalizedUserId)))
+            .minimumShouldMatch("1")
+        )));
+
+        if (filter == null || filter.isEmpty()) {
+            return filters;
+        }
+        addContainsFilter(filters, "department", filter.getDepartment());
+        addContainsFilter(filters, "docType", filter.getDocType());
+        addContainsFilter(filters, "policyYear", filter.getPolicyYear());
+
+        List<String> filterTags = filter.normalizedTags();
+        if (!filterTags.isEmpty()) {
+            List<Query> tagQueries = filterTags.stream()
+                .map(tag -> buildContainsQuery("tags", tag))
+                .collect(Collectors.toList());
+            filters.add(Query.of(q -> q.bool(b -> b
+                .should(tagQueries)
+                .minimumShouldMatch("1")
+            )));
+        }
+        return filters;
+    }
+
+    private void addContainsFilter(List<Query> filters, String field, String expected) {
+        if (expected == null || expected.isBlank()) {
+            return;
+        }
+        filters.add(buildContainsQuery(field, expected));
+    }
+
+    private Query buildContainsQuery(String field, String expected) {
+        String pattern = "*" + escapeWildcard(expected.trim().toLowerCase(Locale.ROOT)) + "*";
+        return Query.of(q -> q.wildcard(w -> w.field(field).value(pattern)));
+    }
+
+    private String escapeWildcard(String value) {
+        return value.replace("\\", "\\\\")
+            .replace("*", "\\*")
+            .replace("?", "\\?");
+    }
+
+    /**
+     * 批量生成查询向量
+     * 先查缓存，未命中的文本经微批层编码（与并发请求合并）
+     */
+    private Map<String, List<Float>> generateQueryVectors(List<String> texts, RequestDeadline deadline) {
+        Map<String, List<Float>> vectors = new HashMap<>();
+        List<String> pending = new ArrayList<>();
+        for (String text : texts) {
+            if (text == null || vectors.containsKey(text) || pending.contains(text)) {
+                continue;
+            }
+            float[] cached = queryVectorCache.get(text);
+            if (cached != null) {
+                vectors.put(text, toVectorList(cached));
+            } else {
+                pending.add(text);
+            }
+        }
+        if (pending.isEmpty()) {
+            return vectors;
+        }
+
+        try {
+            List<float[]> encoded = queryEncodingBatcher.encodeAll(pending, deadline);
+            if (encoded == null || encoded.size() != pending.size()) {
+                log.warn("批量向量编码结果数量异常，期望: {}, 实际: {}",
+                    pending.size(), encoded == null ? 0 : encoded.size());
+                return vectors;
+            }
+            for (int i = 0; i < pending.size(); i++) {
+                queryVectorCache.put(pending.get(i), encoded.get(i));
+                vectors.put(pending.get(i), toVectorList(encoded.get(i)));
+            }
+        } catch (Exception e) {
+            log.error("批量向量生成失败", e);
+        }
+        return vectors;
+    }
+
     /**
      * 生成查询向量
      */
     private List<Float> generateQueryVector(String text) {
         try {
-            List<float[]> vectors = encodingService.encode(List.of(text));
-            if (vectors == null || vectors.isEmpty()) {
-                log.warn("向量编码返回空结果");
-                return null;
-            }
-            
-            float[] vectorArray = vectors.get(0);
-            List<Float> vectorList = new ArrayList<>(vectorArray.length);
-            for (float value : vectorArray) {
-                vectorList.add(value);
+            float[] vectorArray = queryVectorCache.get(text);
+            if (vectorArray == null) {
+                vectorArray = queryEncodingBatcher.encode(text);
+                if (vectorArray == null) {
+                    log.warn("向量编码返回空结果");
+                    return null;
+                }
+                queryVectorCache.put(text, vectorArray);
             }
-            return vectorList;
+            return toVectorList(vectorArray);
         } catch (Exception e) {
             log.error("向量生成失败", e);
             return null;
         }
     }
 
+    private float[] toVectorArray(List<Float> vectorList) {
+        float[] vectorArray = new float[vectorList.size()];
+        for (int i = 0; i < vectorArray.length; i++) {
+            vectorArray[i] = vectorList.get(i);
+        }
+        return vectorArray;
+    }
+
+    private List<Float> toVectorList(float[] vectorArray) {
+        List<Float> vectorList = new ArrayList<>(vectorArray.length);
+        for (float value : vectorArray) {
+            vectorList.add(value);
+        }
+        return vectorList;
+    }
+
     /**
      * 为检索结果补充文件名
      */
@@ -371,11 +1220,17 @@ public class SmartRetrieverServiceImpl implements SmartRetrieverService {
         }
 
         String normalizedUserId = normalizeUserId(userId);
-        Set<String> allowedMd5 = resolveAccessibleDocuments(normalizedUserId);
-
-        List<RetrievalMatch> filtered = matches.stream()
-            .filter(match -> allowedMd5.contains(match.getFileMd5()))
-            .collect(Collectors.toList());
+        List<RetrievalMatch> filtered;
+        if (accessIndex.isReady()) {
+            filtered = matches.stream()
+                .filter(match -> accessIndex.canAccess(normalizedUserId, match.getFileMd5()))
+                .collect(Collectors.toList());
+        } else {
+            Set<String> allowedMd5 = resolveAccessibleDocuments(normalizedUserId);
+            filtered = matches.stream()
+                .filter(match -> allowedMd5.contains(match.getFileMd5()))
+                .collect(Collectors.toList());
+        }
 
         if (filtered.size() > topK) {
             return filtered.subList(0, topK);
@@ -397,31 +1252,60 @@ public class SmartRetrieverServiceImpl implements SmartRetrieverService {
             return Collections.emptyList();
         }
 
-        Map<String, DocumentDO> recordMap = loadDocumentRecords(accessFiltered);
+        Set<String> md5Set = accessFiltered.stream()
+            .map(RetrievalMatch::getFileMd5)
+            .collect(Collectors.toSet());
+        Map<String, DocumentMetadataCache.CompiledMetadata> metadataMap = documentMetadataCache.getAll(md5Set);
+        DocumentMetadataCache.CompiledFilter compiledFilter = DocumentMetadataCache.compileFilter(filter);
         List<RetrievalMatch> filtered = new ArrayList<>();
 
         for (RetrievalMatch match : accessFiltered) {
-            DocumentDO record = recordMap.get(match.getFileMd5());
-            if (record == null) {
-                continue;
-            }
-            if (!matchesMetadata(record, filter)) {
+            DocumentMetadataCache.CompiledMetadata metadata = metadataMap.get(match.getFileMd5());
+            if (metadata == null || !metadata.matches(compiledFilter)) {
                 continue;
             }
-            match.setSourceFileName(record.getOriginalFileName());
+            match.setSourceFileName(metadata.getOriginalFileName());
             filtered.add(match);
         }
 
-        applyFeedbackBoost(filtered);
-
-        if (filtered.size() > topK) {
-            return filtered.subList(0, topK);
+        // 反馈加权在读取缓存之后进行，缓存中只保存未加权的候选
+        int window = isFeedbackEnabled() ? topK * FEEDBACK_CANDIDATE_FACTOR : topK;
+        if (filtered.size() > window) {
+            return new ArrayList<>(filtered.subList(0, window));
         }
         return filtered;
     }
 
     /**
-     * 获取用户可访问的文档 MD5 列表。
+     * 按当前反馈评分加权重排并截取 topK
+     */
+    private List<RetrievalMatch> rankWithFeedback(List<RetrievalMatch> matches, int topK) {
+        if (matches == null) {
+            return null;
+        }
+        List<RetrievalMatch> ranked = new ArrayList<>(matches);
+        applyFeedbackBoost(ranked);
+        if (ranked.size() > topK) {
+            return new ArrayList<>(ranked.subList(0, topK));
+        }
+        return ranked;
+    }
+
+    private List<List<RetrievalMatch>> rankPlanWithFeedback(List<List<RetrievalMatch>> results, int topK) {
+        List<List<RetrievalMatch>> ranked = new ArrayList<>(results.size());
+        for (List<RetrievalMatch> branch : results) {
+            ranked.add(rankWithFeedback(branch, topK));
+        }
+        return ranked;
+    }
+
+    private boolean isFeedbackEnabled() {
+        RagConfiguration.Feedback config = ragConfiguration.getFeedback();
+        return config != null && config.isEnabled();
+    }
+
+    /**
+     * 获取用户可访问的文档 MD5 列表（权限内存索引不可用时的回退路径）。
      *
      * <p>仅允许 PUBLIC 或用户本人上传的文档。</p>
      *
@@ -444,86 +1328,8 @@ public class SmartRetrieverServiceImpl implements SmartRetrieverService {
         return userId;
     }
 
-    private Map<String, DocumentDO> loadDocumentRecords(List<RetrievalMatch> matches) {
-        Set<String> md5Set = matches.stream()
-            .map(RetrievalMatch::getFileMd5)
-            .collect(Collectors.toSet());
-        List<DocumentDO> documentDOS = documentMapper.findByMd5HashIn(new ArrayList<>(md5Set));
-        return documentDOS.stream()
-            .collect(Collectors.toMap(DocumentDO::getMd5Hash, doc -> doc));
-    }
-
-    private boolean matchesMetadata(DocumentDO record, MetadataFilter filter) {
-        if (filter == null || filter.isEmpty()) {
-            return true;
-        }
-        if (!matchesField(record.getDepartment(), filter.getDepartment())) {
-            return false;
-        }
-        if (!matchesField(record.getDocType(), filter.getDocType())) {
-            return false;
-        }
-        if (!matchesField(record.getPolicyYear(), filter.getPolicyYear())) {
-            return false;
-        }
-        List<String> tags = parseTags(record.getTags());
-        List<String> filterTags = filter.normalizedTags();
-        if (!filterTags.isEmpty() && tags.isEmpty()) {
-            return false;
-        }
-        if (!filterTags.isEmpty()) {
-            boolean anyMatch = false;
-            for (String filterTag : filterTags) {
-                if (matchesToken(tags, filterTag)) {
-                    anyMatch = true;
-                    break;
-                }
-            }
-            if (!anyMatch) {
-                return false;
-            }
-        }
-        return true;
-    }
-
-    private boolean matchesField(String value, String expected) {
-        if (expected == null || expected.isBlank()) {
-            return true;
-        }
-        if (value == null || value.isBlank()) {
-            return false;
-        }
-        String normalizedValue = value.trim().toLowerCase(Locale.ROOT);
-        String normalizedExpected = expected.trim().toLowerCase(Locale.ROOT);
-        return normalizedValue.contains(normalizedExpected);
-    }
-
-    private List<String> parseTags(String tags) {
-        if (tags == null || tags.isBlank()) {
-            return Collections.emptyList();
-        }
-        String[] parts = tags.split("[,，;；]");
-        List<String> results = new ArrayList<>();
-        for (String part : parts) {
-            String trimmed = part.trim();
-            if (!trimmed.isEmpty()) {
-                results.add(trimmed.toLowerCase(Locale.ROOT));
-            }
-        }
-        return results;
-    }
-
-    private boolean matchesToken(List<String> tokens, String expected) {
-        if (expected == null || expected.isBlank()) {
-            return true;
-        }
-        String normalized = expected.trim().toLowerCase(Locale.ROOT);
-        for (String token : tokens) {
-            if (token.contains(normalized)) {
-                return true;
-            }
-        }
-        return false;
+    private boolean isIndexMissing(ErrorResponse failure) {
+        return failure.error() != null && "index_not_found_exception".equals(failure.error().type());
     }
 
     private boolean isIndexMissing(Throwable error) {
@@ -541,26 +1347,23 @@ public class SmartRetrieverServiceImpl implements SmartRetrieverService {
     }
 
     private void applyFeedbackBoost(List<RetrievalMatch> matches) {
-        if (matches == null || matches.isEmpty()) {
+        if (matches == null || matches.isEmpty() || !isFeedbackEnabled()) {
             return;
         }
         RagConfiguration.Feedback config = ragConfiguration.getFeedback();
-        if (config == null || !config.isEnabled()) {
-            return;
-        }
-
-        Set<String> md5Set = matches.stream()
-            .map(RetrievalMatch::getFileMd5)
-            .collect(Collectors.toSet());
-        Map<String, Double> boostMap = loadBoostMap(md5Set, config.getMaxBoost());
-        if (boostMap.isEmpty()) {
-            return;
-        }
 
+        boolean boosted = false;
         for (RetrievalMatch match : matches) {
+            double boost = feedbackBoostCache.boost(match.getFileMd5(), config.getMaxBoost());
+            if (boost == 0.0) {
+                continue;
+            }
             double baseScore = match.getRelevanceScore() != null ? match.getRelevanceScore() : 0.0;
-            double boost = boostMap.getOrDefault(match.getFileMd5(), 0.0);
             match.setRelevanceScore(baseScore * (1 + boost));
+            boosted = true;
+        }
+        if (!boosted) {
+            return;
         }
 
         matches.sort((a, b) -> Double.compare(
@@ -569,28 +1372,18 @@ public class SmartRetrieverServiceImpl implements SmartRetrieverService {
         ));
     }
 
-    private Map<String, Double> loadBoostMap(Set<String> md5Set, double maxBoost) {
-        if (md5Set == null || md5Set.isEmpty()) {
-            return Map.of();
-        }
-        List<Object[]> rows = sourceRepository.findAverageScoreByDocumentMd5In(md5Set);
-        Map<String, Double> boostMap = new HashMap<>();
-        for (Object[] row : rows) {
-            if (row == null || row.length < 2) {
-                continue;
-            }
-            String md5 = row[0] != null ? row[0].toString() : null;
-            if (md5 == null) {
-                continue;
-            }
-            Double avgScore = row[1] instanceof Number ? ((Number) row[1]).doubleValue() : null;
-            if (avgScore == null) {
-                continue;
-            }
-            double centered = (avgScore - 3.0) / 2.0;
-            double boost = Math.max(-maxBoost, Math.min(maxBoost, centered * maxBoost));
-            boostMap.put(md5, boost);
+    /**
+     * 检索分支在 _msearch 请求中占用的请求项区间
+     */
+    private static final class BranchSlice {
+        private final int branch;
+        private final int offset;
+        private final int count;
+
+        private BranchSlice(int branch, int offset, int count) {
+            this.branch = branch;
+            this.offset = offset;
+            this.count = count;
         }
-        return boostMap;
     }
 }
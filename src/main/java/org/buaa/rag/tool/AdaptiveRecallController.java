@@ -0,0 +1,288 @@
+package org.buaa.rag.tool;
+
+import jakarta.annotation.PreDestroy;
+import org.buaa.rag.config.RagConfiguration;
+import org.buaa.rag.dto.RetrievalMatch;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntFunction;
+
+/**
+ * 自适应召回规模控制器
+ *
+ * <p>按查询类别（短查询 / 长查询 / 纯向量）维护召回倍数 factor，召回数 = topK × factor。
+ * 每个类别记录最近的检索耗时，并按 rag.adaptive-recall.probe-rate 抽样在后台以两倍召回数重放检索，
+ * 统计加深召回改变 top-K 的比例。每累计 adjust-every 个样本调整一次：
+ * p95 超出预算时收缩；加深召回经常改变结果且耗时有余量时放大；几乎不改变结果时逐步收缩。
+ * 调整决策记录到日志，并通过 {@link #stats()} 输出。</p>
+ */
+@Component
+public class AdaptiveRecallController implements StatsSource {
+
+    private static final Logger log = LoggerFactory.getLogger(AdaptiveRecallController.class);
+
+    private static final int LATENCY_WINDOW = 256;
+    private static final double CHANGE_RATE_ALPHA = 0.1;
+    private static final double GROW_STEP = 1.25;
+    private static final double SHRINK_STEP = 0.8;
+    private static final double RELAX_STEP = 0.9;
+
+    public enum QueryClass {
+        SHORT,
+        LONG,
+        VECTOR
+    }
+
+    private final RagConfiguration ragConfiguration;
+    private final Map<QueryClass, ClassState> states = new EnumMap<>(QueryClass.class);
+    private final ThreadPoolExecutor probeExecutor;
+
+    public AdaptiveRecallController(RagConfiguration ragConfiguration) {
+        this.ragConfiguration = ragConfiguration;
+        for (QueryClass queryClass : QueryClass.values()) {
+            states.put(queryClass, new ClassState(initialFactor(queryClass)));
+        }
+        this.probeExecutor = new ThreadPoolExecutor(
+            1,
+            1,
+            60L,
+            TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(4),
+            runnable -> {
+                Thread thread = new Thread(runnable, "recall-probe");
+                thread.setDaemon(true);
+                return thread;
+            },
+            new ThreadPoolExecutor.DiscardPolicy()
+        );
+        this.probeExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        probeExecutor.shutdownNow();
+    }
+
+    /**
+     * 查询类别：纯向量检索单独一类，其余按查询长度区分（与 OR/AND 匹配策略的短查询阈值一致）
+     */
+    public QueryClass classify(String query, boolean vectorOnly) {
+        if (vectorOnly) {
+            return QueryClass.VECTOR;
+        }
+        return query == null || query.trim().length() <= 6 ? QueryClass.SHORT : QueryClass.LONG;
+    }
+
+    /**
+     * 当前召回数（kNN k / num_candidates）
+     */
+    public int recallSize(QueryClass queryClass, int topK) {
+        RagConfiguration.AdaptiveRecall config = ragConfiguration.getAdaptiveRecall();
+        double factor = isEnabled() ? states.get(queryClass).factor() : initialFactor(queryClass);
+        int recall = (int) Math.ceil(topK * factor);
+        return Math.max(topK, Math.min(recall, config.getMaxRecallSize()));
+    }
+
+    /**
+     * 按召回倍数相对初始值的比例缩放重排序窗口
+     */
+    public int rescoreWindow(QueryClass queryClass, int baseWindow, int topK, int recallSize) {
+        double scale = isEnabled() ? states.get(queryClass).factor() / initialFactor(queryClass) : 1.0;
+        int window = (int) Math.round(baseWindow * scale);
+        return Math.min(recallSize, Math.max(topK, window));
+    }
+
+    /**
+     * 记录一次检索耗时
+     */
+    public void recordLatency(QueryClass queryClass, long latencyMillis) {
+        if (!isEnabled()) {
+            return;
+        }
+        ClassState state = states.get(queryClass);
+        if (state.recordLatency(latencyMillis) >= ragConfiguration.getAdaptiveRecall().getAdjustEvery()) {
+            adjust(queryClass, state);
+        }
+    }
+
+    /**
+     * 按抽样率在后台比较当前召回数与两倍召回数的 top-K，统计加深召回是否改变结果
+     *
+     * @param search 按给定召回数执行检索，返回过滤前的排序结果
+     */
+    public void probe(QueryClass queryClass, int topK, IntFunction<List<RetrievalMatch>> search) {
+        RagConfiguration.AdaptiveRecall config = ragConfiguration.getAdaptiveRecall();
+        if (!isEnabled() || ThreadLocalRandom.current().nextDouble() >= config.getProbeRate()) {
+            return;
+        }
+        int recall = recallSize(queryClass, topK);
+        int deeperRecall = Math.min(recall * 2, config.getMaxRecallSize());
+        if (deeperRecall <= recall) {
+            return;
+        }
+        probeExecutor.execute(() -> {
+            try {
+                Set<String> current = topKeys(search.apply(recall), topK);
+                Set<String> deeper = topKeys(search.apply(deeperRecall), topK);
+                states.get(queryClass).recordProbe(!current.equals(deeper));
+            } catch (Exception e) {
+                log.debug("召回探测失败: {}", e.getMessage());
+            }
+        });
+    }
+
+    @Override
+    public String statsName() {
+        return "adaptiveRecall";
+    }
+
+    /**
+     * 各查询类别的召回倍数、耗时分位与探测统计
+     */
+    @Override
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        for (Map.Entry<QueryClass, ClassState> entry : states.entrySet()) {
+            stats.put(entry.getKey().name().toLowerCase(Locale.ROOT), entry.getValue().snapshot());
+        }
+        return stats;
+    }
+
+    private void adjust(QueryClass queryClass, ClassState state) {
+        RagConfiguration.AdaptiveRecall config = ragConfiguration.getAdaptiveRecall();
+        synchronized (state) {
+            // 多个线程可能同时越过阈值，只有第一个进入的线程执行调整
+            if (state.samplesSinceAdjust < config.getAdjustEvery()) {
+                return;
+            }
+            long p95 = state.percentile(0.95);
+            double changeRate = state.changeRate;
+            double previous = state.factor;
+            String decision;
+            if (p95 > config.getLatencyBudgetMillis()) {
+                state.factor = Math.max(config.getMinFactor(), previous * SHRINK_STEP);
+                decision = "shrink:latency";
+            } else if (state.probes > 0 && changeRate > config.getTargetChangeRate()
+                && p95 < config.getLatencyBudgetMillis() * 0.8) {
+                state.factor = Math.min(config.getMaxFactor(), previous * GROW_STEP);
+                decision = "grow:quality";
+            } else if (state.probes > 0 && changeRate < config.getTargetChangeRate() / 2) {
+                state.factor = Math.max(config.getMinFactor(), previous * RELAX_STEP);
+                decision = "shrink:stable";
+            } else {
+                decision = "hold";
+            }
+            state.samplesSinceAdjust = 0;
+            state.lastDecision = decision;
+            state.decisions.merge(decision, 1L, Long::sum);
+            if (state.factor != previous) {
+                log.info("召回倍数调整 - 类别: {}, {} -> {}, p95: {}ms, top-K 变化率: {}, 决策: {}",
+                    queryClass, String.format("%.1f", previous), String.format("%.1f", state.factor),
+                    p95, String.format("%.3f", changeRate), decision);
+            }
+        }
+    }
+
+    private double initialFactor(QueryClass queryClass) {
+        RagConfiguration.AdaptiveRecall config = ragConfiguration.getAdaptiveRecall();
+        return switch (queryClass) {
+            case SHORT -> config.getShortFactor();
+            case LONG -> config.getLongFactor();
+            case VECTOR -> config.getVectorFactor();
+        };
+    }
+
+    private boolean isEnabled() {
+        RagConfiguration.AdaptiveRecall config = ragConfiguration.getAdaptiveRecall();
+        return config != null && config.isEnabled();
+    }
+
+    private static Set<String> topKeys(List<RetrievalMatch> matches, int topK) {
+        Set<String> keys = new HashSet<>();
+        if (matches == null) {
+            return keys;
+        }
+        for (int i = 0; i < matches.size() && i < topK; i++) {
+            RetrievalMatch match = matches.get(i);
+            keys.add(match.getFileMd5() + ":" + match.getChunkId());
+        }
+        return keys;
+    }
+
+    /**
+     * 单个查询类别的控制状态
+     */
+    private static final class ClassState {
+        private final long[] latencies = new long[LATENCY_WINDOW];
+        private final Map<String, Long> decisions = new LinkedHashMap<>();
+        private int latencyCount;
+        private int latencyCursor;
+        private int samplesSinceAdjust;
+        private double factor;
+        private double changeRate;
+        private long probes;
+        private long changedProbes;
+        private String lastDecision = "none";
+
+        private ClassState(double factor) {
+            this.factor = factor;
+        }
+
+        private synchronized double factor() {
+            return factor;
+        }
+
+        private synchronized int recordLatency(long latencyMillis) {
+            latencies[latencyCursor] = latencyMillis;
+            latencyCursor = (latencyCursor + 1) % LATENCY_WINDOW;
+            latencyCount = Math.min(latencyCount + 1, LATENCY_WINDOW);
+            return ++samplesSinceAdjust;
+        }
+
+        private synchronized void recordProbe(boolean changed) {
+            probes++;
+            if (changed) {
+                changedProbes++;
+            }
+            double sample = changed ? 1.0 : 0.0;
+            changeRate = probes == 1 ? sample : changeRate + CHANGE_RATE_ALPHA * (sample - changeRate);
+        }
+
+        private synchronized long percentile(double quantile) {
+            if (latencyCount == 0) {
+                return 0;
+            }
+            long[] sorted = Arrays.copyOf(latencies, latencyCount);
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(quantile * latencyCount) - 1;
+            return sorted[Math.max(0, Math.min(index, latencyCount - 1))];
+        }
+
+        private synchronized Map<String, Object> snapshot() {
+            Map<String, Object> snapshot = new LinkedHashMap<>();
+            snapshot.put("factor", factor);
+            snapshot.put("p50Millis", percentile(0.5));
+            snapshot.put("p95Millis", percentile(0.95));
+            snapshot.put("probes", probes);
+            snapshot.put("changedProbes", changedProbes);
+            snapshot.put("changeRate", changeRate);
+            snapshot.put("lastDecision", lastDecision);
+            snapshot.put("decisions", new LinkedHashMap<>(decisions));
+            return snapshot;
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package org.buaa.rag.tool;
+
+import static org.buaa.rag.common.consts.CacheConstants.LLM_COMPLETION_KEY;
+
+import org.buaa.rag.config.LlmConfiguration;
+import org.buaa.rag.config.RagConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.util.DigestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 辅助提示的大模型补全缓存
+ *
+ * <p>查询改写、HyDE、LLM 路由、CRAG 评估、澄清问题与重排序都以确定的提示调用
+ * {@link LlmChat#generateCompletion}，相同热门问题会重复付费。本缓存以
+ * 用途 + 系统提示 + 用户提示 + 模型 + 生成参数 的摘要为键，L1 为进程内 W-TinyLFU 缓存，L2 为可选的 Redis 缓存。
+ * 各用途使用 rag.completion-cache.ttl-seconds 中的独立 TTL（为 0 表示该用途不缓存）。
+ * 同一键的并发未命中只发起一次请求，其余调用等待其结果（在各自超时内）。
+ * 空结果（超时或失败）不缓存。只用于非流式辅助调用，对话回答的流式生成不经过本缓存。</p>
+ */
+@Component
+public class CompletionCache implements StatsSource {
+
+    private static final Logger log = LoggerFactory.getLogger(CompletionCache.class);
+    private static final long L2_RETRY_DELAY_MILLIS = 30_000;
+
+    public enum Purpose {
+        REWRITE,
+        HYDE,
+        ROUTING,
+        CRAG,
+        CLARIFY,
+        RERANK
+    }
+
+    private final RagConfiguration ragConfiguration;
+    private final LlmConfiguration llmConfiguration;
+    private final LlmChat llmChat;
+    private final StringRedisTemplate stringRedisTemplate;
+
+    private final WindowTinyLfuCache<String, CachedCompletion> localCache;
+    private final Map<String, CompletableFuture<String>> inFlight = new ConcurrentHashMap<>();
+    private final Map<Purpose, PurposeStats> purposeStats = new EnumMap<>(Purpose.class);
+
+    private final AtomicLong remoteErrors = new AtomicLong();
+    private volatile long remoteRetryAt;
+
+    public CompletionCache(RagConfiguration ragConfiguration,
+                           LlmConfiguration llmConfiguration,
+                           LlmChat llmChat,
+                           StringRedisTemplate stringRedisTemplate) {
+        this.ragConfiguration = ragConfiguration;
+        this.llmConfiguration = llmConfiguration;
+        this.llmChat = llmChat;
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.localCache = new WindowTinyLfuCache<>(ragConfiguration.getCompletionCache().getMaxEntries());
+        for (Purpose purpose : Purpose.values()) {
+            purposeStats.put(purpose, new PurposeStats());
+        }
+    }
+
+    /**
+     * 生成辅助补全，命中缓存时直接返回
+     *
+     * @param purpose 调用用途，决定缓存 TTL
+     * @param timeout 等待响应的超时
+     * @return 模型输出内容，超时或失败时为空串
+     */
+    public String generate(Purpose purpose,
+                           String systemPrompt,
+                           String userPrompt,
+                           Integer maxTokens,
+                           Duration timeout) {
+        long ttlMillis = ttlMillis(purpose);
+        if (ttlMillis <= 0 || timeout == null || timeout.isZero() || timeout.isNegative()) {
+            return llmChat.generateCompletion(systemPrompt, userPrompt, maxTokens, timeout);
+        }
+        PurposeStats stats = purposeStats.get(purpose);
+        String key = buildKey(purpose, systemPrompt, userPrompt, maxTokens);
+
+        String cached = readCached(key);
+        if (cached != null) {
+            stats.hits.incrementAndGet();
+            return cached;
+        }
+
+        CompletableFuture<String> created = new CompletableFuture<>();
+        CompletableFuture<String> existing = inFlight.putIfAbsent(key, created);
+        if (existing != null) {
+            stats.coalesced.incrementAndGet();
+            try {
+                return existing.get(timeout.toMillis(), TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return "";
+            } catch (Exception e) {
+                log.debug("等待补全结果失败: {}", e.getMessage());
+                return "";
+            }
+        }
+
+        stats.misses.incrementAndGet();
+        String output = "";
+        try {
+            output = llmChat.generateCompletion(systemPrompt, userPrompt, maxTokens, timeout);
+            if (output != null && !output.isBlank()) {
+                writeCached(key, output, ttlMillis);
+            }
+            return output;
+        } finally {
+            inFlight.remove(key, created);
+            created.complete(output == null ? "" : output);
+        }
+    }
+
+    @Override
+    public String statsName() {
+        return "completionCache";
+    }
+
+    /**
+     * 缓存统计信息
+     */
+    @Override
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("localSize", localCache.size());
+        stats.put("localEvictions", localCache.evictions());
+        stats.put("remoteErrors", remoteErrors.get());
+        for (Map.Entry<Purpose, PurposeStats> entry : purposeStats.entrySet()) {
+            stats.put(entry.getKey().name().toLowerCase(Locale.ROOT), entry.getValue().snapshot());
+        }
+        return stats;
+    }
+
+    private String buildKey(Purpose purpose, String systemPrompt, String userPrompt, Integer maxTokens) {
+        LlmConfiguration.GenerationParams params = llmConfiguration.getGenerationParams();
+        String raw = purpose.name() + '\u0001'
+            + llmChat.getModelIdentifier() + '\u0001'
+            + params.getTemperature() + '\u0001'
+            + params.getTopP() + '\u0001'
+            + (maxTokens != null ? maxTokens : params.getMaxTokens()) + '\u0001'
+            + (systemPrompt == null ? "" : systemPrompt) + '\u0001'
+            + (userPrompt == null ? "" : userPrompt);
+        return DigestUtils.md5DigestAsHex(raw.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private String readCached(String key) {
+        long now = System.currentTimeMillis();
+        CachedCompletion cached = localCache.get(key);
+        if (cached != null) {
+            if (now < cached.expireAt) {
+                return cached.output;
+            }
+            localCache.remove(key);
+        }
+        if (!isRemoteAvailable()) {
+            return null;
+        }
+        try {
+            String remote = stringRedisTemplate.opsForValue().get(LLM_COMPLETION_KEY + key);
+            if (remote == null) {
+                return null;
+            }
+            Long remainingSeconds = stringRedisTemplate.getExpire(LLM_COMPLETION_KEY + key, TimeUnit.SECONDS);
+            long remainingMillis = remainingSeconds != null && remainingSeconds > 0 ? remainingSeconds * 1000 : 60_000;
+            localCache.put(key, new CachedCompletion(remote, now + remainingMillis));
+            return remote;
+        } catch (Exception e) {
+            markRemoteFailure(e);
+            return null;
+        }
+    }
+
+    private void writeCached(String key, String output, long ttlMillis) {
+        localCache.put(key, new CachedCompletion(output, System.currentTimeMillis() + ttlMillis));
+        if (!isRemoteAvailable()) {
+            return;
+        }
+        try {
+            stringRedisTemplate.opsForValue().set(LLM_COMPLETION_KEY + key, output, ttlMillis, TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            markRemoteFailure(e);
+        }
+    }
+
+    private boolean isRemoteAvailable() {
+        return ragConfiguration.getCompletionCache().isL2Enabled()
+            && System.currentTimeMillis() >= remoteRetryAt;
+    }
+
+    private void markRemoteFailure(Exception e) {
+        remoteErrors.incrementAndGet();
+        remoteRetryAt = System.currentTimeMillis() + L2_RETRY_DELAY_MILLIS;
+        log.warn("补全 Redis 缓存不可用，{} 秒内仅使用本地缓存: {}", L2_RETRY_DELAY_MILLIS / 1000, e.getMessage());
+    }
+
+    private long ttlMillis(Purpose purpose) {
+        RagConfiguration.CompletionCache config = ragConfiguration.getCompletionCache();
+        if (config == null || !config.isEnabled()) {
+            return 0;
+        }
+        Long seconds = config.getTtlSeconds().get(purpose.name().toLowerCase(Locale.ROOT));
+        return (seconds != null ? seconds : config.getDefaultTtlSeconds()) * 1000L;
+    }
+
+    private static final class CachedCompletion {
+        private final String output;
+        private final long expireAt;
+
+        private CachedCompletion(String output, long expireAt) {
+            this.output = output;
+            this.expireAt = expireAt;
+        }
+    }
+
+    private static final class PurposeStats {
+        private final AtomicLong hits = new AtomicLong();
+        private final AtomicLong misses = new AtomicLong();
+        private final AtomicLong coalesced = new AtomicLong();
+
+        private Map<String, Object> snapshot() {
+            long hitCount = hits.get();
+            long missCount = misses.get();
+            long total = hitCount + missCount;
+            Map<String, Object> snapshot = new LinkedHashMap<>();
+            snapshot.put("hits", hitCount);
+            snapshot.put("misses", missCount);
+            snapshot.put("coalesced", coalesced.get());
+            snapshot.put("hitRate", total == 0 ? 0.0 : (double) hitCount / total);
+            return snapshot;
+        }
+    }
+}
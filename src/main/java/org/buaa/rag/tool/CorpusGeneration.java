@@ -0,0 +1,76 @@
+package org.buaa.rag.tool;
+
+import static org.buaa.rag.common.consts.CacheConstants.CORPUS_GENERATION_KEY;
+
+import org.buaa.rag.common.event.DocumentChangedEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 知识库语料代数
+ *
+ * <p>文档入库、修改、删除后递增，依赖检索结果的缓存将其写入缓存条目，代数变化后旧条目自然失效。
+ * 代数同时记录在 Redis 中，各实例每秒同步一次，使其它实例的文档变更也能让本地缓存失效；
+ * Redis 不可用时退化为实例内计数。</p>
+ */
+@Component
+public class CorpusGeneration {
+
+    private static final Logger log = LoggerFactory.getLogger(CorpusGeneration.class);
+    private static final long SYNC_INTERVAL_MILLIS = 1000;
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    private final AtomicLong generation = new AtomicLong();
+    private final AtomicBoolean syncing = new AtomicBoolean(false);
+
+    private volatile long lastSyncAt;
+
+    public CorpusGeneration(StringRedisTemplate stringRedisTemplate) {
+        this.stringRedisTemplate = stringRedisTemplate;
+    }
+
+    /**
+     * 当前语料代数
+     */
+    public long current() {
+        long now = System.currentTimeMillis();
+        if (now - lastSyncAt >= SYNC_INTERVAL_MILLIS && syncing.compareAndSet(false, true)) {
+            try {
+                lastSyncAt = now;
+                String shared = stringRedisTemplate.opsForValue().get(CORPUS_GENERATION_KEY);
+                if (shared != null) {
+                    advanceTo(Long.parseLong(shared));
+                }
+            } catch (Exception e) {
+                log.debug("同步语料代数失败: {}", e.getMessage());
+            } finally {
+                syncing.set(false);
+            }
+        }
+        return generation.get();
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onDocumentChanged(DocumentChangedEvent event) {
+        generation.incrementAndGet();
+        try {
+            Long shared = stringRedisTemplate.opsForValue().increment(CORPUS_GENERATION_KEY);
+            if (shared != null) {
+                advanceTo(shared);
+            }
+        } catch (Exception e) {
+            log.debug("递增共享语料代数失败: {}", e.getMessage());
+        }
+    }
+
+    private void advanceTo(long shared) {
+        generation.accumulateAndGet(shared, Math::max);
+    }
+}
@@ -0,0 +1,334 @@
+package org.buaa.rag.tool;
+
+import com.baomidou.mybatisplus.core.toolkit.Wrappers;
+import jakarta.annotation.PostConstruct;
+import org.buaa.rag.common.event.DocumentChangedEvent;
+import org.buaa.rag.config.RagConfiguration;
+import org.buaa.rag.dao.entity.DocumentDO;
+import org.buaa.rag.dao.mapper.DocumentMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 文档访问权限内存索引
+ *
+ * <p>每个文档分配一个稠密序号，公开文档与各用户的文档分别用位图记录，
+ * 权限判断只需一次位图查找。启动时全量构建，文档上传/修改/删除时增量更新，
+ * 并由后台任务按 rag.access-index.refresh-seconds 定期全量重建以兼容多实例部署。
+ * 重建读取数据库期间发生的增量变更会记录下来，在新索引替换旧索引时重放，不会丢失。</p>
+ */
+@Component
+public class DocumentAccessIndex {
+
+    private static final Logger log = LoggerFactory.getLogger(DocumentAccessIndex.class);
+    private static final String PUBLIC_VISIBILITY = "PUBLIC";
+    private static final long REFRESH_CHECK_MILLIS = 10_000;
+
+    private final DocumentMapper documentMapper;
+    private final RagConfiguration ragConfiguration;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final AtomicLong version = new AtomicLong();
+    private final AtomicBoolean rebuilding = new AtomicBoolean(false);
+
+    private Map<String, Integer> ordinals = new HashMap<>();
+    private List<String> ownerByOrdinal = new ArrayList<>();
+    private BitSet publicDocs = new BitSet();
+    private Map<String, BitSet> ownerDocs = new HashMap<>();
+    private final List<PendingChange> pendingChanges = new ArrayList<>();
+    private boolean capturing;
+
+    private volatile boolean ready;
+    private volatile long lastBuildAttemptAt;
+
+    public DocumentAccessIndex(DocumentMapper documentMapper, RagConfiguration ragConfiguration) {
+        this.documentMapper = documentMapper;
+        this.ragConfiguration = ragConfiguration;
+    }
+
+    @PostConstruct
+    public void init() {
+        if (isEnabled()) {
+            rebuild();
+        }
+    }
+
+    /**
+     * 索引是否可用（未启用或构建失败时由调用方回退到数据库查询）
+     */
+    public boolean isReady() {
+        return isEnabled() && ready;
+    }
+
+    /**
+     * 当前索引版本，每次变更递增
+     */
+    public long version() {
+        return version.get();
+    }
+
+    /**
+     * 判断用户是否可访问文档
+     */
+    public boolean canAccess(String userId, String md5Hash) {
+        lock.readLock().lock();
+        try {
+            Integer ordinal = ordinals.get(md5Hash);
+            if (ordinal == null) {
+                return false;
+            }
+            if (publicDocs.get(ordinal)) {
+                return true;
+            }
+            BitSet owned = ownerDocs.get(userId);
+            return owned != null && owned.get(ordinal);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 用户的访问范围标识
+     *
+     * <p>只能访问公开文档的用户共享同一范围，拥有私有文档的用户各自独立；索引不可用时按用户区分。</p>
+     */
+    public String accessScope(String userId) {
+        if (!isReady()) {
+            return "user:" + userId;
+        }
+        lock.readLock().lock();
+        try {
+            BitSet owned = ownerDocs.get(userId);
+            if (owned != null) {
+                for (int i = owned.nextSetBit(0); i >= 0; i = owned.nextSetBit(i + 1)) {
+                    if (!publicDocs.get(i)) {
+                        return "user:" + userId;
+                    }
+                }
+            }
+            return PUBLIC_VISIBILITY;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onDocumentChanged(DocumentChangedEvent event) {
+        if (!isEnabled()) {
+            return;
+        }
+        if (event.getType() == DocumentChangedEvent.Type.DELETED) {
+            remove(event.getMd5Hash());
+        } else if (event.getRecord() != null) {
+            upsert(event.getMd5Hash(), event.getRecord().getUserId(), event.getRecord().getVisibility());
+        }
+    }
+
+    /**
+     * 新增或更新文档权限信息
+     */
+    public void upsert(String md5Hash, String ownerId, String visibility) {
+        if (md5Hash == null) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            applyUpsert(md5Hash, ownerId, visibility);
+            if (capturing) {
+                pendingChanges.add(new PendingChange(md5Hash, ownerId, visibility, false));
+            }
+            version.incrementAndGet();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 移除文档权限信息
+     */
+    public void remove(String md5Hash) {
+        if (md5Hash == null) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            if (capturing) {
+                pendingChanges.add(new PendingChange(md5Hash, null, null, true));
+            }
+            if (applyRemove(md5Hash)) {
+                version.incrementAndGet();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 从数据库全量重建索引（同时压缩已删除文档留下的序号空洞）
+     */
+    public void rebuild() {
+        if (!rebuilding.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            doRebuild();
+        } finally {
+            rebuilding.set(false);
+        }
+    }
+
+    /**
+     * 后台定期重建，请求线程不承担全量加载
+     */
+    @Scheduled(fixedDelay = REFRESH_CHECK_MILLIS, initialDelay = REFRESH_CHECK_MILLIS)
+    public void refreshIfStale() {
+        if (!isEnabled()) {
+            return;
+        }
+        long refreshMillis = ragConfiguration.getAccessIndex().getRefreshSeconds() * 1000L;
+        boolean stale = refreshMillis > 0 && System.currentTimeMillis() - lastBuildAttemptAt >= refreshMillis;
+        if (!ready || stale) {
+            rebuild();
+        }
+    }
+
+    private void doRebuild() {
+        lastBuildAttemptAt = System.currentTimeMillis();
+        lock.writeLock().lock();
+        try {
+            pendingChanges.clear();
+            capturing = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+
+        List<DocumentDO> documents;
+        try {
+            documents = documentMapper.selectList(Wrappers.lambdaQuery(DocumentDO.class)
+                .select(DocumentDO::getMd5Hash, DocumentDO::getUserId, DocumentDO::getVisibility));
+        } catch (Exception e) {
+            lock.writeLock().lock();
+            try {
+                capturing = false;
+                pendingChanges.clear();
+            } finally {
+                lock.writeLock().unlock();
+            }
+            log.warn("文档权限索引构建失败，检索将回退到数据库查询: {}", e.getMessage());
+            return;
+        }
+
+        int replayed;
+        lock.writeLock().lock();
+        try {
+            ordinals = new HashMap<>(documents.size() * 2);
+            ownerByOrdinal = new ArrayList<>(documents.size());
+            publicDocs = new BitSet(documents.size());
+            ownerDocs = new HashMap<>();
+            for (DocumentDO document : documents) {
+                if (document.getMd5Hash() == null || ordinals.containsKey(document.getMd5Hash())) {
+                    continue;
+                }
+                int ordinal = ownerByOrdinal.size();
+                ordinals.put(document.getMd5Hash(), ordinal);
+                ownerByOrdinal.add(null);
+                setEntry(ordinal, document.getUserId(), document.getVisibility());
+            }
+            // 读取期间的增量变更可能未包含在查询结果中，按发生顺序重放（重复应用结果相同）
+            replayed = pendingChanges.size();
+            for (PendingChange change : pendingChanges) {
+                if (change.deleted) {
+                    applyRemove(change.md5Hash);
+                } else {
+                    applyUpsert(change.md5Hash, change.ownerId, change.visibility);
+                }
+            }
+            pendingChanges.clear();
+            capturing = false;
+            version.incrementAndGet();
+            ready = true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+        log.info("文档权限索引构建完成，文档数: {}, 重放变更: {}, 版本: {}", documents.size(), replayed, version.get());
+    }
+
+    private void applyUpsert(String md5Hash, String ownerId, String visibility) {
+        Integer ordinal = ordinals.get(md5Hash);
+        if (ordinal == null) {
+            ordinal = ownerByOrdinal.size();
+            ordinals.put(md5Hash, ordinal);
+            ownerByOrdinal.add(null);
+        } else {
+            clearOwner(ordinal);
+        }
+        setEntry(ordinal, ownerId, visibility);
+    }
+
+    private boolean applyRemove(String md5Hash) {
+        Integer ordinal = ordinals.remove(md5Hash);
+        if (ordinal == null) {
+            return false;
+        }
+        clearOwner(ordinal);
+        publicDocs.clear(ordinal);
+        return true;
+    }
+
+    private void setEntry(int ordinal, String ownerId, String visibility) {
+        ownerByOrdinal.set(ordinal, ownerId);
+        if (ownerId != null) {
+            ownerDocs.computeIfAbsent(ownerId, key -> new BitSet()).set(ordinal);
+        }
+        publicDocs.set(ordinal, PUBLIC_VISIBILITY.equals(visibility));
+    }
+
+    private void clearOwner(int ordinal) {
+        String previousOwner = ownerByOrdinal.get(ordinal);
+        if (previousOwner == null) {
+            return;
+        }
+        BitSet owned = ownerDocs.get(previousOwner);
+        if (owned != null) {
+            owned.clear(ordinal);
+            if (owned.isEmpty()) {
+                ownerDocs.remove(previousOwner);
+            }
+        }
+        ownerByOrdinal.set(ordinal, null);
+    }
+
+    private boolean isEnabled() {
+        RagConfiguration.AccessIndex config = ragConfiguration.getAccessIndex();
+        return config != null && config.isEnabled();
+    }
+
+    /**
+     * 重建期间记录的增量变更
+     */
+    private static final class PendingChange {
+        private final String md5Hash;
+        private final String ownerId;
+        private final String visibility;
+        private final boolean deleted;
+
+        private PendingChange(String md5Hash, String ownerId, String visibility, boolean deleted) {
+            this.md5Hash = md5Hash;
+            this.ownerId = ownerId;
+            this.visibility = visibility;
+            this.deleted = deleted;
+        }
+    }
+}
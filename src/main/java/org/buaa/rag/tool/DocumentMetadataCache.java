@@ -0,0 +1,353 @@
+package org.buaa.rag.tool;
+
+import com.baomidou.mybatisplus.core.toolkit.Wrappers;
+import jakarta.annotation.PostConstruct;
+import org.buaa.rag.common.event.DocumentChangedEvent;
+import org.buaa.rag.config.RagConfiguration;
+import org.buaa.rag.dao.entity.DocumentDO;
+import org.buaa.rag.dao.mapper.DocumentMapper;
+import org.buaa.rag.dto.MetadataFilter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 文档元数据近端缓存
+ *
+ * <p>按 MD5 缓存预编译的文档元数据（文件名、小写化的部门/类型/年份、拆分后的标签），
+ * 检索结果的元数据过滤与文件名补充不再访问数据库。启动时全量加载，未命中时批量回源，
+ * 文档上传/修改/删除事件到达时更新对应条目，并由后台任务按 rag.metadata-cache.refresh-seconds 定期全量重载。
+ * 重载读取数据库期间到达的变更会记录下来，在新缓存替换旧缓存时重放，不会被旧数据覆盖。
+ * 数据库中不存在的文档只短暂记为缺失，其他实例刚上传的文档很快即可回源命中。</p>
+ */
+@Component
+public class DocumentMetadataCache {
+
+    private static final Logger log = LoggerFactory.getLogger(DocumentMetadataCache.class);
+    private static final long REFRESH_CHECK_MILLIS = 10_000;
+
+    /**
+     * 数据库中不存在的文档的缺失记录有效期，期间不重复回源
+     */
+    private static final long ABSENT_TTL_MILLIS = 30_000;
+
+    private final DocumentMapper documentMapper;
+    private final RagConfiguration ragConfiguration;
+
+    private final AtomicBoolean reloading = new AtomicBoolean(false);
+
+    private volatile Map<String, CompiledMetadata> entries = new ConcurrentHashMap<>();
+    private final Map<String, Long> absentUntil = new ConcurrentHashMap<>();
+    private final Object journalLock = new Object();
+    private final List<PendingChange> pendingChanges = new ArrayList<>();
+    private boolean capturing;
+    private volatile long lastLoadAttemptAt;
+
+    public DocumentMetadataCache(DocumentMapper documentMapper, RagConfiguration ragConfiguration) {
+        this.documentMapper = documentMapper;
+        this.ragConfiguration = ragConfiguration;
+    }
+
+    @PostConstruct
+    public void init() {
+        if (isEnabled()) {
+            reload();
+        }
+    }
+
+    /**
+     * 批量获取文档元数据，不存在的文档不出现在结果中
+     */
+    public Map<String, CompiledMetadata> getAll(Collection<String> md5Hashes) {
+        Map<String, CompiledMetadata> results = new HashMap<>();
+        List<String> missing = new ArrayList<>();
+        Map<String, CompiledMetadata> current = isEnabled() ? entries : Map.of();
+        long now = System.currentTimeMillis();
+        for (String md5Hash : md5Hashes) {
+            CompiledMetadata cached = current.get(md5Hash);
+            if (cached != null) {
+                results.put(md5Hash, cached);
+            } else if (!isKnownAbsent(md5Hash, now)) {
+                missing.add(md5Hash);
+            }
+        }
+        if (missing.isEmpty()) {
+            return results;
+        }
+
+        List<DocumentDO> records = documentMapper.findByMd5HashIn(missing);
+        for (DocumentDO record : records) {
+            CompiledMetadata compiled = compile(record);
+            results.put(record.getMd5Hash(), compiled);
+            if (isEnabled()) {
+                // 回源期间到达的变更事件更新，不以本次读取结果覆盖
+                current.putIfAbsent(record.getMd5Hash(), compiled);
+            }
+        }
+        if (isEnabled()) {
+            long expiresAt = now + ABSENT_TTL_MILLIS;
+            for (String md5Hash : missing) {
+                if (!results.containsKey(md5Hash)) {
+                    absentUntil.put(md5Hash, expiresAt);
+                }
+            }
+        }
+        return results;
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onDocumentChanged(DocumentChangedEvent event) {
+        if (!isEnabled() || event.getMd5Hash() == null) {
+            return;
+        }
+        boolean deleted = event.getType() == DocumentChangedEvent.Type.DELETED || event.getRecord() == null;
+        CompiledMetadata compiled = deleted ? null : compile(event.getRecord());
+        synchronized (journalLock) {
+            apply(entries, event.getMd5Hash(), compiled);
+            if (capturing) {
+                pendingChanges.add(new PendingChange(event.getMd5Hash(), compiled));
+            }
+        }
+        if (!deleted) {
+            absentUntil.remove(event.getMd5Hash());
+        }
+    }
+
+    /**
+     * 从数据库全量重载
+     */
+    public void reload() {
+        lastLoadAttemptAt = System.currentTimeMillis();
+        synchronized (journalLock) {
+            pendingChanges.clear();
+            capturing = true;
+        }
+        try {
+            List<DocumentDO> records = documentMapper.selectList(Wrappers.lambdaQuery(DocumentDO.class)
+                .select(DocumentDO::getMd5Hash, DocumentDO::getOriginalFileName, DocumentDO::getDepartment,
+                    DocumentDO::getDocType, DocumentDO::getPolicyYear, DocumentDO::getTags));
+            Map<String, CompiledMetadata> loaded = new ConcurrentHashMap<>(Math.max(16, records.size() * 2));
+            for (DocumentDO record : records) {
+                if (record.getMd5Hash() != null) {
+                    loaded.put(record.getMd5Hash(), compile(record));
+                }
+            }
+            int replayed;
+            synchronized (journalLock) {
+                // 读取期间的变更可能未包含在查询结果中，按发生顺序重放
+                replayed = pendingChanges.size();
+                for (PendingChange change : pendingChanges) {
+                    apply(loaded, change.md5Hash, change.compiled);
+                }
+                entries = loaded;
+                pendingChanges.clear();
+                capturing = false;
+            }
+            absentUntil.clear();
+            log.info("文档元数据缓存加载完成，文档数: {}, 重放变更: {}", loaded.size(), replayed);
+        } catch (Exception e) {
+            synchronized (journalLock) {
+                pendingChanges.clear();
+                capturing = false;
+            }
+            log.warn("文档元数据缓存加载失败，将按需回源: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * 预编译过滤条件：每次检索只规范化一次
+     */
+    public static CompiledFilter compileFilter(MetadataFilter filter) {
+        if (filter == null || filter.isEmpty()) {
+            return null;
+        }
+        List<String> tags = filter.normalizedTags();
+        String[] normalizedTags = new String[tags.size()];
+        for (int i = 0; i < tags.size(); i++) {
+            normalizedTags[i] = tags.get(i).toLowerCase(Locale.ROOT);
+        }
+        return new CompiledFilter(
+            normalize(filter.getDepartment()),
+            normalize(filter.getDocType()),
+            normalize(filter.getPolicyYear()),
+            normalizedTags
+        );
+    }
+
+    /**
+     * 后台定期重载，检索线程不承担全量加载
+     */
+    @Scheduled(fixedDelay = REFRESH_CHECK_MILLIS, initialDelay = REFRESH_CHECK_MILLIS)
+    public void refreshIfStale() {
+        if (!isEnabled()) {
+            return;
+        }
+        long refreshMillis = ragConfiguration.getMetadataCache().getRefreshSeconds() * 1000L;
+        if (refreshMillis > 0 && System.currentTimeMillis() - lastLoadAttemptAt >= refreshMillis
+            && reloading.compareAndSet(false, true)) {
+            try {
+                reload();
+            } finally {
+                reloading.set(false);
+            }
+        }
+    }
+
+    private boolean isKnownAbsent(String md5Hash, long now) {
+        Long expiresAt = absentUntil.get(md5Hash);
+        if (expiresAt == null) {
+            return false;
+        }
+        if (expiresAt > now) {
+            return true;
+        }
+        absentUntil.remove(md5Hash, expiresAt);
+        return false;
+    }
+
+    private static void apply(Map<String, CompiledMetadata> target, String md5Hash, CompiledMetadata compiled) {
+        if (compiled == null) {
+            target.remove(md5Hash);
+        } else {
+            target.put(md5Hash, compiled);
+        }
+    }
+
+    private CompiledMetadata compile(DocumentDO record) {
+        return new CompiledMetadata(
+            record.getOriginalFileName(),
+            normalize(record.getDepartment()),
+            normalize(record.getDocType()),
+            normalize(record.getPolicyYear()),
+            compileTags(record.getTags())
+        );
+    }
+
+    private String[] compileTags(String tags) {
+        if (tags == null || tags.isBlank()) {
+            return new String[0];
+        }
+        List<String> results = new ArrayList<>();
+        for (String part : tags.split("[,，;；]")) {
+            String trimmed = part.trim();
+            if (!trimmed.isEmpty()) {
+                results.add(trimmed.toLowerCase(Locale.ROOT).intern());
+            }
+        }
+        return results.toArray(new String[0]);
+    }
+
+    private static String normalize(String value) {
+        if (value == null || value.isBlank()) {
+            return null;
+        }
+        return value.trim().toLowerCase(Locale.ROOT).intern();
+    }
+
+    private boolean isEnabled() {
+        RagConfiguration.MetadataCache config = ragConfiguration.getMetadataCache();
+        return config != null && config.isEnabled();
+    }
+
+    /**
+     * 预编译的文档元数据
+     */
+    public static final class CompiledMetadata {
+
+        private final String originalFileName;
+        private final String department;
+        private final String docType;
+        private final String policyYear;
+        private final String[] tags;
+
+        private CompiledMetadata(String originalFileName,
+                                 String department,
+                                 String docType,
+                                 String policyYear,
+                                 String[] tags) {
+            this.originalFileName = originalFileName;
+            this.department = department;
+            this.docType = docType;
+            this.policyYear = policyYear;
+            this.tags = tags;
+        }
+
+        public String getOriginalFileName() {
+            return originalFileName;
+        }
+
+        /**
+         * 大小写不敏感包含匹配；标签任一命中即可
+         */
+        public boolean matches(CompiledFilter filter) {
+            if (filter == null) {
+                return true;
+            }
+            if (!contains(department, filter.department)
+                || !contains(docType, filter.docType)
+                || !contains(policyYear, filter.policyYear)) {
+                return false;
+            }
+            if (filter.tags.length == 0) {
+                return true;
+            }
+            for (String expected : filter.tags) {
+                for (String tag : tags) {
+                    if (tag.contains(expected)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        private static boolean contains(String value, String expected) {
+            if (expected == null) {
+                return true;
+            }
+            return value != null && value.contains(expected);
+        }
+    }
+
+    /**
+     * 重载期间记录的变更，compiled 为 null 表示删除
+     */
+    private static final class PendingChange {
+        private final String md5Hash;
+        private final CompiledMetadata compiled;
+
+        private PendingChange(String md5Hash, CompiledMetadata compiled) {
+            this.md5Hash = md5Hash;
+            this.compiled = compiled;
+        }
+    }
+
+    /**
+     * 预编译的元数据过滤条件
+     */
+    public static final class CompiledFilter {
+
+        private final String department;
+        private final String docType;
+        private final String policyYear;
+        private final String[] tags;
+
+        private CompiledFilter(String department, String docType, String policyYear, String[] tags) {
+            this.department = department;
+            this.docType = docType;
+            this.policyYear = policyYear;
+            this.tags = tags;
+        }
+    }
+}
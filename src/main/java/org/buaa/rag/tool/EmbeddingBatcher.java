@@ -0,0 +1,280 @@
+package org.buaa.rag.tool;
+
+import org.springframework.web.reactive.function.client.WebClientResponseException;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 按 token 估计量打包向量编码请求
+ *
+ * <p>按估计 token 数把输入装箱：每批不超过条数上限与单批 token 上限，单条超过输入 token 上限时先切分，
+ * 各段向量按 token 数加权平均后归一化，仍与原输入一一对应。
+ * 接口返回批量或长度超限错误时，从错误信息中解析上限（解析不到则按当前批次减半）并收紧对应上限，
+ * 后续批次按学到的上限打包。token 数按 CJK 字符 1 个、其它字符约 0.3 个估计。</p>
+ */
+public class EmbeddingBatcher {
+
+    private static final int MIN_SPLIT_CHARS = 32;
+    private static final Pattern LIMIT_PATTERN = Pattern.compile(
+        "(?:larger than|more than|greater than|at most|exceeds?|exceeded|maximum(?: of)?|limit(?: is)?|up to)"
+            + "\\s*(?:is|of|:)?\\s*(\\d+)"
+            + "|\\[\\s*\\d+\\s*,\\s*(\\d+)\\s*]");
+    private static final String[] LIMIT_HINTS = {
+        "batch size", "too long", "too many", "exceed", "larger than", "more than",
+        "maximum", "max length", "input length", "token"
+    };
+
+    private final AtomicInteger itemLimit;
+    private final AtomicInteger batchTokenLimit;
+    private final AtomicInteger inputTokenLimit;
+    private final AtomicLong adjustments = new AtomicLong();
+    private final AtomicLong splitInputs = new AtomicLong();
+
+    public EmbeddingBatcher(int maxItems, int maxBatchTokens, int maxInputTokens) {
+        this.itemLimit = new AtomicInteger(Math.max(1, maxItems));
+        this.inputTokenLimit = new AtomicInteger(Math.max(1, maxInputTokens));
+        this.batchTokenLimit = new AtomicInteger(Math.max(this.inputTokenLimit.get(), maxBatchTokens));
+    }
+
+    /**
+     * 把输入切分为不超过输入 token 上限的片段
+     */
+    public List<Piece> split(List<String> texts) {
+        List<Piece> pieces = new ArrayList<>(texts.size());
+        int limit = inputTokenLimit.get();
+        for (int origin = 0; origin < texts.size(); origin++) {
+            String text = texts.get(origin) == null ? "" : texts.get(origin);
+            int tokens = estimateTokens(text);
+            if (tokens <= limit || text.length() < MIN_SPLIT_CHARS) {
+                pieces.add(new Piece(origin, text, tokens));
+                continue;
+            }
+            splitInputs.incrementAndGet();
+            int chunkChars = Math.max(MIN_SPLIT_CHARS / 2, (int) ((long) text.length() * limit / tokens));
+            for (String part : splitByChars(text, chunkChars)) {
+                pieces.add(new Piece(origin, part, estimateTokens(part)));
+            }
+        }
+        return pieces;
+    }
+
+    /**
+     * 按条数与 token 上限顺序装箱
+     */
+    public List<List<Piece>> pack(List<Piece> pieces) {
+        int maxItems = itemLimit.get();
+        int maxTokens = batchTokenLimit.get();
+        List<List<Piece>> batches = new ArrayList<>();
+        List<Piece> current = new ArrayList<>();
+        int currentTokens = 0;
+        for (Piece piece : pieces) {
+            if (!current.isEmpty()
+                && (current.size() >= maxItems || currentTokens + piece.tokens > maxTokens)) {
+                batches.add(current);
+                current = new ArrayList<>();
+                currentTokens = 0;
+            }
+            current.add(piece);
+            currentTokens += piece.tokens;
+        }
+        if (!current.isEmpty()) {
+            batches.add(current);
+        }
+        return batches;
+    }
+
+    /**
+     * 单个片段一分为二，过短时返回 null
+     */
+    public List<Piece> splitInHalf(Piece piece) {
+        if (piece.text.length() < MIN_SPLIT_CHARS) {
+            return null;
+        }
+        splitInputs.incrementAndGet();
+        List<Piece> halves = new ArrayList<>(2);
+        for (String part : splitByChars(piece.text, (piece.text.length() + 1) / 2)) {
+            halves.add(new Piece(piece.origin, part, estimateTokens(part)));
+        }
+        return halves;
+    }
+
+    /**
+     * 是否为批量或长度超限错误
+     */
+    public boolean isLimitError(WebClientResponseException error) {
+        int status = error.getStatusCode().value();
+        if (status != 400 && status != 413) {
+            return false;
+        }
+        String message = error.getResponseBodyAsString().toLowerCase(Locale.ROOT);
+        for (String hint : LIMIT_HINTS) {
+            if (message.contains(hint)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 从超限错误中学习上限
+     *
+     * @param batch 触发错误的批次
+     * @return 是否为超限错误
+     */
+    public boolean learnFromError(WebClientResponseException error, List<Piece> batch) {
+        if (!isLimitError(error)) {
+            return false;
+        }
+        String message = error.getResponseBodyAsString().toLowerCase(Locale.ROOT);
+        int parsed = parseLimit(message);
+        int batchTokens = batch.stream().mapToInt(Piece::getTokens).sum();
+        int maxPieceTokens = batch.stream().mapToInt(Piece::getTokens).max().orElse(1);
+
+        if (message.contains("batch") || message.contains("items") || message.contains("list")) {
+            lower(itemLimit, parsed > 0 ? parsed : batch.size() / 2);
+        } else if (batch.size() > 1 && message.contains("total")) {
+            lower(batchTokenLimit, parsed > 0 ? parsed : batchTokens / 2);
+        } else {
+            // 输入长度上限按真实 token 计，估计值可能偏低，解析到的上限留 10% 余量
+            lower(inputTokenLimit, parsed > 0 ? parsed * 9 / 10 : maxPieceTokens * 9 / 10);
+            lower(batchTokenLimit, Math.max(inputTokenLimit.get(), batchTokens / 2));
+        }
+        adjustments.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * 按 token 数加权合并同一输入的多段向量并归一化
+     */
+    public static float[] combine(List<float[]> vectors, List<Integer> weights) {
+        if (vectors.size() == 1) {
+            return vectors.get(0);
+        }
+        float[] combined = new float[vectors.get(0).length];
+        for (int i = 0; i < vectors.size(); i++) {
+            float[] vector = vectors.get(i);
+            double weight = Math.max(1, weights.get(i));
+            for (int d = 0; d < combined.length && d < vector.length; d++) {
+                combined[d] += (float) (vector[d] * weight);
+            }
+        }
+        double norm = 0.0;
+        for (float value : combined) {
+            norm += value * value;
+        }
+        if (norm > 0) {
+            float scale = (float) (1.0 / Math.sqrt(norm));
+            for (int d = 0; d < combined.length; d++) {
+                combined[d] *= scale;
+            }
+        }
+        return combined;
+    }
+
+    /**
+     * 估计 token 数
+     */
+    public static int estimateTokens(String text) {
+        if (text == null || text.isEmpty()) {
+            return 1;
+        }
+        int cjk = 0;
+        int other = 0;
+        for (int i = 0; i < text.length(); ) {
+            int codePoint = text.codePointAt(i);
+            Character.UnicodeScript script = Character.UnicodeScript.of(codePoint);
+            if (script == Character.UnicodeScript.HAN
+                || script == Character.UnicodeScript.HIRAGANA
+                || script == Character.UnicodeScript.KATAKANA
+                || script == Character.UnicodeScript.HANGUL) {
+                cjk++;
+            } else {
+                other++;
+            }
+            i += Character.charCount(codePoint);
+        }
+        return Math.max(1, cjk + (int) Math.ceil(other * 0.3));
+    }
+
+    /**
+     * 当前上限与学习统计
+     */
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("itemLimit", itemLimit.get());
+        stats.put("batchTokenLimit", batchTokenLimit.get());
+        stats.put("inputTokenLimit", inputTokenLimit.get());
+        stats.put("adjustments", adjustments.get());
+        stats.put("splitInputs", splitInputs.get());
+        return stats;
+    }
+
+    private static void lower(AtomicInteger limit, int candidate) {
+        limit.accumulateAndGet(Math.max(1, candidate), Math::min);
+    }
+
+    private static int parseLimit(String message) {
+        Matcher matcher = LIMIT_PATTERN.matcher(message);
+        while (matcher.find()) {
+            String value = matcher.group(1) != null ? matcher.group(1) : matcher.group(2);
+            try {
+                int limit = Integer.parseInt(value);
+                if (limit > 0) {
+                    return limit;
+                }
+            } catch (NumberFormatException ignored) {
+                // 数值过大，继续查找
+            }
+        }
+        return -1;
+    }
+
+    private static List<String> splitByChars(String text, int chunkChars) {
+        List<String> parts = new ArrayList<>();
+        int start = 0;
+        while (start < text.length()) {
+            int end = Math.min(start + chunkChars, text.length());
+            if (end < text.length() && Character.isHighSurrogate(text.charAt(end - 1))) {
+                end--;
+            }
+            parts.add(text.substring(start, end));
+            start = end;
+        }
+        return parts;
+    }
+
+    /**
+     * 待编码片段
+     */
+    public static final class Piece {
+        private final int origin;
+        private final String text;
+        private final int tokens;
+
+        private Piece(int origin, String text, int tokens) {
+            this.origin = origin;
+            this.text = text;
+            this.tokens = tokens;
+        }
+
+        public int getOrigin() {
+            return origin;
+        }
+
+        public String getText() {
+            return text;
+        }
+
+        public int getTokens() {
+            return tokens;
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package org.buaa.rag.tool;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * 向量接口响应的流式解码器
+ *
+ * <p>使用 Jackson 流式 {@link JsonParser} 直接读取 data[].embedding，写入 float[]，不构建 JsonNode 树。
+ * embedding 为数组时按浮点数读取；为字符串时视为 encoding_format=base64 的小端 float32 字节。
+ * 结果按 data[].index 排序，缺少 index 时保持响应顺序。</p>
+ */
+public class EmbeddingResponseDecoder {
+
+    private final JsonFactory jsonFactory;
+
+    public EmbeddingResponseDecoder(JsonFactory jsonFactory) {
+        this.jsonFactory = jsonFactory;
+    }
+
+    /**
+     * 解码响应
+     *
+     * @param input             响应体
+     * @param expectedDimension 预期向量维度，用于预分配数组
+     * @return 按输入顺序排列的向量
+     */
+    public List<float[]> decode(InputStream input, int expectedDimension) throws IOException {
+        try (JsonParser parser = jsonFactory.createParser(input)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("API响应格式异常: 响应不是JSON对象");
+            }
+            List<IndexedVector> vectors = null;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                JsonToken value = parser.nextToken();
+                if ("data".equals(field) && value == JsonToken.START_ARRAY) {
+                    vectors = readDataArray(parser, expectedDimension);
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            if (vectors == null) {
+                throw new IOException("API响应格式异常: 缺少data数组");
+            }
+            vectors.sort(Comparator.comparingInt(IndexedVector::index));
+            List<float[]> result = new ArrayList<>(vectors.size());
+            for (IndexedVector vector : vectors) {
+                result.add(vector.vector());
+            }
+            return result;
+        }
+    }
+
+    private List<IndexedVector> readDataArray(JsonParser parser, int expectedDimension) throws IOException {
+        List<IndexedVector> vectors = new ArrayList<>();
+        while (parser.nextToken() == JsonToken.START_OBJECT) {
+            int index = vectors.size();
+            float[] vector = null;
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                JsonToken value = parser.nextToken();
+                if ("embedding".equals(field)) {
+                    if (value == JsonToken.START_ARRAY) {
+                        vector = readFloatArray(parser, expectedDimension);
+                    } else if (value == JsonToken.VALUE_STRING) {
+                        vector = decodeBase64(parser.getText());
+                    } else {
+                        parser.skipChildren();
+                    }
+                } else if ("index".equals(field) && value == JsonToken.VALUE_NUMBER_INT) {
+                    index = parser.getIntValue();
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            if (vector != null) {
+                vectors.add(new IndexedVector(index, vector));
+            }
+        }
+        return vectors;
+    }
+
+    private float[] readFloatArray(JsonParser parser, int expectedDimension) throws IOException {
+        float[] vector = new float[Math.max(expectedDimension, 16)];
+        int size = 0;
+        JsonToken token;
+        while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+            if (token == null) {
+                throw new IOException("API响应格式异常: embedding数组未结束");
+            }
+            if (size == vector.length) {
+                vector = Arrays.copyOf(vector, vector.length * 2);
+            }
+            vector[size++] = parser.getFloatValue();
+        }
+        return size == vector.length ? vector : Arrays.copyOf(vector, size);
+    }
+
+    private float[] decodeBase64(String encoded) throws IOException {
+        byte[] bytes = Base64.getDecoder().decode(encoded);
+        if (bytes.length % Float.BYTES != 0) {
+            throw new IOException("API响应格式异常: base64向量长度不是4的倍数");
+        }
+        FloatBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+        float[] vector = new float[buffer.remaining()];
+        buffer.get(vector);
+        return vector;
+    }
+
+    private static final class IndexedVector {
+        private final int index;
+        private final float[] vector;
+
+        private IndexedVector(int index, float[] vector) {
+            this.index = index;
+            this.vector = vector;
+        }
+
+        private int index() {
+            return index;
+        }
+
+        private float[] vector() {
+            return vector;
+        }
+    }
+}
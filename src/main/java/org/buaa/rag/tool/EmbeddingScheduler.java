@@ -0,0 +1,251 @@
+package org.buaa.rag.tool;
+
+import jakarta.annotation.PreDestroy;
+import org.buaa.rag.config.RagConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 向量接口请求调度器
+ *
+ * <p>文档摄取与交互查询共用一个令牌桶（rag.embedding-scheduler.requests-per-second / burst），
+ * 每次向量接口请求（含重试）前先取得一个令牌。交互请求优先；后台请求只在没有交互请求排队、
+ * 且桶内余量超过 interactive-reserve 时才放行，为突发的对话请求留出配额。
+ * 预留量按 burst - 1 截断，避免后台请求永远等不到足够余量。
+ * 后台请求排队超过 max-background-wait-millis 后不再受预留限制，避免饿死。
+ * 后台摄取在批次之间让出配额，已发出的请求不会被中断。按类别统计排队深度与等待时间。</p>
+ */
+@Component
+public class EmbeddingScheduler implements StatsSource {
+
+    private static final Logger log = LoggerFactory.getLogger(EmbeddingScheduler.class);
+
+    public enum Priority {
+        INTERACTIVE,
+        BACKGROUND
+    }
+
+    private final RagConfiguration ragConfiguration;
+    private final ScheduledExecutorService dispatcher;
+
+    private final Map<Priority, ArrayDeque<Waiter>> queues = new EnumMap<>(Priority.class);
+    private final Map<Priority, ClassStats> classStats = new EnumMap<>(Priority.class);
+    private double tokens = -1;
+    private long lastRefillNanos = System.nanoTime();
+    private boolean drainScheduled;
+
+    public EmbeddingScheduler(RagConfiguration ragConfiguration) {
+        this.ragConfiguration = ragConfiguration;
+        for (Priority priority : Priority.values()) {
+            queues.put(priority, new ArrayDeque<>());
+            classStats.put(priority, new ClassStats());
+        }
+        RagConfiguration.EmbeddingScheduler config = ragConfiguration.getEmbeddingScheduler();
+        if (config != null && config.getInteractiveReserve() > effectiveReserve()) {
+            log.warn("interactive-reserve({}) 不小于 burst({})，按 {} 生效",
+                config.getInteractiveReserve(), config.getBurst(), effectiveReserve());
+        }
+        this.dispatcher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "embedding-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        dispatcher.shutdownNow();
+    }
+
+    public boolean isEnabled() {
+        RagConfiguration.EmbeddingScheduler config = ragConfiguration.getEmbeddingScheduler();
+        return config != null && config.isEnabled() && config.getRequestsPerSecond() > 0;
+    }
+
+    /**
+     * 取得一次请求配额，配额可用时完成
+     */
+    public Mono<Void> acquire(Priority priority) {
+        if (!isEnabled()) {
+            return Mono.empty();
+        }
+        return Mono.create(sink -> {
+            Waiter waiter = new Waiter(priority, sink);
+            sink.onCancel(() -> waiter.cancelled = true);
+            boolean granted;
+            synchronized (this) {
+                refill();
+                granted = queues.get(Priority.INTERACTIVE).isEmpty()
+                    && queues.get(priority).isEmpty()
+                    && canGrant(priority, 0);
+                if (granted) {
+                    tokens -= 1;
+                    classStats.get(priority).recordGrant(0);
+                } else {
+                    queues.get(priority).addLast(waiter);
+                    scheduleDrain();
+                }
+            }
+            if (granted) {
+                sink.success();
+            }
+        });
+    }
+
+    @Override
+    public String statsName() {
+        return "embeddingScheduler";
+    }
+
+    /**
+     * 各类别排队深度与等待时间统计
+     */
+    @Override
+    public synchronized Map<String, Object> stats() {
+        refill();
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("availableTokens", tokens);
+        for (Priority priority : Priority.values()) {
+            Map<String, Object> snapshot = classStats.get(priority).snapshot();
+            snapshot.put("queueDepth", queues.get(priority).size());
+            stats.put(priority.name().toLowerCase(Locale.ROOT), snapshot);
+        }
+        return stats;
+    }
+
+    private void drain() {
+        List<Waiter> granted = new ArrayList<>();
+        synchronized (this) {
+            drainScheduled = false;
+            refill();
+            while (tokens >= 1) {
+                Waiter next = peekActive(Priority.INTERACTIVE);
+                if (next == null) {
+                    Waiter background = peekActive(Priority.BACKGROUND);
+                    if (background == null || !canGrant(Priority.BACKGROUND, waitedMillis(background))) {
+                        break;
+                    }
+                    next = queues.get(Priority.BACKGROUND).pollFirst();
+                } else {
+                    queues.get(Priority.INTERACTIVE).pollFirst();
+                }
+                tokens -= 1;
+                classStats.get(next.priority).recordGrant(waitedMillis(next));
+                granted.add(next);
+            }
+            if (!queues.get(Priority.INTERACTIVE).isEmpty() || !queues.get(Priority.BACKGROUND).isEmpty()) {
+                scheduleDrain();
+            }
+        }
+        for (Waiter waiter : granted) {
+            waiter.sink.success();
+        }
+    }
+
+    /**
+     * 跳过已取消的等待者，返回队首（不出队）
+     */
+    private Waiter peekActive(Priority priority) {
+        ArrayDeque<Waiter> queue = queues.get(priority);
+        while (!queue.isEmpty() && queue.peekFirst().cancelled) {
+            queue.pollFirst();
+        }
+        return queue.peekFirst();
+    }
+
+    private boolean canGrant(Priority priority, long waitedMillis) {
+        if (tokens < 1) {
+            return false;
+        }
+        if (priority == Priority.INTERACTIVE) {
+            return true;
+        }
+        RagConfiguration.EmbeddingScheduler config = ragConfiguration.getEmbeddingScheduler();
+        return tokens >= 1 + effectiveReserve() || waitedMillis >= config.getMaxBackgroundWaitMillis();
+    }
+
+    /**
+     * 生效的交互预留量，限制在 [0, burst - 1] 内
+     */
+    private int effectiveReserve() {
+        RagConfiguration.EmbeddingScheduler config = ragConfiguration.getEmbeddingScheduler();
+        int capacity = Math.max(1, config.getBurst());
+        return Math.max(0, Math.min(config.getInteractiveReserve(), capacity - 1));
+    }
+
+    private void scheduleDrain() {
+        if (drainScheduled) {
+            return;
+        }
+        drainScheduled = true;
+        double rate = ragConfiguration.getEmbeddingScheduler().getRequestsPerSecond();
+        long delayMillis = Math.max(1, (long) Math.ceil(1000.0 / rate));
+        dispatcher.schedule(this::drain, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void refill() {
+        RagConfiguration.EmbeddingScheduler config = ragConfiguration.getEmbeddingScheduler();
+        double capacity = Math.max(1, config.getBurst());
+        long now = System.nanoTime();
+        if (tokens < 0) {
+            tokens = capacity;
+        } else {
+            double elapsedSeconds = (now - lastRefillNanos) / 1_000_000_000.0;
+            tokens = Math.min(capacity, tokens + elapsedSeconds * config.getRequestsPerSecond());
+        }
+        lastRefillNanos = now;
+    }
+
+    private static long waitedMillis(Waiter waiter) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - waiter.enqueuedAt);
+    }
+
+    private static final class Waiter {
+        private final Priority priority;
+        private final MonoSink<Void> sink;
+        private final long enqueuedAt = System.nanoTime();
+        private volatile boolean cancelled;
+
+        private Waiter(Priority priority, MonoSink<Void> sink) {
+            this.priority = priority;
+            this.sink = sink;
+        }
+    }
+
+    /**
+     * 单个类别的等待统计（由调度器锁保护）
+     */
+    private static final class ClassStats {
+        private long granted;
+        private long totalWaitMillis;
+        private long maxWaitMillis;
+
+        private void recordGrant(long waitMillis) {
+            granted++;
+            totalWaitMillis += waitMillis;
+            maxWaitMillis = Math.max(maxWaitMillis, waitMillis);
+        }
+
+        private Map<String, Object> snapshot() {
+            Map<String, Object> snapshot = new LinkedHashMap<>();
+            snapshot.put("granted", granted);
+            snapshot.put("avgWaitMillis", granted == 0 ? 0.0 : (double) totalWaitMillis / granted);
+            snapshot.put("maxWaitMillis", maxWaitMillis);
+            return snapshot;
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package org.buaa.rag.tool;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.buaa.rag.config.RagConfiguration;
+import org.buaa.rag.dao.entity.EmbeddingStoreDO;
+import org.buaa.rag.dao.mapper.EmbeddingStoreMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 内容寻址的片段向量存储
+ *
+ * <p>以 SHA-256(模型|维度|片段文本) 为键把向量持久化到 embedding_store 表。编码前先对同一批文本去重，
+ * 再批量查询已存储的向量，只有未命中的文本才调用向量接口，新向量写回存储。
+ * 文档删除后重新上传、失败后重新处理、或不同文档含相同片段时都不再重复计费。
+ * 存储读写失败只降级为直接编码，不影响文档摄取。编码请求按后台优先级调度。</p>
+ */
+@Component
+public class EmbeddingStore implements StatsSource {
+
+    private static final Logger log = LoggerFactory.getLogger(EmbeddingStore.class);
+
+    private final RagConfiguration ragConfiguration;
+    private final EmbeddingStoreMapper storeMapper;
+    private final VectorEncoding encodingService;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong duplicates = new AtomicLong();
+    private final AtomicLong storeErrors = new AtomicLong();
+
+    public EmbeddingStore(RagConfiguration ragConfiguration,
+                          EmbeddingStoreMapper storeMapper,
+                          VectorEncoding encodingService) {
+        this.ragConfiguration = ragConfiguration;
+        this.storeMapper = storeMapper;
+        this.encodingService = encodingService;
+    }
+
+    public boolean isEnabled() {
+        RagConfiguration.EmbeddingStore config = ragConfiguration.getEmbeddingStore();
+        return config != null && config.isEnabled();
+    }
+
+    /**
+     * 对文本列表进行向量编码，优先复用已存储的向量
+     *
+     * @param textList 待编码的文本列表
+     * @return 与输入一一对应的向量列表（相同文本共享同一数组）
+     */
+    public List<float[]> encode(List<String> textList) {
+        if (!isEnabled() || textList == null || textList.isEmpty()) {
+            return encodingService.encode(textList, EmbeddingScheduler.Priority.BACKGROUND);
+        }
+        String model = encodingService.getEncodingModel();
+        int dimension = encodingService.getVectorDimension();
+
+        List<String> keys = new ArrayList<>(textList.size());
+        Map<String, String> uniqueTexts = new LinkedHashMap<>();
+        for (String text : textList) {
+            String key = contentHash(model, dimension, text);
+            keys.add(key);
+            uniqueTexts.putIfAbsent(key, text);
+        }
+        duplicates.addAndGet(textList.size() - uniqueTexts.size());
+
+        Map<String, float[]> vectors = loadStored(new ArrayList<>(uniqueTexts.keySet()), dimension);
+        hits.addAndGet(vectors.size());
+
+        List<String> missingKeys = new ArrayList<>();
+        List<String> missingTexts = new ArrayList<>();
+        for (Map.Entry<String, String> entry : uniqueTexts.entrySet()) {
+            if (!vectors.containsKey(entry.getKey())) {
+                missingKeys.add(entry.getKey());
+                missingTexts.add(entry.getValue());
+            }
+        }
+        misses.addAndGet(missingKeys.size());
+
+        if (!missingTexts.isEmpty()) {
+            List<float[]> encoded = encodingService.encode(missingTexts, EmbeddingScheduler.Priority.BACKGROUND);
+            if (encoded.size() != missingTexts.size()) {
+                throw new IllegalStateException("向量数量与输入不一致，输入: "
+                    + missingTexts.size() + ", 返回: " + encoded.size());
+            }
+            List<EmbeddingStoreDO> newEntries = new ArrayList<>(missingKeys.size());
+            for (int i = 0; i < missingKeys.size(); i++) {
+                vectors.put(missingKeys.get(i), encoded.get(i));
+                newEntries.add(EmbeddingStoreDO.builder()
+                    .contentHash(missingKeys.get(i))
+                    .encodingModel(model)
+                    .dimension(dimension)
+                    .vectorData(toBytes(encoded.get(i)))
+                    .build());
+            }
+            saveAll(newEntries);
+        }
+
+        log.info("片段向量编码 - 总数: {}, 去重后: {}, 存储命中: {}, 新编码: {}",
+            textList.size(), uniqueTexts.size(), uniqueTexts.size() - missingKeys.size(), missingKeys.size());
+
+        List<float[]> result = new ArrayList<>(keys.size());
+        for (String key : keys) {
+            result.add(vectors.get(key));
+        }
+        return result;
+    }
+
+    @Override
+    public String statsName() {
+        return "embeddingStore";
+    }
+
+    /**
+     * 存储统计信息
+     */
+    @Override
+    public Map<String, Object> stats() {
+        long hitCount = hits.get();
+        long missCount = misses.get();
+        long total = hitCount + missCount;
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("hits", hitCount);
+        stats.put("misses", missCount);
+        stats.put("hitRate", total == 0 ? 0.0 : (double) hitCount / total);
+        stats.put("inBatchDuplicates", duplicates.get());
+        stats.put("storeErrors", storeErrors.get());
+        return stats;
+    }
+
+    private Map<String, float[]> loadStored(List<String> keys, int dimension) {
+        Map<String, float[]> vectors = new HashMap<>();
+        try {
+            for (List<String> chunk : partition(keys)) {
+                for (EmbeddingStoreDO entry : storeMapper.selectBatchIds(chunk)) {
+                    float[] vector = fromBytes(entry.getVectorData());
+                    if (vector != null && vector.length == dimension) {
+                        vectors.put(entry.getContentHash(), vector);
+                    }
+                }
+            }
+        } catch (Exception e) {
+            storeErrors.incrementAndGet();
+            log.warn("读取片段向量存储失败，全部重新编码: {}", e.getMessage());
+            vectors.clear();
+        }
+        return vectors;
+    }
+
+    private void saveAll(List<EmbeddingStoreDO> entries) {
+        try {
+            for (List<EmbeddingStoreDO> chunk : partition(entries)) {
+                storeMapper.insertIgnoreBatch(chunk);
+            }
+        } catch (Exception e) {
+            storeErrors.incrementAndGet();
+            log.warn("写入片段向量存储失败: {}", e.getMessage());
+        }
+    }
+
+    private <T> List<List<T>> partition(List<T> items) {
+        int size = Math.max(1, ragConfiguration.getEmbeddingStore().getBatchSize());
+        List<List<T>> chunks = new ArrayList<>();
+        for (int i = 0; i < items.size(); i += size) {
+            chunks.add(items.subList(i, Math.min(i + size, items.size())));
+        }
+        return chunks;
+    }
+
+    private static String contentHash(String model, int dimension, String text) {
+        String raw = model + '\u0001' + dimension + '\u0001' + (text == null ? "" : text);
+        return DigestUtils.sha256Hex(raw.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static byte[] toBytes(float[] vector) {
+        ByteBuffer buffer = ByteBuffer.allocate(vector.length * Float.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.asFloatBuffer().put(vector);
+        return buffer.array();
+    }
+
+    private static float[] fromBytes(byte[] bytes) {
+        if (bytes == null || bytes.length % Float.BYTES != 0) {
+            return null;
+        }
+        float[] vector = new float[bytes.length / Float.BYTES];
+        ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer().get(vector);
+        return vector;
+    }
+}
@@ -0,0 +1,126 @@
+package org.buaa.rag.tool;
+
+import com.baomidou.mybatisplus.core.toolkit.Wrappers;
+import jakarta.annotation.PostConstruct;
+import org.buaa.rag.common.event.DocumentChangedEvent;
+import org.buaa.rag.common.event.FeedbackRecordedEvent;
+import org.buaa.rag.config.RagConfiguration;
+import org.buaa.rag.dao.entity.DocumentFeedbackStatsDO;
+import org.buaa.rag.dao.mapper.DocumentFeedbackStatsMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 文档反馈加权缓存
+ *
+ * <p>启动时从反馈聚合表全量加载各文档平均评分，记录反馈后按事件增量刷新受影响文档，
+ * 并由后台任务按 rag.feedback.refresh-seconds 定期全量重载以兼容多实例部署。检索时加权只需一次哈希查找。</p>
+ */
+@Component
+public class FeedbackBoostCache {
+
+    private static final Logger log = LoggerFactory.getLogger(FeedbackBoostCache.class);
+    private static final long REFRESH_CHECK_MILLIS = 10_000;
+
+    private final DocumentFeedbackStatsMapper statsMapper;
+    private final RagConfiguration ragConfiguration;
+
+    private final AtomicBoolean reloading = new AtomicBoolean(false);
+
+    private volatile Map<String, Double> averageScores = new ConcurrentHashMap<>();
+    private volatile long lastLoadAttemptAt;
+
+    public FeedbackBoostCache(DocumentFeedbackStatsMapper statsMapper, RagConfiguration ragConfiguration) {
+        this.statsMapper = statsMapper;
+        this.ragConfiguration = ragConfiguration;
+    }
+
+    @PostConstruct
+    public void init() {
+        reload();
+    }
+
+    /**
+     * 文档的反馈加权系数，平均分 3 分为中性，按 maxBoost 线性映射并截断
+     */
+    public double boost(String md5Hash, double maxBoost) {
+        Double avgScore = md5Hash == null ? null : averageScores.get(md5Hash);
+        if (avgScore == null) {
+            return 0.0;
+        }
+        double centered = (avgScore - 3.0) / 2.0;
+        return Math.max(-maxBoost, Math.min(maxBoost, centered * maxBoost));
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onFeedbackRecorded(FeedbackRecordedEvent event) {
+        if (event.getDocumentMd5s() == null || event.getDocumentMd5s().isEmpty()) {
+            return;
+        }
+        try {
+            List<DocumentFeedbackStatsDO> stats = statsMapper.selectBatchIds(event.getDocumentMd5s());
+            Map<String, Double> current = averageScores;
+            for (DocumentFeedbackStatsDO stat : stats) {
+                if (stat.getAvgScore() != null) {
+                    current.put(stat.getDocumentMd5(), stat.getAvgScore());
+                }
+            }
+        } catch (Exception e) {
+            log.warn("反馈加权缓存刷新失败: {}", e.getMessage());
+        }
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onDocumentChanged(DocumentChangedEvent event) {
+        if (event.getType() == DocumentChangedEvent.Type.DELETED && event.getMd5Hash() != null) {
+            averageScores.remove(event.getMd5Hash());
+        }
+    }
+
+    /**
+     * 从聚合表全量重载
+     */
+    public void reload() {
+        lastLoadAttemptAt = System.currentTimeMillis();
+        try {
+            List<DocumentFeedbackStatsDO> stats = statsMapper.selectList(Wrappers.lambdaQuery(DocumentFeedbackStatsDO.class)
+                .select(DocumentFeedbackStatsDO::getDocumentMd5, DocumentFeedbackStatsDO::getAvgScore));
+            Map<String, Double> loaded = new ConcurrentHashMap<>(Math.max(16, stats.size() * 2));
+            for (DocumentFeedbackStatsDO stat : stats) {
+                if (stat.getDocumentMd5() != null && stat.getAvgScore() != null) {
+                    loaded.put(stat.getDocumentMd5(), stat.getAvgScore());
+                }
+            }
+            averageScores = loaded;
+            log.info("反馈加权缓存加载完成，文档数: {}", loaded.size());
+        } catch (Exception e) {
+            log.warn("反馈加权缓存加载失败: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * 后台定期重载，检索线程不承担全量加载
+     */
+    @Scheduled(fixedDelay = REFRESH_CHECK_MILLIS, initialDelay = REFRESH_CHECK_MILLIS)
+    public void refreshIfStale() {
+        long refreshMillis = ragConfiguration.getFeedback().getRefreshSeconds() * 1000L;
+        if (refreshMillis <= 0 || System.currentTimeMillis() - lastLoadAttemptAt < refreshMillis) {
+            return;
+        }
+        if (reloading.compareAndSet(false, true)) {
+            try {
+                reload();
+            } finally {
+                reloading.set(false);
+            }
+        }
+    }
+}
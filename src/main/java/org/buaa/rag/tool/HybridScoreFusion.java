@@ -0,0 +1,110 @@
+package org.buaa.rag.tool;
+
+import org.buaa.rag.config.RagConfiguration;
+import org.buaa.rag.dto.RetrievalMatch;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 混合检索得分融合
+ * 对 kNN 与 BM25 两路召回分别做得分归一化，再按配置权重线性加权合并
+ */
+@Component
+public class HybridScoreFusion {
+
+    private final RagConfiguration ragConfiguration;
+
+    public HybridScoreFusion(RagConfiguration ragConfiguration) {
+        this.ragConfiguration = ragConfiguration;
+    }
+
+    /**
+     * 融合两路召回结果
+     *
+     * @param vectorMatches kNN 召回结果
+     * @param textMatches BM25 召回结果
+     * @param topK 返回数量
+     * @return 按融合得分降序排列的结果，只出现在一路中的片段另一路得分记为 0
+     */
+    public List<RetrievalMatch> fuse(List<RetrievalMatch> vectorMatches,
+                                     List<RetrievalMatch> textMatches,
+                                     int topK) {
+        RagConfiguration.Hybrid config = ragConfiguration.getHybrid();
+        Map<String, RetrievalMatch> merged = new LinkedHashMap<>();
+        Map<String, Double> fusedScores = new LinkedHashMap<>();
+        accumulate(vectorMatches, config.getVectorWeight(), config.getNormalization(), merged, fusedScores);
+        accumulate(textMatches, config.getTextWeight(), config.getNormalization(), merged, fusedScores);
+
+        List<RetrievalMatch> results = new ArrayList<>(merged.size());
+        for (Map.Entry<String, RetrievalMatch> entry : merged.entrySet()) {
+            RetrievalMatch match = entry.getValue();
+            match.setRelevanceScore(fusedScores.get(entry.getKey()));
+            results.add(match);
+        }
+        results.sort((a, b) -> Double.compare(b.getRelevanceScore(), a.getRelevanceScore()));
+        if (results.size() > topK) {
+            return new ArrayList<>(results.subList(0, topK));
+        }
+        return results;
+    }
+
+    private void accumulate(List<RetrievalMatch> matches,
+                            double weight,
+                            RagConfiguration.Hybrid.Normalization normalization,
+                            Map<String, RetrievalMatch> merged,
+                            Map<String, Double> fusedScores) {
+        if (matches == null || matches.isEmpty()) {
+            return;
+        }
+        List<Double> normalized = normalize(matches, normalization);
+        for (int i = 0; i < matches.size(); i++) {
+            RetrievalMatch match = matches.get(i);
+            String key = match.getFileMd5() + "#" + match.getChunkId();
+            merged.putIfAbsent(key, match);
+            fusedScores.merge(key, weight * normalized.get(i), Double::sum);
+        }
+    }
+
+    /**
+     * 得分归一化到 [0, 1]
+     * Z_SCORE 模式下标准分再经 sigmoid 压缩，保证融合得分非负，便于后续反馈加权与 CRAG 阈值判断
+     */
+    private List<Double> normalize(List<RetrievalMatch> matches,
+                                   RagConfiguration.Hybrid.Normalization normalization) {
+        List<Double> scores = new ArrayList<>(matches.size());
+        for (RetrievalMatch match : matches) {
+            scores.add(match.getRelevanceScore() != null ? match.getRelevanceScore() : 0.0);
+        }
+        if (scores.size() == 1) {
+            return Collections.singletonList(1.0);
+        }
+
+        List<Double> normalized = new ArrayList<>(scores.size());
+        if (normalization == RagConfiguration.Hybrid.Normalization.Z_SCORE) {
+            double mean = scores.stream().mapToDouble(Double::doubleValue).average().orElse(0.0);
+            double variance = scores.stream()
+                .mapToDouble(score -> (score - mean) * (score - mean))
+                .average()
+                .orElse(0.0);
+            double std = Math.sqrt(variance);
+            for (double score : scores) {
+                double z = std > 0 ? (score - mean) / std : 0.0;
+                normalized.add(1.0 / (1.0 + Math.exp(-z)));
+            }
+            return normalized;
+        }
+
+        double min = scores.stream().mapToDouble(Double::doubleValue).min().orElse(0.0);
+        double max = scores.stream().mapToDouble(Double::doubleValue).max().orElse(0.0);
+        double range = max - min;
+        for (double score : scores) {
+            normalized.add(range > 0 ? (score - min) / range : 1.0);
+        }
+        return normalized;
+    }
+}
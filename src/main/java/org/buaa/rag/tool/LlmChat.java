@@ -26,6 +26,7 @@ import java.util.function.Consumer;
 public class LlmChat {
 
     private static final Logger log = LoggerFactory.getLogger(LlmChat.class);
+    private static final Duration DEFAULT_COMPLETION_TIMEOUT = Duration.ofSeconds(30);
     
     private final WebClient httpClient;
     private final String apiToken;
@@ -64,6 +65,13 @@ public class LlmChat {
         return token != null && !token.trim().isEmpty();
     }
     
+    /**
+     * 当前使用的模型
+     */
+    public String getModelIdentifier() {
+        return modelIdentifier;
+    }
+
     /**
      * 流式响应方法
      * 
@@ -124,6 +132,22 @@ public class LlmChat {
     public String generateCompletion(String systemPrompt,
                                      String userPrompt,
                                      Integer maxTokens) {
+        return generateCompletion(systemPrompt, userPrompt, maxTokens, DEFAULT_COMPLETION_TIMEOUT);
+    }
+
+    /**
+     * 生成一次性响应（指定超时）
+     *
+     * @param timeout 等待响应的超时，非正数时直接返回空串
+     * @return 模型输出内容，超时或失败时为空串
+     */
+    public String generateCompletion(String systemPrompt,
+                                     String userPrompt,
+                                     Integer maxTokens,
+                                     Duration timeout) {
+        if (timeout == null || timeout.isZero() || timeout.isNegative()) {
+            return "";
+        }
         List<Map<String, String>> messages = new ArrayList<>();
         if (systemPrompt != null && !systemPrompt.isBlank()) {
             messages.add(Map.of("role", "system", "content", systemPrompt));
@@ -149,7 +173,7 @@ public class LlmChat {
                 .bodyValue(payload)
                 .retrieve()
                 .bodyToMono(String.class)
-                .block(Duration.ofSeconds(30));
+                .block(timeout);
             if (response == null || response.isBlank()) {
                 return "";
             }
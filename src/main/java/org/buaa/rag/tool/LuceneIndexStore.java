@@ -0,0 +1,396 @@
+package org.buaa.rag.tool;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.cjk.CJKAnalyzer;
+import org.apache.lucene.codecs.KnnVectorsFormat;
+import org.apache.lucene.codecs.KnnVectorsReader;
+import org.apache.lucene.codecs.KnnVectorsWriter;
+import org.apache.lucene.codecs.lucene99.Lucene99Codec;
+import org.apache.lucene.codecs.lucene99.Lucene99HnswVectorsFormat;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.KnnFloatVectorField;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.SegmentReadState;
+import org.apache.lucene.index.SegmentWriteState;
+import org.apache.lucene.index.StoredFields;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.VectorSimilarityFunction;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.KnnFloatVectorQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.WildcardQuery;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.util.QueryBuilder;
+import org.buaa.rag.config.RagConfiguration;
+import org.buaa.rag.dao.entity.IndexedContentDO;
+import org.buaa.rag.dto.MetadataFilter;
+import org.buaa.rag.dto.RetrievalMatch;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * 嵌入式 Lucene 索引
+ *
+ * <p>单节点部署时替代 Elasticsearch：文本字段使用 BM25，向量字段使用 HNSW，
+ * 索引通过 {@link MMapDirectory} 存放在本地磁盘。字段与 {@link IndexedContentDO} 一一对应，
+ * 权限与元数据过滤在召回阶段生效，语义与 Elasticsearch 端过滤一致。</p>
+ */
+@Component
+public class LuceneIndexStore {
+
+    private static final Logger log = LoggerFactory.getLogger(LuceneIndexStore.class);
+
+    private static final String FIELD_DOCUMENT_ID = "documentId";
+    private static final String FIELD_SOURCE_MD5 = "sourceMd5";
+    private static final String FIELD_SEGMENT_NUMBER = "segmentNumber";
+    private static final String FIELD_TEXT = "textPayload";
+    private static final String FIELD_VECTOR = "vectorEmbedding";
+    private static final String FIELD_VECTOR_DATA = "vectorData";
+    private static final String FIELD_ENCODER_VERSION = "encoderVersion";
+    private static final String FIELD_VISIBILITY = "visibility";
+    private static final String FIELD_OWNER_ID = "ownerId";
+    private static final String FIELD_DEPARTMENT = "department";
+    private static final String FIELD_DOC_TYPE = "docType";
+    private static final String FIELD_POLICY_YEAR = "policyYear";
+    private static final String FIELD_TAGS = "tags";
+
+    private static final Set<String> HIT_FIELDS = Set.of(FIELD_SOURCE_MD5, FIELD_SEGMENT_NUMBER, FIELD_TEXT);
+
+    /**
+     * Lucene 默认向量维度上限为 1024，嵌入模型输出 2048 维
+     */
+    private static final int MAX_VECTOR_DIMENSIONS = 4096;
+
+    private final RagConfiguration ragConfiguration;
+
+    private Analyzer analyzer;
+    private MMapDirectory directory;
+    private IndexWriter writer;
+    private SearcherManager searcherManager;
+
+    public LuceneIndexStore(RagConfiguration ragConfiguration) {
+        this.ragConfiguration = ragConfiguration;
+    }
+
+    @PostConstruct
+    public void init() throws IOException {
+        if (!isEnabled()) {
+            return;
+        }
+        RagConfiguration.Lucene config = ragConfiguration.getLucene();
+        Path indexPath = Paths.get(config.getIndexPath());
+        Files.createDirectories(indexPath);
+
+        KnnVectorsFormat vectorsFormat = new HighDimensionVectorsFormat(
+            new Lucene99HnswVectorsFormat(config.getHnswMaxConn(), config.getHnswBeamWidth())
+        );
+        IndexWriterConfig writerConfig = new IndexWriterConfig(analyzer = new CJKAnalyzer())
+            .setOpenMode(IndexWriterConfig.OpenMode.CREATE_OR_APPEND)
+            .setRAMBufferSizeMB(config.getRamBufferMb())
+            .setCodec(new Lucene99Codec() {
+                @Override
+                public KnnVectorsFormat getKnnVectorsFormatForField(String field) {
+                    return vectorsFormat;
+                }
+            });
+
+        directory = new MMapDirectory(indexPath);
+        writer = new IndexWriter(directory, writerConfig);
+        searcherManager = new SearcherManager(writer, null);
+        log.info("Lucene 索引已打开: {}, 文档数: {}", indexPath.toAbsolutePath(), writer.getDocStats().numDocs);
+    }
+
+    @PreDestroy
+    public void close() {
+        if (writer == null) {
+            return;
+        }
+        try {
+            searcherManager.close();
+            writer.close();
+            directory.close();
+        } catch (IOException e) {
+            log.warn("Lucene 索引关闭失败: {}", e.getMessage());
+        }
+    }
+
+    public boolean isEnabled() {
+        RagConfiguration.Lucene config = ragConfiguration.getLucene();
+        return config != null && config.isEnabled();
+    }
+
+    /**
+     * 写入文档分块，同一来源文档的旧分块整体替换
+     */
+    public void index(List<IndexedContentDO> documents) throws IOException {
+        if (documents == null || documents.isEmpty()) {
+            return;
+        }
+        String sourceMd5 = documents.get(0).getSourceMd5();
+        List<Document> luceneDocuments = new ArrayList<>(documents.size());
+        for (IndexedContentDO content : documents) {
+            luceneDocuments.add(toDocument(content));
+        }
+        writer.updateDocuments(new Term(FIELD_SOURCE_MD5, sourceMd5), luceneDocuments);
+        commit();
+    }
+
+    /**
+     * 删除来源文档的全部分块
+     */
+    public void deleteBySource(String sourceMd5) throws IOException {
+        writer.deleteDocuments(new Term(FIELD_SOURCE_MD5, sourceMd5));
+        commit();
+    }
+
+    /**
+     * 同步来源文档全部分块的元数据（Lucene 不支持字段级更新，按存储字段重建分块）
+     *
+     * @return 更新的分块数
+     */
+    public int updateMetadata(String sourceMd5,
+                              String visibility,
+                              String ownerId,
+                              String department,
+                              String docType,
+                              String policyYear,
+                              List<String> tags) throws IOException {
+        List<IndexedContentDO> contents = new ArrayList<>();
+        IndexSearcher searcher = searcherManager.acquire();
+        try {
+            TermQuery query = new TermQuery(new Term(FIELD_SOURCE_MD5, sourceMd5));
+            TopDocs topDocs = searcher.search(query, Math.max(1, searcher.count(query)));
+            StoredFields storedFields = searcher.storedFields();
+            for (ScoreDoc scoreDoc : topDocs.scoreDocs) {
+                Document stored = storedFields.document(scoreDoc.doc);
+                contents.add(IndexedContentDO.builder()
+                    .documentId(stored.get(FIELD_DOCUMENT_ID))
+                    .sourceMd5(sourceMd5)
+                    .segmentNumber(stored.getField(FIELD_SEGMENT_NUMBER).numericValue().intValue())
+                    .textPayload(stored.get(FIELD_TEXT))
+                    .vectorEmbedding(decodeVector(stored.getBinaryValue(FIELD_VECTOR_DATA).bytes))
+                    .encoderVersion(stored.get(FIELD_ENCODER_VERSION))
+                    .visibility(visibility)
+                    .ownerId(ownerId)
+                    .department(department)
+                    .docType(docType)
+                    .policyYear(policyYear)
+                    .tags(tags)
+                    .build());
+            }
+        } finally {
+            searcherManager.release(searcher);
+        }
+        index(contents);
+        return contents.size();
+    }
+
+    /**
+     * HNSW 向量召回
+     *
+     * @param k 返回数量
+     * @param numCandidates 每段搜索的候选数
+     */
+    public List<RetrievalMatch> searchVector(float[] vector,
+                                             int k,
+                                             int numCandidates,
+                                             String userId,
+                                             MetadataFilter filter) throws IOException {
+        Query knnQuery = new KnnFloatVectorQuery(FIELD_VECTOR, vector, Math.max(k, numCandidates), buildFilter(userId, filter));
+        return search(knnQuery, k);
+    }
+
+    /**
+     * BM25 文本召回
+     *
+     * @param requireAll 是否要求命中全部词项
+     */
+    public List<RetrievalMatch> searchText(String text,
+                                           int size,
+                                           boolean requireAll,
+                                           String userId,
+                                           MetadataFilter filter) throws IOException {
+        Query textQuery = new QueryBuilder(analyzer).createBooleanQuery(
+            FIELD_TEXT,
+            text,
+            requireAll ? BooleanClause.Occur.MUST : BooleanClause.Occur.SHOULD
+        );
+        if (textQuery == null) {
+            return Collections.emptyList();
+        }
+        Query query = new BooleanQuery.Builder()
+            .add(textQuery, BooleanClause.Occur.MUST)
+            .add(buildFilter(userId, filter), BooleanClause.Occur.FILTER)
+            .build();
+        return search(query, size);
+    }
+
+    private List<RetrievalMatch> search(Query query, int size) throws IOException {
+        searcherManager.maybeRefresh();
+        IndexSearcher searcher = searcherManager.acquire();
+        try {
+            TopDocs topDocs = searcher.search(query, Math.max(1, size));
+            StoredFields storedFields = searcher.storedFields();
+            List<RetrievalMatch> matches = new ArrayList<>(topDocs.scoreDocs.length);
+            for (ScoreDoc scoreDoc : topDocs.scoreDocs) {
+                Document stored = storedFields.document(scoreDoc.doc, HIT_FIELDS);
+                matches.add(new RetrievalMatch(
+                    stored.get(FIELD_SOURCE_MD5),
+                    stored.getField(FIELD_SEGMENT_NUMBER).numericValue().intValue(),
+                    stored.get(FIELD_TEXT),
+                    (double) scoreDoc.score
+                ));
+            }
+            return matches;
+        } finally {
+            searcherManager.release(searcher);
+        }
+    }
+
+    /**
+     * 权限：PUBLIC 文档或本人上传的文档；元数据：大小写不敏感包含匹配（索引端已小写存储）
+     */
+    private Query buildFilter(String userId, MetadataFilter filter) {
+        BooleanQuery.Builder builder = new BooleanQuery.Builder();
+        builder.add(new BooleanQuery.Builder()
+            .add(new TermQuery(new Term(FIELD_VISIBILITY, "PUBLIC")), BooleanClause.Occur.SHOULD)
+            .add(new TermQuery(new Term(FIELD_OWNER_ID, userId)), BooleanClause.Occur.SHOULD)
+            .setMinimumNumberShouldMatch(1)
+            .build(), BooleanClause.Occur.FILTER);
+
+        if (filter == null || filter.isEmpty()) {
+            return builder.build();
+        }
+        addContainsFilter(builder, FIELD_DEPARTMENT, filter.getDepartment());
+        addContainsFilter(builder, FIELD_DOC_TYPE, filter.getDocType());
+        addContainsFilter(builder, FIELD_POLICY_YEAR, filter.getPolicyYear());
+
+        List<String> filterTags = filter.normalizedTags();
+        if (!filterTags.isEmpty()) {
+            BooleanQuery.Builder tagBuilder = new BooleanQuery.Builder().setMinimumNumberShouldMatch(1);
+            for (String tag : filterTags) {
+                tagBuilder.add(buildContainsQuery(FIELD_TAGS, tag), BooleanClause.Occur.SHOULD);
+            }
+            builder.add(tagBuilder.build(), BooleanClause.Occur.FILTER);
+        }
+        return builder.build();
+    }
+
+    private void addContainsFilter(BooleanQuery.Builder builder, String field, String expected) {
+        if (expected == null || expected.isBlank()) {
+            return;
+        }
+        builder.add(buildContainsQuery(field, expected), BooleanClause.Occur.FILTER);
+    }
+
+    private Query buildContainsQuery(String field, String expected) {
+        String value = expected.trim().toLowerCase(Locale.ROOT)
+            .replace("\\", "\\\\")
+            .replace("*", "\\*")
+            .replace("?", "\\?");
+        return new WildcardQuery(new Term(field, "*" + value + "*"));
+    }
+
+    private Document toDocument(IndexedContentDO content) {
+        Document document = new Document();
+        document.add(new StringField(FIELD_DOCUMENT_ID, content.getDocumentId(), Field.Store.YES));
+        document.add(new StringField(FIELD_SOURCE_MD5, content.getSourceMd5(), Field.Store.YES));
+        document.add(new StoredField(FIELD_SEGMENT_NUMBER, content.getSegmentNumber()));
+        document.add(new TextField(FIELD_TEXT, content.getTextPayload(), Field.Store.YES));
+        document.add(new KnnFloatVectorField(FIELD_VECTOR, content.getVectorEmbedding(), VectorSimilarityFunction.COSINE));
+        document.add(new StoredField(FIELD_VECTOR_DATA, encodeVector(content.getVectorEmbedding())));
+        addStringField(document, FIELD_ENCODER_VERSION, content.getEncoderVersion());
+        addStringField(document, FIELD_VISIBILITY, content.getVisibility());
+        addStringField(document, FIELD_OWNER_ID, content.getOwnerId());
+        addStringField(document, FIELD_DEPARTMENT, content.getDepartment());
+        addStringField(document, FIELD_DOC_TYPE, content.getDocType());
+        addStringField(document, FIELD_POLICY_YEAR, content.getPolicyYear());
+        if (content.getTags() != null) {
+            content.getTags().forEach(tag -> addStringField(document, FIELD_TAGS, tag));
+        }
+        return document;
+    }
+
+    private void addStringField(Document document, String field, String value) {
+        if (value != null) {
+            document.add(new StringField(field, value, Field.Store.YES));
+        }
+    }
+
+    private void commit() throws IOException {
+        writer.commit();
+        searcherManager.maybeRefreshBlocking();
+    }
+
+    private byte[] encodeVector(float[] vector) {
+        ByteBuffer buffer = ByteBuffer.allocate(vector.length * Float.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.asFloatBuffer().put(vector);
+        return buffer.array();
+    }
+
+    private float[] decodeVector(byte[] bytes) {
+        float[] vector = new float[bytes.length / Float.BYTES];
+        ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer().get(vector);
+        return vector;
+    }
+
+    /**
+     * 放宽维度上限的 HNSW 向量格式
+     * 沿用 Lucene99HnswVectorsFormat 的格式名，读取时由 SPI 直接加载标准实现
+     */
+    private static final class HighDimensionVectorsFormat extends KnnVectorsFormat {
+
+        private final KnnVectorsFormat delegate;
+
+        private HighDimensionVectorsFormat(KnnVectorsFormat delegate) {
+            super(delegate.getName());
+            this.delegate = delegate;
+        }
+
+        @Override
+        public KnnVectorsWriter fieldsWriter(SegmentWriteState state) throws IOException {
+            return delegate.fieldsWriter(state);
+        }
+
+        @Override
+        public KnnVectorsReader fieldsReader(SegmentReadState state) throws IOException {
+            return delegate.fieldsReader(state);
+        }
+
+        @Override
+        public int getMaxDimensions(String fieldName) {
+            return MAX_VECTOR_DIMENSIONS;
+        }
+
+        @Override
+        public String toString() {
+            return "HighDimensionVectorsFormat(" + delegate + ", maxDimensions=" + MAX_VECTOR_DIMENSIONS + ")";
+        }
+    }
+}
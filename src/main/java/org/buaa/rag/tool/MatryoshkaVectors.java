@@ -0,0 +1,58 @@
+package org.buaa.rag.tool;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Matryoshka 向量前缀工具
+ * 截取嵌入向量的前 N 维并重新归一化，作为低维粗召回向量
+ */
+public class MatryoshkaVectors {
+
+    /**
+     * 与 {@link #prefix(float[], int)} 一致的 painless 脚本，用于回填已有索引（参数 dims 为前缀维度）
+     */
+    public static final String PREFIX_BACKFILL_SCRIPT =
+            "def v = ctx._source.vectorEmbedding;"
+            + "if (v == null || v.size() < params.dims) { ctx.op = 'noop'; return; }"
+            + "double norm = 0;"
+            + "for (int i = 0; i < params.dims; i++) { double x = (double) v.get(i); norm += x * x; }"
+            + "norm = Math.sqrt(norm);"
+            + "List p = new ArrayList();"
+            + "for (int i = 0; i < params.dims; i++) { p.add(norm == 0 ? 0 : (double) v.get(i) / norm); }"
+            + "ctx._source.vectorPrefix = p;";
+
+    /**
+     * 截取文档向量前缀
+     */
+    public static float[] prefix(float[] vector, int dims) {
+        int length = Math.min(dims, vector.length);
+        double norm = 0;
+        for (int i = 0; i < length; i++) {
+            norm += vector[i] * vector[i];
+        }
+        norm = Math.sqrt(norm);
+        float[] prefix = new float[length];
+        for (int i = 0; i < length; i++) {
+            prefix[i] = norm == 0 ? 0f : (float) (vector[i] / norm);
+        }
+        return prefix;
+    }
+
+    /**
+     * 截取查询向量前缀
+     */
+    public static List<Float> prefix(List<Float> vector, int dims) {
+        int length = Math.min(dims, vector.size());
+        double norm = 0;
+        for (int i = 0; i < length; i++) {
+            norm += vector.get(i) * vector.get(i);
+        }
+        norm = Math.sqrt(norm);
+        List<Float> prefix = new ArrayList<>(length);
+        for (int i = 0; i < length; i++) {
+            prefix.add(norm == 0 ? 0f : (float) (vector.get(i) / norm));
+        }
+        return prefix;
+    }
+}
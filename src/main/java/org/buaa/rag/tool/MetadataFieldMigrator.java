@@ -0,0 +1,299 @@
+package org.buaa.rag.tool;
+
+import co.elastic.clients.elasticsearch.ElasticsearchClient;
+import co.elastic.clients.elasticsearch._types.Conflicts;
+import co.elastic.clients.elasticsearch._types.mapping.Property;
+import co.elastic.clients.elasticsearch.core.UpdateByQueryResponse;
+import co.elastic.clients.elasticsearch.indices.GetMappingResponse;
+import co.elastic.clients.elasticsearch.indices.get_mapping.IndexMappingRecord;
+import co.elastic.clients.json.JsonData;
+import com.baomidou.mybatisplus.core.toolkit.Wrappers;
+import org.buaa.rag.config.RagConfiguration;
+import org.buaa.rag.dao.entity.DocumentDO;
+import org.buaa.rag.dao.mapper.DocumentMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 权限与元数据字段迁移
+ *
+ * <p>为已有索引补充分块级权限与元数据字段（visibility、ownerId、department、docType、policyYear、tags）：
+ * 先追加 keyword 映射，再按数据库中的文档记录逐个 md5 以 update_by_query 回填缺失字段的分块，
+ * 最后将已无对应文档记录的孤立分块标记为 PRIVATE。全部分块都带有 visibility 字段后才开启
+ * 检索时的权限/元数据过滤，此前检索仍只走数据库侧的后置过滤，避免旧分块被过滤条件排除。
+ * 若旧索引已由动态映射将上述字段建成 text 类型，映射无法原地修改，需按 datasource/knowledge.json 重建索引。</p>
+ */
+@Component
+public class MetadataFieldMigrator {
+
+    private static final Logger log = LoggerFactory.getLogger(MetadataFieldMigrator.class);
+
+    private static final long READINESS_CHECK_MILLIS = 60_000;
+    private static final List<String> FIELDS =
+        List.of("visibility", "ownerId", "department", "docType", "policyYear", "tags");
+    private static final String DEFAULT_VISIBILITY = "PRIVATE";
+
+    /**
+     * 将文档元数据写入分块的脚本，入参需经 {@link #metadataParams(DocumentDO)} 归一化
+     */
+    public static final String METADATA_SYNC_SCRIPT =
+        "ctx._source.visibility = params.visibility;"
+        + "ctx._source.ownerId = params.ownerId;"
+        + "ctx._source.department = params.department;"
+        + "ctx._source.docType = params.docType;"
+        + "ctx._source.policyYear = params.policyYear;"
+        + "ctx._source.tags = params.tags;";
+
+    private final ElasticsearchClient esClient;
+    private final DocumentMapper documentMapper;
+    private final RagConfiguration ragConfiguration;
+    private final String indexName;
+
+    private final AtomicBoolean backfillRunning = new AtomicBoolean(false);
+    private volatile boolean mappingCompatible = false;
+    private volatile boolean filterReady = false;
+
+    public MetadataFieldMigrator(ElasticsearchClient esClient,
+                                 DocumentMapper documentMapper,
+                                 RagConfiguration ragConfiguration,
+                                 @Value("${elasticsearch.index:knowledge_base}") String indexName) {
+        this.esClient = esClient;
+        this.documentMapper = documentMapper;
+        this.ragConfiguration = ragConfiguration;
+        this.indexName = indexName;
+    }
+
+    /**
+     * 检索时是否可以直接在 Elasticsearch 中按权限与元数据过滤
+     */
+    public boolean isFilterReady() {
+        return filterReady || ragConfiguration.getLucene().isEnabled();
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void migrateOnStartup() {
+        if (ragConfiguration.getLucene().isEnabled()) {
+            return;
+        }
+        try {
+            mappingCompatible = ensureMapping();
+            if (!mappingCompatible) {
+                return;
+            }
+            filterReady = countMissing() == 0;
+            if (filterReady) {
+                log.info("索引 {} 的权限与元数据字段已就绪，检索启用 Elasticsearch 侧过滤", indexName);
+                return;
+            }
+            if (ragConfiguration.getMetadataBackfill().isMigrateOnStartup()) {
+                startBackfill();
+            } else {
+                log.warn("索引 {} 存在缺少权限字段的分块，检索暂用后置过滤，等待回填完成", indexName);
+            }
+        } catch (Exception e) {
+            log.error("权限与元数据字段迁移失败: {}", indexName, e);
+        }
+    }
+
+    /**
+     * 定期确认回填是否已完成（可能由其他实例执行），完成后开启 Elasticsearch 侧过滤
+     */
+    @Scheduled(fixedDelay = READINESS_CHECK_MILLIS, initialDelay = READINESS_CHECK_MILLIS)
+    public void refreshIfPending() {
+        if (filterReady || !mappingCompatible || backfillRunning.get()) {
+            return;
+        }
+        try {
+            if (countMissing() == 0) {
+                filterReady = true;
+                log.info("索引 {} 的权限与元数据字段回填已完成，检索启用 Elasticsearch 侧过滤", indexName);
+            }
+        } catch (Exception e) {
+            log.warn("权限字段回填状态检查失败: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * 构造 {@link #METADATA_SYNC_SCRIPT} 的参数，元数据统一去空白并转小写
+     */
+    public static Map<String, JsonData> metadataParams(DocumentDO record) {
+        Map<String, JsonData> params = new HashMap<>();
+        String visibility = record.getVisibility();
+        params.put("visibility", JsonData.of(visibility == null || visibility.isBlank() ? DEFAULT_VISIBILITY : visibility));
+        params.put("ownerId", JsonData.of(record.getUserId()));
+        params.put("department", JsonData.of(normalizeValue(record.getDepartment())));
+        params.put("docType", JsonData.of(normalizeValue(record.getDocType())));
+        params.put("policyYear", JsonData.of(normalizeValue(record.getPolicyYear())));
+        params.put("tags", JsonData.of(normalizeTags(record.getTags())));
+        return params;
+    }
+
+    private boolean ensureMapping() throws Exception {
+        GetMappingResponse response = esClient.indices().getMapping(builder -> builder.index(indexName));
+        List<String> missing = new ArrayList<>();
+        for (String field : FIELDS) {
+            Property property = indexedProperty(response, field);
+            if (property == null) {
+                missing.add(field);
+            } else if (!property.isKeyword()) {
+                log.error("索引 {} 的 {} 字段类型为 {}，无法原地改为 keyword，检索将保持后置过滤；"
+                        + "请按 datasource/knowledge.json 新建索引并 reindex",
+                    indexName, field, property._kind().jsonValue());
+                return false;
+            }
+        }
+        if (missing.isEmpty()) {
+            return true;
+        }
+        StringBuilder mapping = new StringBuilder("{\"properties\":{");
+        for (int i = 0; i < missing.size(); i++) {
+            if (i > 0) {
+                mapping.append(',');
+            }
+            mapping.append('"').append(missing.get(i)).append("\":{\"type\":\"keyword\"}");
+        }
+        mapping.append("}}");
+        esClient.indices().putMapping(builder -> builder
+            .index(indexName)
+            .withJson(new StringReader(mapping.toString()))
+        );
+        log.info("索引 {} 已追加权限与元数据字段映射: {}", indexName, missing);
+        return true;
+    }
+
+    private Property indexedProperty(GetMappingResponse response, String field) {
+        for (IndexMappingRecord record : response.result().values()) {
+            if (record.mappings() == null) {
+                continue;
+            }
+            Property property = record.mappings().properties().get(field);
+            if (property != null) {
+                return property;
+            }
+        }
+        return null;
+    }
+
+    private void startBackfill() {
+        if (!backfillRunning.compareAndSet(false, true)) {
+            return;
+        }
+        Thread thread = new Thread(() -> {
+            try {
+                long updated = backfill();
+                filterReady = countMissing() == 0;
+                log.info("索引 {} 的权限与元数据字段回填完成，更新分块数: {}，Elasticsearch 侧过滤: {}",
+                    indexName, updated, filterReady ? "已启用" : "未启用");
+            } catch (Exception e) {
+                log.error("权限与元数据字段回填失败，检索保持后置过滤: {}", indexName, e);
+            } finally {
+                backfillRunning.set(false);
+            }
+        }, "metadata-field-backfill");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private long backfill() throws Exception {
+        int pageSize = Math.max(1, ragConfiguration.getMetadataBackfill().getPageSize());
+        long updated = 0;
+        long lastId = 0;
+        while (true) {
+            List<DocumentDO> page = documentMapper.selectList(Wrappers.lambdaQuery(DocumentDO.class)
+                .select(DocumentDO::getId, DocumentDO::getMd5Hash, DocumentDO::getUserId,
+                    DocumentDO::getVisibility, DocumentDO::getDepartment, DocumentDO::getDocType,
+                    DocumentDO::getPolicyYear, DocumentDO::getTags)
+                .gt(DocumentDO::getId, lastId)
+                .orderByAsc(DocumentDO::getId)
+                .last("LIMIT " + pageSize));
+            for (DocumentDO record : page) {
+                updated += backfillDocument(record);
+            }
+            if (page.size() < pageSize) {
+                break;
+            }
+            lastId = page.get(page.size() - 1).getId();
+        }
+        return updated + markOrphans();
+    }
+
+    private long backfillDocument(DocumentDO record) throws Exception {
+        UpdateByQueryResponse response = esClient.updateByQuery(builder -> builder
+            .index(indexName)
+            .query(query -> query.bool(bool -> bool
+                .filter(filter -> filter.term(term -> term.field("sourceMd5").value(record.getMd5Hash())))
+                .mustNot(mustNot -> mustNot.exists(exists -> exists.field("visibility")))
+            ))
+            .script(script -> script.inline(inline -> inline
+                .lang("painless")
+                .source(METADATA_SYNC_SCRIPT)
+                .params(metadataParams(record))
+            ))
+            .conflicts(Conflicts.Proceed)
+        );
+        return response.updated() == null ? 0 : response.updated();
+    }
+
+    /**
+     * 数据库中已无记录的分块在后置过滤中本就不可见，统一标记为 PRIVATE 以便回填状态收敛
+     */
+    private long markOrphans() throws Exception {
+        UpdateByQueryResponse response = esClient.updateByQuery(builder -> builder
+            .index(indexName)
+            .query(query -> query.bool(bool -> bool
+                .mustNot(mustNot -> mustNot.exists(exists -> exists.field("visibility")))
+            ))
+            .script(script -> script.inline(inline -> inline
+                .lang("painless")
+                .source("ctx._source.visibility = params.visibility;")
+                .params(Map.of("visibility", JsonData.of(DEFAULT_VISIBILITY)))
+            ))
+            .conflicts(Conflicts.Proceed)
+            .refresh(true)
+        );
+        return response.updated() == null ? 0 : response.updated();
+    }
+
+    private long countMissing() throws Exception {
+        return esClient.count(builder -> builder
+            .index(indexName)
+            .query(query -> query.bool(bool -> bool
+                .mustNot(mustNot -> mustNot.exists(exists -> exists.field("visibility")))
+            ))
+        ).count();
+    }
+
+    private static String normalizeValue(String value) {
+        if (value == null || value.isBlank()) {
+            return null;
+        }
+        return value.trim().toLowerCase(Locale.ROOT);
+    }
+
+    private static List<String> normalizeTags(String tags) {
+        if (tags == null || tags.isBlank()) {
+            return List.of();
+        }
+        List<String> results = new ArrayList<>();
+        for (String part : tags.split("[,，;；]")) {
+            String trimmed = part.trim();
+            if (!trimmed.isEmpty()) {
+                results.add(trimmed.toLowerCase(Locale.ROOT));
+            }
+        }
+        return results.stream().distinct().toList();
+    }
+}
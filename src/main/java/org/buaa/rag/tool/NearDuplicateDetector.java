@@ -0,0 +1,409 @@
+package org.buaa.rag.tool;
+
+import com.baomidou.mybatisplus.core.toolkit.Wrappers;
+import org.buaa.rag.common.event.DocumentChangedEvent;
+import org.buaa.rag.config.RagConfiguration;
+import org.buaa.rag.dao.entity.TextSegmentDO;
+import org.buaa.rag.dao.mapper.TextSegmentMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 片段近重复检测
+ *
+ * <p>对归一化后的片段文本按字符 shingle 计算 MinHash 签名，按 LSH 分段（bands × rows）分桶找候选，
+ * 签名相同位置占比（Jaccard 估计）达到 rag.near-duplicate.threshold 即视为近重复，指向相似度最高的已有片段作为规范片段。
+ * 同一文档内的近重复（每页重复的页眉页脚、重复条款）在入库时折叠，不再编码与索引；
+ * 跨文档的近重复只记录规范片段，因为不同文档的可见性、元数据过滤条件与删除生命周期各不相同。
+ * 跨文档索引常驻内存，启动后由后台线程分页从 text_segments 加载（只读取保留下来的片段），文档删除时移除；
+ * 加载完成前入库的文档只与已加载部分比对跨文档重复。</p>
+ */
+@Component
+public class NearDuplicateDetector implements StatsSource {
+
+    private static final Logger log = LoggerFactory.getLogger(NearDuplicateDetector.class);
+
+    private static final long SEED = 0x5DEECE66DL;
+    private static final int LOAD_PAGE_SIZE = 500;
+
+    private final RagConfiguration ragConfiguration;
+    private final TextSegmentMapper segmentMapper;
+
+    private final Map<Long, List<IndexedChunk>> buckets = new HashMap<>();
+    private final Map<String, List<IndexedChunk>> chunksByDocument = new HashMap<>();
+    private final AtomicBoolean loadStarted = new AtomicBoolean(false);
+    /**
+     * 加载期间重新入库或删除的文档，以内存中的最新状态为准，加载时跳过
+     */
+    private final Set<String> changedDuringLoad = new HashSet<>();
+    private volatile boolean loaded;
+    private long[] hashSeeds;
+
+    private final AtomicLong collapsed = new AtomicLong();
+    private final AtomicLong crossDocument = new AtomicLong();
+
+    public NearDuplicateDetector(RagConfiguration ragConfiguration, TextSegmentMapper segmentMapper) {
+        this.ragConfiguration = ragConfiguration;
+        this.segmentMapper = segmentMapper;
+    }
+
+    public boolean isEnabled() {
+        RagConfiguration.NearDuplicate config = ragConfiguration.getNearDuplicate();
+        return config != null && config.isEnabled();
+    }
+
+    /**
+     * 检测文档片段中的近重复
+     *
+     * @param documentMd5 文档MD5
+     * @param chunks      按顺序排列的片段文本（片段序号从 1 开始）
+     * @return 与输入一一对应的规范片段，非重复片段为 null
+     */
+    public List<CanonicalChunk> detect(String documentMd5, List<String> chunks) {
+        List<CanonicalChunk> result = new ArrayList<>(chunks.size());
+        if (!isEnabled()) {
+            chunks.forEach(chunk -> result.add(null));
+            return result;
+        }
+        RagConfiguration.NearDuplicate config = ragConfiguration.getNearDuplicate();
+        boolean crossDocumentEnabled = config.isCrossDocument();
+        if (crossDocumentEnabled) {
+            startLoading();
+        }
+
+        Map<Long, List<IndexedChunk>> localBuckets = new HashMap<>();
+        List<IndexedChunk> kept = new ArrayList<>();
+        for (int i = 0; i < chunks.size(); i++) {
+            int[] signature = signature(chunks.get(i));
+            if (signature == null) {
+                result.add(null);
+                continue;
+            }
+            IndexedChunk local = findSimilar(localBuckets, signature, null);
+            if (local != null) {
+                result.add(new CanonicalChunk(documentMd5, local.fragmentIndex));
+                collapsed.incrementAndGet();
+                continue;
+            }
+            IndexedChunk chunk = new IndexedChunk(documentMd5, i + 1, signature);
+            addToBuckets(localBuckets, chunk);
+            kept.add(chunk);
+
+            IndexedChunk remote = null;
+            if (crossDocumentEnabled) {
+                synchronized (this) {
+                    remote = findSimilar(buckets, signature, documentMd5);
+                }
+            }
+            if (remote != null) {
+                crossDocument.incrementAndGet();
+            }
+            result.add(remote == null ? null : new CanonicalChunk(remote.documentMd5, remote.fragmentIndex));
+        }
+
+        if (crossDocumentEnabled) {
+            synchronized (this) {
+                removeDocument(documentMd5);
+                for (IndexedChunk chunk : kept) {
+                    register(chunk);
+                }
+                if (!loaded) {
+                    changedDuringLoad.add(documentMd5);
+                }
+            }
+        }
+        long collapsedCount = result.stream()
+            .filter(canonical -> canonical != null && documentMd5.equals(canonical.getDocumentMd5()))
+            .count();
+        if (collapsedCount > 0) {
+            log.info("近重复检测 - 文档: {}, 片段数: {}, 文档内折叠: {}", documentMd5, chunks.size(), collapsedCount);
+        }
+        return result;
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onDocumentChanged(DocumentChangedEvent event) {
+        if (event.getType() != DocumentChangedEvent.Type.DELETED || event.getMd5Hash() == null) {
+            return;
+        }
+        synchronized (this) {
+            removeDocument(event.getMd5Hash());
+            if (!loaded) {
+                changedDuringLoad.add(event.getMd5Hash());
+            }
+        }
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void loadOnStartup() {
+        if (isEnabled() && ragConfiguration.getNearDuplicate().isCrossDocument()) {
+            startLoading();
+        }
+    }
+
+    @Override
+    public String statsName() {
+        return "nearDuplicate";
+    }
+
+    /**
+     * 检测统计信息
+     */
+    @Override
+    public synchronized Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("indexedChunks", chunksByDocument.values().stream().mapToInt(List::size).sum());
+        stats.put("collapsed", collapsed.get());
+        stats.put("crossDocument", crossDocument.get());
+        return stats;
+    }
+
+    /**
+     * 后台加载跨文档索引，入库线程不等待
+     */
+    private void startLoading() {
+        if (loaded || !loadStarted.compareAndSet(false, true)) {
+            return;
+        }
+        Thread thread = new Thread(this::load, "near-duplicate-loader");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * 分页读取保留下来的片段（规范片段为空或指向其他文档），签名在锁外计算，按页注册
+     */
+    private void load() {
+        long lastId = 0;
+        int total = 0;
+        try {
+            while (true) {
+                List<TextSegmentDO> page = segmentMapper.selectList(Wrappers.lambdaQuery(TextSegmentDO.class)
+                    .select(TextSegmentDO::getSegmentId, TextSegmentDO::getDocumentMd5,
+                        TextSegmentDO::getFragmentIndex, TextSegmentDO::getTextData)
+                    .gt(TextSegmentDO::getSegmentId, lastId)
+                    .and(wrapper -> wrapper.isNull(TextSegmentDO::getCanonicalMd5)
+                        .or()
+                        .apply("canonical_md5 <> document_md5"))
+                    .orderByAsc(TextSegmentDO::getSegmentId)
+                    .last("LIMIT " + LOAD_PAGE_SIZE));
+                List<IndexedChunk> chunks = new ArrayList<>(page.size());
+                for (TextSegmentDO segment : page) {
+                    int[] signature = signature(segment.getTextData());
+                    if (signature != null && segment.getFragmentIndex() != null) {
+                        chunks.add(new IndexedChunk(segment.getDocumentMd5(), segment.getFragmentIndex(), signature));
+                    }
+                }
+                synchronized (this) {
+                    for (IndexedChunk chunk : chunks) {
+                        if (!changedDuringLoad.contains(chunk.documentMd5)) {
+                            register(chunk);
+                        }
+                    }
+                }
+                total += chunks.size();
+                if (page.size() < LOAD_PAGE_SIZE) {
+                    break;
+                }
+                lastId = page.get(page.size() - 1).getSegmentId();
+            }
+            log.info("近重复索引加载完成，片段数: {}", total);
+        } catch (Exception e) {
+            log.warn("近重复索引加载失败，仅检测文档内重复与加载后入库的文档: {}", e.getMessage());
+        } finally {
+            synchronized (this) {
+                changedDuringLoad.clear();
+                loaded = true;
+            }
+        }
+    }
+
+    private IndexedChunk findSimilar(Map<Long, List<IndexedChunk>> index, int[] signature, String excludedMd5) {
+        RagConfiguration.NearDuplicate config = ragConfiguration.getNearDuplicate();
+        IndexedChunk best = null;
+        double bestSimilarity = config.getThreshold();
+        for (int band = 0; band < config.getBands(); band++) {
+            List<IndexedChunk> candidates = index.get(bandKey(signature, band, config.getRows()));
+            if (candidates == null) {
+                continue;
+            }
+            for (IndexedChunk candidate : candidates) {
+                if (candidate.documentMd5.equals(excludedMd5)) {
+                    continue;
+                }
+                double similarity = similarity(signature, candidate.signature);
+                if (similarity >= bestSimilarity) {
+                    bestSimilarity = similarity;
+                    best = candidate;
+                }
+            }
+        }
+        return best;
+    }
+
+    private void register(IndexedChunk chunk) {
+        addToBuckets(buckets, chunk);
+        chunksByDocument.computeIfAbsent(chunk.documentMd5, key -> new ArrayList<>()).add(chunk);
+    }
+
+    private void removeDocument(String documentMd5) {
+        List<IndexedChunk> chunks = chunksByDocument.remove(documentMd5);
+        if (chunks == null) {
+            return;
+        }
+        RagConfiguration.NearDuplicate config = ragConfiguration.getNearDuplicate();
+        for (IndexedChunk chunk : chunks) {
+            for (int band = 0; band < config.getBands(); band++) {
+                long key = bandKey(chunk.signature, band, config.getRows());
+                List<IndexedChunk> bucket = buckets.get(key);
+                if (bucket != null) {
+                    bucket.remove(chunk);
+                    if (bucket.isEmpty()) {
+                        buckets.remove(key);
+                    }
+                }
+            }
+        }
+    }
+
+    private void addToBuckets(Map<Long, List<IndexedChunk>> index, IndexedChunk chunk) {
+        RagConfiguration.NearDuplicate config = ragConfiguration.getNearDuplicate();
+        for (int band = 0; band < config.getBands(); band++) {
+            index.computeIfAbsent(bandKey(chunk.signature, band, config.getRows()), key -> new ArrayList<>())
+                .add(chunk);
+        }
+    }
+
+    /**
+     * MinHash 签名；归一化后过短的片段不参与检测，返回 null
+     */
+    private int[] signature(String text) {
+        RagConfiguration.NearDuplicate config = ragConfiguration.getNearDuplicate();
+        String normalized = normalize(text);
+        if (normalized.length() < Math.max(1, config.getMinChars())) {
+            return null;
+        }
+        long[] seeds = hashSeeds(config.getBands() * config.getRows());
+        long[] minimums = new long[seeds.length];
+        Arrays.fill(minimums, Long.MAX_VALUE);
+
+        int shingleSize = Math.max(1, Math.min(config.getShingleSize(), normalized.length()));
+        for (int start = 0; start + shingleSize <= normalized.length(); start++) {
+            long shingle = 1125899906842597L;
+            for (int i = start; i < start + shingleSize; i++) {
+                shingle = 31 * shingle + normalized.charAt(i);
+            }
+            for (int i = 0; i < seeds.length; i++) {
+                long hash = mix(shingle ^ seeds[i]);
+                if (hash < minimums[i]) {
+                    minimums[i] = hash;
+                }
+            }
+        }
+        int[] signature = new int[minimums.length];
+        for (int i = 0; i < minimums.length; i++) {
+            signature[i] = (int) (minimums[i] ^ (minimums[i] >>> 32));
+        }
+        return signature;
+    }
+
+    private synchronized long[] hashSeeds(int count) {
+        if (hashSeeds == null || hashSeeds.length != count) {
+            SplittableRandom random = new SplittableRandom(SEED);
+            long[] seeds = new long[count];
+            for (int i = 0; i < count; i++) {
+                seeds[i] = random.nextLong();
+            }
+            hashSeeds = seeds;
+        }
+        return hashSeeds;
+    }
+
+    private static String normalize(String text) {
+        if (text == null) {
+            return "";
+        }
+        StringBuilder builder = new StringBuilder(text.length());
+        text.codePoints()
+            .filter(Character::isLetterOrDigit)
+            .map(Character::toLowerCase)
+            .forEach(builder::appendCodePoint);
+        return builder.toString();
+    }
+
+    private static long bandKey(int[] signature, int band, int rows) {
+        long key = band;
+        for (int i = band * rows; i < (band + 1) * rows && i < signature.length; i++) {
+            key = key * 0x9E3779B97F4A7C15L + signature[i];
+        }
+        return key;
+    }
+
+    private static double similarity(int[] a, int[] b) {
+        if (a.length != b.length) {
+            return 0.0;
+        }
+        int equal = 0;
+        for (int i = 0; i < a.length; i++) {
+            if (a[i] == b[i]) {
+                equal++;
+            }
+        }
+        return (double) equal / a.length;
+    }
+
+    private static long mix(long value) {
+        value = (value ^ (value >>> 33)) * 0xff51afd7ed558ccdL;
+        value = (value ^ (value >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return value ^ (value >>> 33);
+    }
+
+    /**
+     * 规范片段引用
+     */
+    public static final class CanonicalChunk {
+        private final String documentMd5;
+        private final int fragmentIndex;
+
+        private CanonicalChunk(String documentMd5, int fragmentIndex) {
+            this.documentMd5 = documentMd5;
+            this.fragmentIndex = fragmentIndex;
+        }
+
+        public String getDocumentMd5() {
+            return documentMd5;
+        }
+
+        public int getFragmentIndex() {
+            return fragmentIndex;
+        }
+    }
+
+    private static final class IndexedChunk {
+        private final String documentMd5;
+        private final int fragmentIndex;
+        private final int[] signature;
+
+        private IndexedChunk(String documentMd5, int fragmentIndex, int[] signature) {
+            this.documentMd5 = documentMd5;
+            this.fragmentIndex = fragmentIndex;
+            this.signature = signature;
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package org.buaa.rag.tool;
+
+import jakarta.annotation.PreDestroy;
+import org.buaa.rag.config.RagConfiguration;
+import org.buaa.rag.dto.RequestDeadline;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 查询向量跨请求微批
+ *
+ * <p>并发对话轮次的查询文本进入同一队列，时间窗口 rag.query-batching.window-millis 到期或攒满 max-batch 条时
+ * 由调度线程合并为一次编码请求（非阻塞调用 {@link VectorEncoding#encodeAsync}）。
+ * 相同文本在途时共享同一个结果（single-flight）。调用方最多等待 timeout-millis，
+ * 传入本轮截止时间时取两者中较早者。</p>
+ */
+@Component
+public class QueryEncodingBatcher implements StatsSource {
+
+    private static final Logger log = LoggerFactory.getLogger(QueryEncodingBatcher.class);
+
+    private final RagConfiguration ragConfiguration;
+    private final VectorEncoding encodingService;
+
+    private final Map<String, CompletableFuture<float[]>> inFlight = new ConcurrentHashMap<>();
+    private final List<String> pending = new ArrayList<>();
+    private final ScheduledExecutorService dispatcher;
+    private ScheduledFuture<?> scheduledFlush;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong flushes = new AtomicLong();
+    private final AtomicLong flushedTexts = new AtomicLong();
+
+    public QueryEncodingBatcher(RagConfiguration ragConfiguration, VectorEncoding encodingService) {
+        this.ragConfiguration = ragConfiguration;
+        this.encodingService = encodingService;
+        this.dispatcher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "query-encoding-batcher");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        dispatcher.shutdownNow();
+    }
+
+    public boolean isEnabled() {
+        RagConfiguration.QueryBatching config = ragConfiguration.getQueryBatching();
+        return config != null && config.isEnabled();
+    }
+
+    /**
+     * 编码单条查询文本
+     */
+    public float[] encode(String text) {
+        return encode(text, RequestDeadline.unbounded());
+    }
+
+    /**
+     * 在本轮截止时间内编码单条查询文本
+     */
+    public float[] encode(String text, RequestDeadline deadline) {
+        return encodeAll(List.of(text), deadline).get(0);
+    }
+
+    /**
+     * 编码多条查询文本，结果与输入一一对应
+     */
+    public List<float[]> encodeAll(List<String> texts) {
+        return encodeAll(texts, RequestDeadline.unbounded());
+    }
+
+    /**
+     * 在本轮截止时间内编码多条查询文本，等待时间取 timeout-millis 与剩余预算的较小值
+     */
+    public List<float[]> encodeAll(List<String> texts, RequestDeadline deadline) {
+        long deadlineNanos = deadline.stageDeadlineNanos(ragConfiguration.getQueryBatching().getTimeoutMillis());
+        if (!isEnabled()) {
+            return await(encodingService.encodeAsync(texts, EmbeddingScheduler.Priority.INTERACTIVE).toFuture(),
+                deadlineNanos);
+        }
+        List<CompletableFuture<float[]>> futures = new ArrayList<>(texts.size());
+        for (String text : texts) {
+            futures.add(submit(text));
+        }
+        List<float[]> vectors = new ArrayList<>(texts.size());
+        for (CompletableFuture<float[]> future : futures) {
+            vectors.add(await(future, deadlineNanos));
+        }
+        return vectors;
+    }
+
+    private static <T> T await(CompletableFuture<T> future, long deadlineNanos) {
+        try {
+            return future.get(Math.max(0, deadlineNanos - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("向量编码过程出错", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("向量编码过程出错", e.getCause());
+        } catch (TimeoutException e) {
+            throw new RuntimeException("向量编码等待超时", e);
+        }
+    }
+
+    @Override
+    public String statsName() {
+        return "queryEncodingBatcher";
+    }
+
+    /**
+     * 微批统计信息
+     */
+    @Override
+    public Map<String, Object> stats() {
+        long flushCount = flushes.get();
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("requests", requests.get());
+        stats.put("coalesced", coalesced.get());
+        stats.put("flushes", flushCount);
+        stats.put("avgBatchSize", flushCount == 0 ? 0.0 : (double) flushedTexts.get() / flushCount);
+        stats.put("inFlight", inFlight.size());
+        return stats;
+    }
+
+    private CompletableFuture<float[]> submit(String text) {
+        requests.incrementAndGet();
+        CompletableFuture<float[]> created = new CompletableFuture<>();
+        CompletableFuture<float[]> existing = inFlight.putIfAbsent(text, created);
+        if (existing != null) {
+            coalesced.incrementAndGet();
+            return existing;
+        }
+        RagConfiguration.QueryBatching config = ragConfiguration.getQueryBatching();
+        synchronized (pending) {
+            pending.add(text);
+            if (pending.size() >= Math.max(1, config.getMaxBatch())) {
+                cancelScheduledFlush();
+                dispatcher.execute(this::flush);
+            } else if (scheduledFlush == null) {
+                scheduledFlush = dispatcher.schedule(this::flush, Math.max(0, config.getWindowMillis()),
+                    TimeUnit.MILLISECONDS);
+            }
+        }
+        return created;
+    }
+
+    private void cancelScheduledFlush() {
+        if (scheduledFlush != null) {
+            scheduledFlush.cancel(false);
+            scheduledFlush = null;
+        }
+    }
+
+    private void flush() {
+        List<String> batch;
+        synchronized (pending) {
+            cancelScheduledFlush();
+            if (pending.isEmpty()) {
+                return;
+            }
+            int size = Math.min(pending.size(), Math.max(1, ragConfiguration.getQueryBatching().getMaxBatch()));
+            batch = new ArrayList<>(pending.subList(0, size));
+            pending.subList(0, size).clear();
+            if (!pending.isEmpty()) {
+                dispatcher.execute(this::flush);
+            }
+        }
+        flushes.incrementAndGet();
+        flushedTexts.addAndGet(batch.size());
+
+        encodingService.encodeAsync(batch, EmbeddingScheduler.Priority.INTERACTIVE).subscribe(
+            vectors -> {
+                for (int i = 0; i < batch.size(); i++) {
+                    CompletableFuture<float[]> future = inFlight.remove(batch.get(i));
+                    if (future == null) {
+                        continue;
+                    }
+                    if (i < vectors.size()) {
+                        future.complete(vectors.get(i));
+                    } else {
+                        future.completeExceptionally(new IllegalStateException("向量编码返回数量不足"));
+                    }
+                }
+            },
+            error -> {
+                log.warn("查询向量微批编码失败，批大小: {}, 原因: {}", batch.size(), error.getMessage());
+                for (String text : batch) {
+                    CompletableFuture<float[]> future = inFlight.remove(text);
+                    if (future != null) {
+                        future.completeExceptionally(error);
+                    }
+                }
+            }
+        );
+    }
+}
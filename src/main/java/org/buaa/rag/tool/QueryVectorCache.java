@@ -0,0 +1,154 @@
+package org.buaa.rag.tool;
+
+import org.buaa.rag.config.RagConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 查询向量缓存
+ * 按 规范化文本 + 模型 + 维度 缓存查询向量，容量有上限（LRU）并支持过期时间
+ */
+@Component
+public class QueryVectorCache implements StatsSource {
+
+    private static final Logger log = LoggerFactory.getLogger(QueryVectorCache.class);
+
+    private final RagConfiguration ragConfiguration;
+    private final VectorEncoding encodingService;
+
+    private final LinkedHashMap<String, CachedVector> entries = new LinkedHashMap<>(256, 0.75f, true);
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();
+
+    public QueryVectorCache(RagConfiguration ragConfiguration, VectorEncoding encodingService) {
+        this.ragConfiguration = ragConfiguration;
+        this.encodingService = encodingService;
+    }
+
+    /**
+     * 查询缓存的向量
+     *
+     * @param text 查询文本
+     * @return 命中时返回向量，否则返回 null
+     */
+    public float[] get(String text) {
+        RagConfiguration.QueryCache config = ragConfiguration.getQueryCache();
+        if (!isEnabled(config) || text == null) {
+            return null;
+        }
+
+        String key = buildKey(text);
+        synchronized (entries) {
+            CachedVector cached = entries.get(key);
+            if (cached == null) {
+                misses.incrementAndGet();
+                return null;
+            }
+            if (cached.isExpired(System.currentTimeMillis())) {
+                entries.remove(key);
+                expirations.incrementAndGet();
+                misses.incrementAndGet();
+                return null;
+            }
+            hits.incrementAndGet();
+            log.debug("查询向量缓存命中: {}", key);
+            return cached.vector;
+        }
+    }
+
+    /**
+     * 写入查询向量
+     */
+    public void put(String text, float[] vector) {
+        RagConfiguration.QueryCache config = ragConfiguration.getQueryCache();
+        if (!isEnabled(config) || text == null || vector == null || vector.length == 0) {
+            return;
+        }
+
+        long expireAt = config.getTtlSeconds() > 0
+            ? System.currentTimeMillis() + config.getTtlSeconds() * 1000L
+            : Long.MAX_VALUE;
+        String key = buildKey(text);
+        synchronized (entries) {
+            entries.put(key, new CachedVector(vector, expireAt));
+            int maxEntries = Math.max(1, config.getMaxEntries());
+            while (entries.size() > maxEntries) {
+                String eldest = entries.keySet().iterator().next();
+                entries.remove(eldest);
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * 清空缓存
+     */
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    @Override
+    public String statsName() {
+        return "queryVectorCache";
+    }
+
+    /**
+     * 缓存统计信息
+     */
+    @Override
+    public Map<String, Object> stats() {
+        long hitCount = hits.get();
+        long missCount = misses.get();
+        long total = hitCount + missCount;
+        int size;
+        synchronized (entries) {
+            size = entries.size();
+        }
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("size", size);
+        stats.put("hits", hitCount);
+        stats.put("misses", missCount);
+        stats.put("hitRate", total == 0 ? 0.0 : (double) hitCount / total);
+        stats.put("evictions", evictions.get());
+        stats.put("expirations", expirations.get());
+        return stats;
+    }
+
+    private boolean isEnabled(RagConfiguration.QueryCache config) {
+        return config != null && config.isEnabled();
+    }
+
+    private String buildKey(String text) {
+        return encodingService.getEncodingModel() + "|"
+            + encodingService.getVectorDimension() + "|"
+            + normalize(text);
+    }
+
+    private String normalize(String text) {
+        return text.replaceAll("\\s+", " ").trim();
+    }
+
+    private static final class CachedVector {
+        private final float[] vector;
+        private final long expireAt;
+
+        private CachedVector(float[] vector, long expireAt) {
+            this.vector = vector;
+            this.expireAt = expireAt;
+        }
+
+        private boolean isExpired(long now) {
+            return now >= expireAt;
+        }
+    }
+}
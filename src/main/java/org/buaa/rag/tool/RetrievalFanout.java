@@ -0,0 +1,157 @@
+package org.buaa.rag.tool;
+
+import jakarta.annotation.PreDestroy;
+import org.buaa.rag.config.RagConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 多路检索并发执行器
+ * 在有界线程池上并发执行检索分支，超过截止时间的分支被取消并以 null 返回；
+ * 线程池与队列已满时直接拒绝新分支（同样以 null 返回），不在调用线程上执行以免突破截止时间；
+ * 指定主分支时，主分支总是在调用线程上执行，不会因线程池饱和被丢弃
+ */
+@Component
+public class RetrievalFanout {
+
+    private static final Logger log = LoggerFactory.getLogger(RetrievalFanout.class);
+
+    private final RagConfiguration ragConfiguration;
+    private final ThreadPoolExecutor executor;
+
+    public RetrievalFanout(RagConfiguration ragConfiguration) {
+        this.ragConfiguration = ragConfiguration;
+        int threads = Math.max(1, ragConfiguration.getFusion().getExecutorThreads());
+        AtomicInteger threadIndex = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(
+            threads,
+            threads,
+            60L,
+            TimeUnit.SECONDS,
+            new ArrayBlockingQueue<>(threads * 4),
+            runnable -> {
+                Thread thread = new Thread(runnable, "retrieval-fanout-" + threadIndex.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            },
+            new ThreadPoolExecutor.AbortPolicy()
+        );
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * 并发执行检索分支
+     *
+     * @param tasks 检索分支
+     * @param deadlineNanos 截止时间（{@link System#nanoTime()} 时间基准）
+     * @return 与 tasks 顺序一致的结果，超时或失败的分支为 null
+     */
+    public <T> List<T> invokeAll(List<Callable<T>> tasks, long deadlineNanos) {
+        return invokeAll(tasks, deadlineNanos, false);
+    }
+
+    /**
+     * 并发执行检索分支
+     *
+     * @param tasks 检索分支
+     * @param deadlineNanos 截止时间（{@link System#nanoTime()} 时间基准）
+     * @param firstIsPrimary 首个分支为主分支（原始查询），在调用线程上执行，其余分支可被丢弃
+     * @return 与 tasks 顺序一致的结果，超时或失败的分支为 null
+     */
+    public <T> List<T> invokeAll(List<Callable<T>> tasks, long deadlineNanos, boolean firstIsPrimary) {
+        List<T> results = new ArrayList<>(tasks.size());
+        if (tasks.isEmpty()) {
+            return results;
+        }
+
+        if (!ragConfiguration.getFusion().isParallel() || tasks.size() == 1) {
+            for (Callable<T> task : tasks) {
+                results.add(System.nanoTime() < deadlineNanos ? callQuietly(task) : null);
+            }
+            return results;
+        }
+
+        List<Future<T>> futures = new ArrayList<>(tasks.size());
+        int rejected = 0;
+        for (int i = 0; i < tasks.size(); i++) {
+            if (firstIsPrimary && i == 0) {
+                futures.add(null);
+                continue;
+            }
+            Callable<T> task = tasks.get(i);
+            try {
+                futures.add(executor.submit(task));
+            } catch (RejectedExecutionException e) {
+                futures.add(null);
+                rejected++;
+            }
+        }
+        if (rejected > 0) {
+            log.warn("检索线程池已满，{} 个检索分支被丢弃", rejected);
+        }
+        T primaryResult = firstIsPrimary ? callQuietly(tasks.get(0)) : null;
+
+        for (int i = 0; i < futures.size(); i++) {
+            Future<T> future = futures.get(i);
+            if (firstIsPrimary && i == 0) {
+                results.add(primaryResult);
+                continue;
+            }
+            if (future == null) {
+                results.add(null);
+                continue;
+            }
+            long remaining = deadlineNanos - System.nanoTime();
+            try {
+                if (remaining <= 0 && !future.isDone()) {
+                    throw new TimeoutException();
+                }
+                results.add(future.get(Math.max(0L, remaining), TimeUnit.NANOSECONDS));
+            } catch (TimeoutException e) {
+                future.cancel(true);
+                log.warn("检索分支 {} 超出截止时间，已取消", i);
+                results.add(null);
+            } catch (ExecutionException e) {
+                log.warn("检索分支 {} 执行失败: {}", i, e.getCause() != null ? e.getCause().getMessage() : e.getMessage());
+                results.add(null);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                for (int j = i; j < futures.size(); j++) {
+                    if (futures.get(j) != null) {
+                        futures.get(j).cancel(true);
+                    }
+                    results.add(null);
+                }
+                return results;
+            }
+        }
+        return results;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private <T> T callQuietly(Callable<T> task) {
+        try {
+            return task.call();
+        } catch (Exception e) {
+            log.warn("检索分支执行失败: {}", e.getMessage());
+            return null;
+        }
+    }
+}
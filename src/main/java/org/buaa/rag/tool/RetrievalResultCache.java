@@ -0,0 +1,232 @@
+package org.buaa.rag.tool;
+
+import static org.buaa.rag.common.consts.CacheConstants.RETRIEVAL_RESULT_KEY;
+
+import com.alibaba.fastjson2.JSON;
+import com.alibaba.fastjson2.TypeReference;
+import org.buaa.rag.config.RagConfiguration;
+import org.buaa.rag.dto.MetadataFilter;
+import org.buaa.rag.dto.RetrievalMatch;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+import org.springframework.util.DigestUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 检索结果两级缓存
+ *
+ * <p>L1 为进程内 W-TinyLFU 缓存，L2 为 Redis 共享缓存，多实例间共享热点结果。
+ * 缓存键包含 语料代数 + 用户访问范围 + 查询文本 + topK + 元数据过滤条件 + 向量模型，
+ * 文档入库/删除使语料代数递增后旧条目不再命中，由 TTL 回收。
+ * 缓存的是反馈加权之前的候选，反馈评分变化由调用方读取后重新加权体现，无需失效缓存。
+ * Redis 访问失败后暂停使用 L2 一段时间，避免每次检索都等待超时。</p>
+ */
+@Component
+public class RetrievalResultCache implements StatsSource {
+
+    private static final Logger log = LoggerFactory.getLogger(RetrievalResultCache.class);
+    private static final long L2_RETRY_DELAY_MILLIS = 30_000;
+    private static final TypeReference<List<List<RetrievalMatch>>> RESULT_TYPE = new TypeReference<>() {
+    };
+
+    private final RagConfiguration ragConfiguration;
+    private final StringRedisTemplate stringRedisTemplate;
+    private final DocumentAccessIndex accessIndex;
+    private final CorpusGeneration corpusGeneration;
+    private final VectorEncoding encodingService;
+
+    private final WindowTinyLfuCache<String, CachedResult> localCache;
+
+    private final AtomicLong localHits = new AtomicLong();
+    private final AtomicLong remoteHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong remoteErrors = new AtomicLong();
+
+    private volatile long remoteRetryAt;
+
+    public RetrievalResultCache(RagConfiguration ragConfiguration,
+                                StringRedisTemplate stringRedisTemplate,
+                                DocumentAccessIndex accessIndex,
+                                CorpusGeneration corpusGeneration,
+                                VectorEncoding encodingService) {
+        this.ragConfiguration = ragConfiguration;
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.accessIndex = accessIndex;
+        this.corpusGeneration = corpusGeneration;
+        this.encodingService = encodingService;
+        this.localCache = new WindowTinyLfuCache<>(ragConfiguration.getRetrievalCache().getMaxEntries());
+    }
+
+    public boolean isEnabled() {
+        RagConfiguration.RetrievalCache config = ragConfiguration.getRetrievalCache();
+        return config != null && config.isEnabled();
+    }
+
+    /**
+     * 构建缓存键
+     *
+     * @param kind    检索类型（单查询 / 查询计划）
+     * @param queries 参与检索的查询文本，顺序敏感
+     * @param topK    返回数量
+     * @param userId  用户标识
+     * @param filter  元数据过滤条件
+     * @return 缓存键，未启用时返回 null
+     */
+    public String buildKey(String kind, List<String> queries, int topK, String userId, MetadataFilter filter) {
+        if (!isEnabled()) {
+            return null;
+        }
+        StringBuilder raw = new StringBuilder()
+            .append(kind).append('\u0001')
+            .append(corpusGeneration.current()).append('\u0001')
+            .append(accessIndex.accessScope(userId)).append('\u0001')
+            .append(topK).append('\u0001')
+            .append(filter == null ? "" : filter.cacheKey()).append('\u0001')
+            .append(encodingService.getEncodingModel()).append('\u0001');
+        for (String query : queries) {
+            raw.append(query == null ? "" : query.replaceAll("\\s+", " ").trim()).append('\u0002');
+        }
+        return DigestUtils.md5DigestAsHex(raw.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * 读取缓存结果，先查本地再查 Redis
+     *
+     * @return 命中时返回结果副本，否则返回 null
+     */
+    public List<List<RetrievalMatch>> get(String key) {
+        if (key == null || !isEnabled()) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        CachedResult cached = localCache.get(key);
+        if (cached != null) {
+            if (now < cached.expireAt) {
+                localHits.incrementAndGet();
+                return copy(cached.results);
+            }
+            localCache.remove(key);
+        }
+
+        List<List<RetrievalMatch>> remote = readRemote(key);
+        if (remote != null) {
+            remoteHits.incrementAndGet();
+            localCache.put(key, new CachedResult(remote, now + ttlMillis()));
+            return copy(remote);
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * 写入检索结果（同时写入本地与 Redis）
+     */
+    public void put(String key, List<List<RetrievalMatch>> results) {
+        if (key == null || !isEnabled() || results == null) {
+            return;
+        }
+        List<List<RetrievalMatch>> snapshot = copy(results);
+        localCache.put(key, new CachedResult(snapshot, System.currentTimeMillis() + ttlMillis()));
+        writeRemote(key, snapshot);
+    }
+
+    @Override
+    public String statsName() {
+        return "retrievalResultCache";
+    }
+
+    /**
+     * 缓存统计信息
+     */
+    @Override
+    public Map<String, Object> stats() {
+        long localHitCount = localHits.get();
+        long remoteHitCount = remoteHits.get();
+        long missCount = misses.get();
+        long total = localHitCount + remoteHitCount + missCount;
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("localSize", localCache.size());
+        stats.put("localHits", localHitCount);
+        stats.put("remoteHits", remoteHitCount);
+        stats.put("misses", missCount);
+        stats.put("hitRate", total == 0 ? 0.0 : (double) (localHitCount + remoteHitCount) / total);
+        stats.put("localEvictions", localCache.evictions());
+        stats.put("remoteErrors", remoteErrors.get());
+        return stats;
+    }
+
+    private List<List<RetrievalMatch>> readRemote(String key) {
+        if (!isRemoteAvailable()) {
+            return null;
+        }
+        try {
+            String json = stringRedisTemplate.opsForValue().get(RETRIEVAL_RESULT_KEY + key);
+            return json == null ? null : JSON.parseObject(json, RESULT_TYPE);
+        } catch (Exception e) {
+            markRemoteFailure(e);
+            return null;
+        }
+    }
+
+    private void writeRemote(String key, List<List<RetrievalMatch>> results) {
+        if (!isRemoteAvailable()) {
+            return;
+        }
+        try {
+            stringRedisTemplate.opsForValue().set(
+                RETRIEVAL_RESULT_KEY + key, JSON.toJSONString(results), ttlMillis(), TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            markRemoteFailure(e);
+        }
+    }
+
+    private boolean isRemoteAvailable() {
+        return ragConfiguration.getRetrievalCache().isL2Enabled()
+            && System.currentTimeMillis() >= remoteRetryAt;
+    }
+
+    private void markRemoteFailure(Exception e) {
+        remoteErrors.incrementAndGet();
+        remoteRetryAt = System.currentTimeMillis() + L2_RETRY_DELAY_MILLIS;
+        log.warn("检索结果 Redis 缓存不可用，{} 秒内仅使用本地缓存: {}", L2_RETRY_DELAY_MILLIS / 1000, e.getMessage());
+    }
+
+    private long ttlMillis() {
+        return Math.max(1, ragConfiguration.getRetrievalCache().getTtlSeconds()) * 1000L;
+    }
+
+    private static List<List<RetrievalMatch>> copy(List<List<RetrievalMatch>> results) {
+        List<List<RetrievalMatch>> copies = new ArrayList<>(results.size());
+        for (List<RetrievalMatch> branch : results) {
+            if (branch == null) {
+                copies.add(null);
+                continue;
+            }
+            List<RetrievalMatch> branchCopy = new ArrayList<>(branch.size());
+            for (RetrievalMatch match : branch) {
+                branchCopy.add(match.copy());
+            }
+            copies.add(branchCopy);
+        }
+        return copies;
+    }
+
+    private static final class CachedResult {
+        private final List<List<RetrievalMatch>> results;
+        private final long expireAt;
+
+        private CachedResult(List<List<RetrievalMatch>> results, long expireAt) {
+            this.results = results;
+            this.expireAt = expireAt;
+        }
+    }
+}
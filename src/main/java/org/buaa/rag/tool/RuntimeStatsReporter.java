@@ -0,0 +1,47 @@
+package org.buaa.rag.tool;
+
+import org.buaa.rag.config.RagConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 运行统计定期输出
+ *
+ * <p>项目未接入指标系统，所有 {@link StatsSource} 组件的统计由本任务按 rag.stats-report.interval-seconds
+ * 汇总写入日志，用于观察命中率、淘汰与排队情况。</p>
+ */
+@Component
+public class RuntimeStatsReporter {
+
+    private static final Logger log = LoggerFactory.getLogger(RuntimeStatsReporter.class);
+
+    private final RagConfiguration ragConfiguration;
+    private final List<StatsSource> sources;
+
+    public RuntimeStatsReporter(RagConfiguration ragConfiguration, List<StatsSource> sources) {
+        this.ragConfiguration = ragConfiguration;
+        this.sources = sources;
+    }
+
+    @Scheduled(fixedDelayString = "${rag.stats-report.interval-seconds:300}",
+        initialDelayString = "${rag.stats-report.interval-seconds:300}",
+        timeUnit = TimeUnit.SECONDS)
+    public void report() {
+        RagConfiguration.StatsReport config = ragConfiguration.getStatsReport();
+        if (config == null || !config.isEnabled()) {
+            return;
+        }
+        for (StatsSource source : sources) {
+            try {
+                log.info("运行统计 [{}]: {}", source.statsName(), source.stats());
+            } catch (Exception e) {
+                log.debug("读取运行统计失败 [{}]: {}", source.statsName(), e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,352 @@
+package org.buaa.rag.tool;
+
+import org.buaa.rag.common.event.DocumentChangedEvent;
+import org.buaa.rag.config.RagConfiguration;
+import org.buaa.rag.dto.MetadataFilter;
+import org.buaa.rag.dto.RetrievalMatch;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.event.TransactionalEventListener;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 语义答案缓存
+ *
+ * <p>按问题向量的余弦相似度匹配已生成的回答，命中阈值 rag.answer-cache.similarity-threshold 以上时
+ * 直接返回答案与来源，跳过检索与大模型生成。条目按 用户访问范围 + 元数据过滤条件 分桶，
+ * 查找只扫描所属范围内的条目，并记录写入时的语料代数；语料变化后旧条目不再命中，引用文档变更时立即移除相关条目。</p>
+ */
+@Component
+public class SemanticAnswerCache implements StatsSource {
+
+    private static final Logger log = LoggerFactory.getLogger(SemanticAnswerCache.class);
+
+    private final RagConfiguration ragConfiguration;
+    private final DocumentAccessIndex accessIndex;
+    private final CorpusGeneration corpusGeneration;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final LinkedHashMap<Long, CachedAnswer> entries = new LinkedHashMap<>();
+    private final Map<String, Map<Long, CachedAnswer>> entriesByScope = new HashMap<>();
+    private final Map<String, Set<Long>> entriesByDocument = new HashMap<>();
+    private final AtomicLong idSequence = new AtomicLong();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    public SemanticAnswerCache(RagConfiguration ragConfiguration,
+                               DocumentAccessIndex accessIndex,
+                               CorpusGeneration corpusGeneration) {
+        this.ragConfiguration = ragConfiguration;
+        this.accessIndex = accessIndex;
+        this.corpusGeneration = corpusGeneration;
+    }
+
+    public boolean isEnabled() {
+        RagConfiguration.AnswerCache config = ragConfiguration.getAnswerCache();
+        return config != null && config.isEnabled();
+    }
+
+    /**
+     * 查找语义相近的已缓存回答
+     *
+     * @param userId         用户标识
+     * @param filter         元数据过滤条件
+     * @param questionVector 问题向量
+     * @return 命中时返回回答（来源为副本），否则返回 null
+     */
+    public CachedAnswer lookup(String userId, MetadataFilter filter, float[] questionVector) {
+        if (!isEnabled() || questionVector == null || questionVector.length == 0) {
+            return null;
+        }
+        float[] unit = normalize(questionVector);
+        if (unit == null) {
+            return null;
+        }
+        String scopeKey = buildScopeKey(userId, filter);
+        long generation = corpusGeneration.current();
+        long now = System.currentTimeMillis();
+        double threshold = ragConfiguration.getAnswerCache().getSimilarityThreshold();
+
+        CachedAnswer best = null;
+        double bestSimilarity = threshold;
+        lock.readLock().lock();
+        try {
+            Map<Long, CachedAnswer> scoped = entriesByScope.getOrDefault(scopeKey, Map.of());
+            for (CachedAnswer candidate : scoped.values()) {
+                if (candidate.generation != generation
+                    || now >= candidate.expireAt
+                    || candidate.vector.length != unit.length) {
+                    continue;
+                }
+                double similarity = dot(candidate.vector, unit);
+                if (similarity >= bestSimilarity) {
+                    bestSimilarity = similarity;
+                    best = candidate;
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        if (best == null || !isAccessible(userId, best)) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        log.debug("语义答案缓存命中，相似度: {}", bestSimilarity);
+        return best.copy();
+    }
+
+    /**
+     * 写入回答
+     */
+    public void put(String userId,
+                    MetadataFilter filter,
+                    float[] questionVector,
+                    String answer,
+                    List<RetrievalMatch> sources) {
+        if (!isEnabled() || questionVector == null || answer == null || answer.isBlank()) {
+            return;
+        }
+        float[] unit = normalize(questionVector);
+        if (unit == null) {
+            return;
+        }
+        RagConfiguration.AnswerCache config = ragConfiguration.getAnswerCache();
+        long expireAt = config.getTtlSeconds() > 0
+            ? System.currentTimeMillis() + config.getTtlSeconds() * 1000L
+            : Long.MAX_VALUE;
+        List<RetrievalMatch> copiedSources = copySources(sources);
+        Set<String> citedDocuments = new HashSet<>();
+        for (RetrievalMatch source : copiedSources) {
+            if (source.getFileMd5() != null) {
+                citedDocuments.add(source.getFileMd5());
+            }
+        }
+        CachedAnswer cached = new CachedAnswer(
+            idSequence.incrementAndGet(),
+            buildScopeKey(userId, filter),
+            unit,
+            answer,
+            copiedSources,
+            citedDocuments,
+            corpusGeneration.current(),
+            expireAt
+        );
+
+        lock.writeLock().lock();
+        try {
+            entries.put(cached.id, cached);
+            entriesByScope.computeIfAbsent(cached.scopeKey, key -> new HashMap<>()).put(cached.id, cached);
+            for (String md5Hash : citedDocuments) {
+                entriesByDocument.computeIfAbsent(md5Hash, key -> new HashSet<>()).add(cached.id);
+            }
+            int maxEntries = Math.max(1, config.getMaxEntries());
+            Iterator<CachedAnswer> iterator = entries.values().iterator();
+            while (entries.size() > maxEntries && iterator.hasNext()) {
+                CachedAnswer eldest = iterator.next();
+                iterator.remove();
+                unlink(eldest);
+                evictions.incrementAndGet();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @TransactionalEventListener(fallbackExecution = true)
+    public void onDocumentChanged(DocumentChangedEvent event) {
+        if (event.getMd5Hash() == null) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            Set<Long> ids = entriesByDocument.remove(event.getMd5Hash());
+            if (ids == null) {
+                return;
+            }
+            for (Long id : ids) {
+                CachedAnswer removed = entries.remove(id);
+                if (removed != null) {
+                    unlink(removed);
+                    invalidations.incrementAndGet();
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 清空缓存
+     */
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            entries.clear();
+            entriesByScope.clear();
+            entriesByDocument.clear();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public String statsName() {
+        return "semanticAnswerCache";
+    }
+
+    /**
+     * 缓存统计信息
+     */
+    @Override
+    public Map<String, Object> stats() {
+        long hitCount = hits.get();
+        long missCount = misses.get();
+        long total = hitCount + missCount;
+        int size;
+        lock.readLock().lock();
+        try {
+            size = entries.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("size", size);
+        stats.put("hits", hitCount);
+        stats.put("misses", missCount);
+        stats.put("hitRate", total == 0 ? 0.0 : (double) hitCount / total);
+        stats.put("evictions", evictions.get());
+        stats.put("invalidations", invalidations.get());
+        return stats;
+    }
+
+    private boolean isAccessible(String userId, CachedAnswer cached) {
+        if (!accessIndex.isReady()) {
+            return true;
+        }
+        for (String md5Hash : cached.citedDocuments) {
+            if (!accessIndex.canAccess(userId, md5Hash)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void unlink(CachedAnswer cached) {
+        Map<Long, CachedAnswer> scoped = entriesByScope.get(cached.scopeKey);
+        if (scoped != null) {
+            scoped.remove(cached.id);
+            if (scoped.isEmpty()) {
+                entriesByScope.remove(cached.scopeKey);
+            }
+        }
+        for (String md5Hash : cached.citedDocuments) {
+            Set<Long> ids = entriesByDocument.get(md5Hash);
+            if (ids != null) {
+                ids.remove(cached.id);
+                if (ids.isEmpty()) {
+                    entriesByDocument.remove(md5Hash);
+                }
+            }
+        }
+    }
+
+    private String buildScopeKey(String userId, MetadataFilter filter) {
+        return accessIndex.accessScope(userId) + "|" + (filter == null ? "" : filter.cacheKey());
+    }
+
+    private static List<RetrievalMatch> copySources(List<RetrievalMatch> sources) {
+        if (sources == null || sources.isEmpty()) {
+            return List.of();
+        }
+        List<RetrievalMatch> copies = new ArrayList<>(sources.size());
+        for (RetrievalMatch source : sources) {
+            copies.add(source.copy());
+        }
+        return copies;
+    }
+
+    private static float[] normalize(float[] vector) {
+        double norm = 0.0;
+        for (float value : vector) {
+            norm += value * value;
+        }
+        if (norm == 0.0) {
+            return null;
+        }
+        double scale = 1.0 / Math.sqrt(norm);
+        float[] unit = new float[vector.length];
+        for (int i = 0; i < vector.length; i++) {
+            unit[i] = (float) (vector[i] * scale);
+        }
+        return unit;
+    }
+
+    private static double dot(float[] a, float[] b) {
+        double sum = 0.0;
+        for (int i = 0; i < a.length; i++) {
+            sum += a[i] * b[i];
+        }
+        return sum;
+    }
+
+    /**
+     * 缓存的回答
+     */
+    public static final class CachedAnswer {
+        private final long id;
+        private final String scopeKey;
+        private final float[] vector;
+        private final String answer;
+        private final List<RetrievalMatch> sources;
+        private final Set<String> citedDocuments;
+        private final long generation;
+        private final long expireAt;
+
+        private CachedAnswer(long id,
+                             String scopeKey,
+                             float[] vector,
+                             String answer,
+                             List<RetrievalMatch> sources,
+                             Set<String> citedDocuments,
+                             long generation,
+                             long expireAt) {
+            this.id = id;
+            this.scopeKey = scopeKey;
+            this.vector = vector;
+            this.answer = answer;
+            this.sources = sources;
+            this.citedDocuments = citedDocuments;
+            this.generation = generation;
+            this.expireAt = expireAt;
+        }
+
+        public String getAnswer() {
+            return answer;
+        }
+
+        public List<RetrievalMatch> getSources() {
+            return sources;
+        }
+
+        private CachedAnswer copy() {
+            return new CachedAnswer(id, scopeKey, vector, answer, copySources(sources),
+                citedDocuments, generation, expireAt);
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package org.buaa.rag.tool;
+
+import java.util.Map;
+
+/**
+ * 运行统计来源
+ *
+ * <p>实现该接口的组件由 {@link RuntimeStatsReporter} 自动收集并定期输出。</p>
+ */
+public interface StatsSource {
+
+    /**
+     * 统计输出中的名称
+     */
+    String statsName();
+
+    /**
+     * 当前统计快照
+     */
+    Map<String, Object> stats();
+}
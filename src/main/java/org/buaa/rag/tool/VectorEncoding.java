@@ -1,26 +1,49 @@
 package org.buaa.rag.tool;
 
-import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.annotation.PostConstruct;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.http.HttpHeaders;
 import org.springframework.stereotype.Component;
 import org.springframework.web.reactive.function.client.WebClient;
 import org.springframework.web.reactive.function.client.WebClientResponseException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
 import reactor.util.retry.Retry;
 
+import java.io.InputStream;
 import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * 向量编码服务
  * 负责将文本转换为向量表示
+ *
+ * <p>批次以流水线方式并发请求（最多 embedding.api.max-in-flight 个在途），结果按输入顺序拼接。
+ * 遇到限流响应时所有批次共享一个冷却期，冷却时长随连续限流指数增长、请求成功后逐步回落。
+ * 响应体以 DataBuffer 形式交给 {@link EmbeddingResponseDecoder} 流式解码，
+ * embedding.api.encoding-format 可设为 base64 以减小传输体积。
+ * 批次由 {@link EmbeddingBatcher} 按估计 token 数装箱，超限错误会收紧上限并把失败批次拆半重发。
+ * 每次请求前向 {@link EmbeddingScheduler} 按调用方优先级申请配额，优先级经 Reactor Context 传递。</p>
  */
 @Component
-public class VectorEncoding {
+public class VectorEncoding implements StatsSource {
 
     private static final Logger log = LoggerFactory.getLogger(VectorEncoding.class);
+
+    private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(30);
+    private static final Duration RETRY_DELAY = Duration.ofSeconds(1);
+    private static final int MAX_RETRIES = 3;
+    private static final int MAX_RATE_LIMIT_RETRIES = 8;
+    private static final long MIN_RATE_LIMIT_BACKOFF_MILLIS = 500;
+    private static final long MAX_RATE_LIMIT_BACKOFF_MILLIS = 30_000;
+    private static final String PRIORITY_CONTEXT_KEY = VectorEncoding.class.getName() + ".priority";
     
     @Value("${embedding.api.model}")
     private String encodingModel;
@@ -28,16 +51,50 @@ public class VectorEncoding {
     @Value("${embedding.api.batch-size:100}")
     private int processingBatchSize;
 
+    @Value("${embedding.api.max-batch-tokens:32768}")
+    private int maxBatchTokens;
+
+    @Value("${embedding.api.max-input-tokens:8192}")
+    private int maxInputTokens;
+
     @Value("${embedding.api.dimension:2048}")
     private int vectorDimension;
+
+    @Value("${embedding.api.max-in-flight:4}")
+    private int maxInFlight;
+
+    @Value("${embedding.api.encoding-format:float}")
+    private String encodingFormat;
+
+    /**
+     * 阻塞编码的整体等待上限（含排队、限流冷却与重试）
+     */
+    @Value("${embedding.api.encode-timeout-seconds:120}")
+    private long encodeTimeoutSeconds;
     
     private final WebClient httpClient;
 
-    private final ObjectMapper jsonParser;
+    private final EmbeddingResponseDecoder responseDecoder;
+
+    private final EmbeddingScheduler scheduler;
+
+    private EmbeddingBatcher batcher;
 
-    public VectorEncoding(WebClient embeddingWebClient, ObjectMapper objectMapper) {
+    /**
+     * 限流冷却截止时间（毫秒时间戳）与当前退避时长
+     */
+    private final AtomicLong cooldownUntil = new AtomicLong();
+    private final AtomicLong rateLimitBackoffMillis = new AtomicLong();
+
+    public VectorEncoding(WebClient embeddingWebClient, ObjectMapper objectMapper, EmbeddingScheduler scheduler) {
         this.httpClient = embeddingWebClient;
-        this.jsonParser = objectMapper;
+        this.responseDecoder = new EmbeddingResponseDecoder(objectMapper.getFactory());
+        this.scheduler = scheduler;
+    }
+
+    @PostConstruct
+    public void init() {
+        this.batcher = new EmbeddingBatcher(processingBatchSize, maxBatchTokens, maxInputTokens);
     }
 
     /**
@@ -47,26 +104,19 @@ public class VectorEncoding {
      * @return 对应的向量数组列表
      */
     public List<float[]> encode(List<String> textList) {
+        return encode(textList, EmbeddingScheduler.Priority.INTERACTIVE);
+    }
+
+    /**
+     * 按指定优先级进行向量编码
+     *
+     * @param textList 待编码的文本列表
+     * @param priority 调度优先级，文档摄取使用 BACKGROUND
+     * @return 对应的向量数组列表
+     */
+    public List<float[]> encode(List<String> textList, EmbeddingScheduler.Priority priority) {
         try {
-            log.info("启动向量编码任务，文本总数: {}", textList.size());
-            
-            List<float[]> allVectors = new ArrayList<>(textList.size());
-            
-            // 分批处理
-            List<List<String>> batches = partitionIntoBatches(textList);
-            
-            for (int batchIndex = 0; batchIndex < batches.size(); batchIndex++) {
-                List<String> currentBatch = batches.get(batchIndex);
-                log.debug("处理第 {}/{} 批，大小: {}", 
-                         batchIndex + 1, batches.size(), currentBatch.size());
-                
-                String apiResponse = invokeEncodingApi(currentBatch);
-                List<float[]> batchVectors = extractVectorsFromResponse(apiResponse);
-                allVectors.addAll(batchVectors);
-            }
-            
-            log.info("向量编码完成，共生成 {} 个向量", allVectors.size());
-            return allVectors;
+            return encodeAsync(textList, priority).block(Duration.ofSeconds(Math.max(1, encodeTimeoutSeconds)));
         } catch (Exception e) {
             log.error("向量编码失败: {}", e.getMessage(), e);
             throw new RuntimeException("向量编码过程出错", e);
@@ -74,32 +124,146 @@ public class VectorEncoding {
     }
 
     /**
-     * 将文本列表分批
+     * 非阻塞向量编码
+     * 各批次并发请求，输出顺序与输入一致
+     *
+     * @param textList 待编码的文本列表
+     * @return 对应的向量数组列表
+     */
+    public Mono<List<float[]>> encodeAsync(List<String> textList) {
+        return encodeAsync(textList, EmbeddingScheduler.Priority.INTERACTIVE);
+    }
+
+    /**
+     * 按指定优先级进行非阻塞向量编码
      */
-    private List<List<String>> partitionIntoBatches(List<String> textList) {
-        List<List<String>> batches = new ArrayList<>();
-        
-        for (int i = 0; i < textList.size(); i += processingBatchSize) {
-            int endIndex = Math.min(i + processingBatchSize, textList.size());
-            batches.add(textList.subList(i, endIndex));
+    public Mono<List<float[]>> encodeAsync(List<String> textList, EmbeddingScheduler.Priority priority) {
+        if (textList == null || textList.isEmpty()) {
+            return Mono.just(new ArrayList<>());
         }
-        
-        return batches;
+        List<EmbeddingBatcher.Piece> pieces = batcher.split(textList);
+        List<List<EmbeddingBatcher.Piece>> batches = batcher.pack(pieces);
+        log.info("启动向量编码任务，文本总数: {}, 片段数: {}, 批次数: {}", textList.size(), pieces.size(), batches.size());
+
+        return Flux.fromIterable(batches)
+            .flatMapSequential(this::encodePieces, Math.max(1, maxInFlight))
+            .collect(() -> new ArrayList<float[]>(pieces.size()), List::addAll)
+            .map(pieceVectors -> {
+                List<float[]> allVectors = assemble(textList.size(), pieces, pieceVectors);
+                log.info("向量编码完成，共生成 {} 个向量", allVectors.size());
+                return allVectors;
+            })
+            .contextWrite(context -> context.put(PRIORITY_CONTEXT_KEY, priority));
+    }
+
+    @Override
+    public String statsName() {
+        return "embeddingBatching";
+    }
+
+    /**
+     * 当前批次上限与学习统计
+     */
+    @Override
+    public Map<String, Object> stats() {
+        return batcher.stats();
+    }
+
+    /**
+     * 当前使用的向量模型
+     */
+    public String getEncodingModel() {
+        return encodingModel;
     }
 
     /**
-     * 调用编码API
+     * 当前使用的向量维度
      */
-    private String invokeEncodingApi(List<String> batch) {
+    public int getVectorDimension() {
+        return vectorDimension;
+    }
+
+    /**
+     * 编码一批片段；超限错误时学习上限，多条批次拆半重发，单条片段切成两段后合并
+     */
+    private Mono<List<float[]>> encodePieces(List<EmbeddingBatcher.Piece> batch) {
+        List<String> texts = new ArrayList<>(batch.size());
+        for (EmbeddingBatcher.Piece piece : batch) {
+            texts.add(piece.getText());
+        }
+        return encodeBatch(texts).onErrorResume(WebClientResponseException.class, error -> {
+            if (!batcher.learnFromError(error, batch)) {
+                return Mono.error(error);
+            }
+            log.warn("向量编码请求超限，拆分重试 - 条数: {}, 上限: {}", batch.size(), batcher.stats());
+            if (batch.size() > 1) {
+                int middle = batch.size() / 2;
+                return Flux.concat(
+                        encodePieces(batch.subList(0, middle)),
+                        encodePieces(batch.subList(middle, batch.size())))
+                    .collect(() -> new ArrayList<float[]>(batch.size()), List::addAll);
+            }
+            List<EmbeddingBatcher.Piece> halves = batcher.splitInHalf(batch.get(0));
+            if (halves == null) {
+                return Mono.error(error);
+            }
+            return Flux.concat(encodePieces(halves.subList(0, 1)), encodePieces(halves.subList(1, halves.size())))
+                .collect(() -> new ArrayList<float[]>(2), List::addAll)
+                .map(vectors -> List.of(EmbeddingBatcher.combine(vectors, List.of(
+                    halves.get(0).getTokens(), halves.get(1).getTokens()))));
+        });
+    }
+
+    /**
+     * 将片段向量按原输入合并
+     */
+    private List<float[]> assemble(int inputCount, List<EmbeddingBatcher.Piece> pieces, List<float[]> pieceVectors) {
+        if (pieceVectors.size() != pieces.size()) {
+            throw new IllegalStateException("向量数量与输入不一致，输入: " + pieces.size() + ", 返回: " + pieceVectors.size());
+        }
+        if (pieces.size() == inputCount) {
+            return pieceVectors;
+        }
+        List<float[]> vectors = new ArrayList<>(inputCount);
+        int cursor = 0;
+        for (int origin = 0; origin < inputCount; origin++) {
+            List<float[]> parts = new ArrayList<>();
+            List<Integer> weights = new ArrayList<>();
+            while (cursor < pieces.size() && pieces.get(cursor).getOrigin() == origin) {
+                parts.add(pieceVectors.get(cursor));
+                weights.add(pieces.get(cursor).getTokens());
+                cursor++;
+            }
+            vectors.add(EmbeddingBatcher.combine(parts, weights));
+        }
+        return vectors;
+    }
+
+    /**
+     * 编码单个批次：等待限流冷却结束并取得调度配额后请求，失败按重试策略重试
+     */
+    private Mono<List<float[]>> encodeBatch(List<String> batch) {
         Map<String, Object> requestBody = buildRequestBody(batch);
 
-        return httpClient.post()
-            .uri("/embeddings")
-            .bodyValue(requestBody)
-            .retrieve()
-            .bodyToMono(String.class)
+        return Mono.deferContextual(context -> awaitCooldown()
+            .then(scheduler.acquire(
+                context.getOrDefault(PRIORITY_CONTEXT_KEY, EmbeddingScheduler.Priority.INTERACTIVE)))
+            .then(httpClient.post()
+                .uri("/embeddings")
+                .bodyValue(requestBody)
+                .retrieve()
+                .bodyToMono(DataBuffer.class)
+                .timeout(REQUEST_TIMEOUT)))
             .retryWhen(createRetryPolicy())
-            .block(Duration.ofSeconds(30));
+            .map(buffer -> {
+                relaxRateLimitBackoff();
+                return extractVectorsFromResponse(buffer, batch.size());
+            });
+    }
+
+    private Mono<Void> awaitCooldown() {
+        long waitMillis = cooldownUntil.get() - System.currentTimeMillis();
+        return waitMillis > 0 ? Mono.delay(Duration.ofMillis(waitMillis)).then() : Mono.empty();
     }
 
     /**
@@ -110,50 +274,86 @@ public class VectorEncoding {
         body.put("model", encodingModel);
         body.put("input", batch);
         body.put("dimension", vectorDimension);
-        body.put("encoding_format", "float");
+        body.put("encoding_format", "base64".equalsIgnoreCase(encodingFormat) ? "base64" : "float");
         return body;
     }
 
     /**
      * 创建重试策略
+     * 限流响应按共享冷却期退避并允许更多次重试，其它 HTTP 错误与单次请求超时固定间隔重试
      */
     private Retry createRetryPolicy() {
-        return Retry.fixedDelay(3, Duration.ofSeconds(1))
-            .filter(error -> error instanceof WebClientResponseException);
+        return Retry.from(signals -> signals.concatMap(signal -> {
+            if (signal.failure() instanceof TimeoutException timeout) {
+                if (signal.totalRetries() >= MAX_RETRIES) {
+                    return Mono.error(timeout);
+                }
+                log.warn("向量编码请求超时，{}ms 后重试", RETRY_DELAY.toMillis());
+                return Mono.delay(RETRY_DELAY);
+            }
+            if (!(signal.failure() instanceof WebClientResponseException error) || batcher.isLimitError(error)) {
+                return Mono.error(signal.failure());
+            }
+            boolean rateLimited = isRateLimited(error);
+            if (signal.totalRetries() >= (rateLimited ? MAX_RATE_LIMIT_RETRIES : MAX_RETRIES)) {
+                return Mono.error(error);
+            }
+            Duration delay = rateLimited ? registerRateLimit(error) : RETRY_DELAY;
+            return Mono.delay(delay);
+        }));
+    }
+
+    private boolean isRateLimited(WebClientResponseException error) {
+        if (error.getStatusCode().value() == 429) {
+            return true;
+        }
+        String body = error.getResponseBodyAsString();
+        return body.contains("Throttling") || body.toLowerCase(Locale.ROOT).contains("rate limit");
     }
 
     /**
-     * 从API响应中提取向量
+     * 记录一次限流：退避时长翻倍（优先采用 Retry-After），并设置所有批次共享的冷却期
      */
-    private List<float[]> extractVectorsFromResponse(String response) throws Exception {
-        JsonNode responseJson = jsonParser.readTree(response);
-        JsonNode dataArray = responseJson.get("data");
-        
-        if (dataArray == null || !dataArray.isArray()) {
-            throw new RuntimeException("API响应格式异常: 缺少data数组");
+    private Duration registerRateLimit(WebClientResponseException error) {
+        long backoff = rateLimitBackoffMillis.updateAndGet(current -> Math.min(
+            MAX_RATE_LIMIT_BACKOFF_MILLIS,
+            Math.max(MIN_RATE_LIMIT_BACKOFF_MILLIS, current * 2)
+        ));
+        long retryAfterMillis = parseRetryAfterMillis(error.getHeaders());
+        long delay = Math.max(backoff, retryAfterMillis) + ThreadLocalRandom.current().nextLong(backoff / 4 + 1);
+        cooldownUntil.accumulateAndGet(System.currentTimeMillis() + delay, Math::max);
+        log.warn("向量编码接口限流，{}ms 后重试", delay);
+        return Duration.ofMillis(delay);
+    }
+
+    private void relaxRateLimitBackoff() {
+        rateLimitBackoffMillis.updateAndGet(current -> current <= MIN_RATE_LIMIT_BACKOFF_MILLIS ? 0 : current / 2);
+    }
+
+    private long parseRetryAfterMillis(HttpHeaders headers) {
+        String retryAfter = headers == null ? null : headers.getFirst(HttpHeaders.RETRY_AFTER);
+        if (retryAfter == null) {
+            return 0;
         }
-        
-        List<float[]> vectors = new ArrayList<>();
-        
-        for (JsonNode item : dataArray) {
-            JsonNode embeddingNode = item.get("embedding");
-            if (embeddingNode != null && embeddingNode.isArray()) {
-                float[] vector = parseVector(embeddingNode);
-                vectors.add(vector);
-            }
+        try {
+            return Math.min(MAX_RATE_LIMIT_BACKOFF_MILLIS, Long.parseLong(retryAfter.trim()) * 1000);
+        } catch (NumberFormatException e) {
+            return 0;
         }
-        
-        return vectors;
     }
 
     /**
-     * 解析向量节点
+     * 从API响应中提取向量，解码后释放缓冲区
      */
-    private float[] parseVector(JsonNode embeddingNode) {
-        float[] vector = new float[embeddingNode.size()];
-        for (int i = 0; i < embeddingNode.size(); i++) {
-            vector[i] = (float) embeddingNode.get(i).asDouble();
+    private List<float[]> extractVectorsFromResponse(DataBuffer buffer, int expectedCount) {
+        try (InputStream input = buffer.asInputStream(true)) {
+            List<float[]> vectors = responseDecoder.decode(input, vectorDimension);
+            if (vectors.size() != expectedCount) {
+                log.warn("向量数量与输入不一致，输入: {}, 返回: {}", expectedCount, vectors.size());
+            }
+            return vectors;
+        } catch (Exception e) {
+            throw new IllegalStateException("向量响应解析失败", e);
         }
-        return vector;
     }
 }
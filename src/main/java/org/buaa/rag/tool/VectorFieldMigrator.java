@@ -0,0 +1,159 @@
+package org.buaa.rag.tool;
+
+import co.elastic.clients.elasticsearch.ElasticsearchClient;
+import co.elastic.clients.elasticsearch._types.Conflicts;
+import co.elastic.clients.elasticsearch._types.mapping.Property;
+import co.elastic.clients.elasticsearch.core.UpdateByQueryResponse;
+import co.elastic.clients.elasticsearch.indices.GetMappingResponse;
+import co.elastic.clients.elasticsearch.indices.get_mapping.IndexMappingRecord;
+import co.elastic.clients.json.JsonData;
+import org.buaa.rag.config.RagConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import java.io.StringReader;
+import java.util.Map;
+
+/**
+ * 派生向量字段迁移
+ *
+ * <p>为已有索引补充由浮点向量派生的粗召回字段（int8 量化向量 vectorQuantized、
+ * Matryoshka 前缀向量 vectorPrefix）：先追加字段映射，再以 update_by_query
+ * 异步回填缺失该字段的分块。回填完成后再开启对应的检索模式。
+ * 启动时校验索引中 vectorPrefix 的维度与 rag.matryoshka.prefix-dimension 一致，不一致时关闭前缀召回。
+ * 浮点向量字段的 HNSW 图需按 datasource/knowledge_int8.json 新建索引并 reindex 后才会释放。</p>
+ */
+@Component
+public class VectorFieldMigrator {
+
+    private static final Logger log = LoggerFactory.getLogger(VectorFieldMigrator.class);
+
+    private final ElasticsearchClient esClient;
+    private final RagConfiguration ragConfiguration;
+    private final VectorEncoding encodingService;
+    private final String indexName;
+
+    public VectorFieldMigrator(ElasticsearchClient esClient,
+                               RagConfiguration ragConfiguration,
+                               VectorEncoding encodingService,
+                               @Value("${elasticsearch.index:knowledge_base}") String indexName) {
+        this.esClient = esClient;
+        this.ragConfiguration = ragConfiguration;
+        this.encodingService = encodingService;
+        this.indexName = indexName;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void migrateOnStartup() {
+        if (ragConfiguration.getLucene().isEnabled()) {
+            return;
+        }
+        try {
+            boolean prefixConsistent = validatePrefixDimension();
+            if (ragConfiguration.getQuantization().isMigrateOnStartup()) {
+                migrateQuantized();
+            }
+            if (prefixConsistent && ragConfiguration.getMatryoshka().isMigrateOnStartup()) {
+                migratePrefix();
+            }
+        } catch (Exception e) {
+            log.error("向量字段迁移失败: {}", indexName, e);
+        }
+    }
+
+    /**
+     * 追加 int8 量化字段映射并提交回填任务
+     *
+     * @return 回填任务 ID
+     */
+    public String migrateQuantized() throws Exception {
+        String mapping = "{\"properties\":{\"vectorQuantized\":{"
+            + "\"type\":\"dense_vector\","
+            + "\"dims\":" + encodingService.getVectorDimension() + ","
+            + "\"element_type\":\"byte\","
+            + "\"index\":true,"
+            + "\"similarity\":\"cosine\"}}}";
+        return migrate("vectorQuantized", mapping, VectorQuantizer.INT8_BACKFILL_SCRIPT, Map.of());
+    }
+
+    /**
+     * 追加 Matryoshka 前缀字段映射并提交回填任务
+     *
+     * @return 回填任务 ID
+     */
+    public String migratePrefix() throws Exception {
+        int dims = ragConfiguration.getMatryoshka().getPrefixDimension();
+        String mapping = "{\"properties\":{\"vectorPrefix\":{"
+            + "\"type\":\"dense_vector\","
+            + "\"dims\":" + dims + ","
+            + "\"index\":true,"
+            + "\"similarity\":\"cosine\"}}}";
+        return migrate("vectorPrefix", mapping, MatryoshkaVectors.PREFIX_BACKFILL_SCRIPT,
+            Map.of("dims", JsonData.of(dims)));
+    }
+
+    /**
+     * 校验索引映射中的前缀字段维度
+     *
+     * @return 字段不存在或维度一致时返回 true；不一致时关闭前缀召回并返回 false
+     */
+    public boolean validatePrefixDimension() throws Exception {
+        RagConfiguration.Matryoshka config = ragConfiguration.getMatryoshka();
+        if (!config.isEnabled() && !config.isMigrateOnStartup()) {
+            return true;
+        }
+        Integer indexedDims = indexedDimension("vectorPrefix");
+        if (indexedDims == null || indexedDims == config.getPrefixDimension()) {
+            return true;
+        }
+        log.error("索引 {} 的 vectorPrefix 维度为 {}，与 rag.matryoshka.prefix-dimension={} 不一致，已关闭前缀召回，"
+                + "请调整配置或按新维度重建索引",
+            indexName, indexedDims, config.getPrefixDimension());
+        config.setEnabled(false);
+        return false;
+    }
+
+    private Integer indexedDimension(String field) throws Exception {
+        GetMappingResponse response = esClient.indices().getMapping(builder -> builder.index(indexName));
+        for (IndexMappingRecord record : response.result().values()) {
+            if (record.mappings() == null) {
+                continue;
+            }
+            Property property = record.mappings().properties().get(field);
+            if (property != null && property.isDenseVector()) {
+                return property.denseVector().dims();
+            }
+        }
+        return null;
+    }
+
+    private String migrate(String field,
+                           String mapping,
+                           String script,
+                           Map<String, JsonData> params) throws Exception {
+        esClient.indices().putMapping(builder -> builder
+            .index(indexName)
+            .withJson(new StringReader(mapping))
+        );
+
+        UpdateByQueryResponse response = esClient.updateByQuery(builder -> builder
+            .index(indexName)
+            .query(query -> query.bool(bool -> bool
+                .mustNot(mustNot -> mustNot.exists(exists -> exists.field(field)))
+            ))
+            .script(s -> s.inline(inline -> inline
+                .lang("painless")
+                .source(script)
+                .params(params)
+            ))
+            .conflicts(Conflicts.Proceed)
+            .waitForCompletion(false)
+        );
+        log.info("向量字段 {} 回填任务已提交: {}, 任务: {}", field, indexName, response.task());
+        return response.task();
+    }
+}
@@ -0,0 +1,60 @@
+package org.buaa.rag.tool;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 向量标量量化工具
+ * 按向量自身的最大绝对值缩放到 [-127, 127] 的 int8 区间；余弦相似度与缩放无关，量化后可直接用于 byte 向量字段
+ */
+public class VectorQuantizer {
+
+    private static final int INT8_MAX = 127;
+
+    /**
+     * 与 {@link #quantizeInt8(float[])} 一致的 painless 脚本，用于回填已有索引
+     */
+    public static final String INT8_BACKFILL_SCRIPT =
+            "def v = ctx._source.vectorEmbedding;"
+            + "if (v == null) { ctx.op = 'noop'; return; }"
+            + "double max = 0;"
+            + "for (def x : v) { max = Math.max(max, Math.abs((double) x)); }"
+            + "List q = new ArrayList();"
+            + "for (def x : v) { q.add(max == 0 ? 0 : (int) Math.round((double) x / max * 127)); }"
+            + "ctx._source.vectorQuantized = q;";
+
+    /**
+     * 量化文档向量
+     */
+    public static int[] quantizeInt8(float[] vector) {
+        float max = maxAbs(vector);
+        int[] quantized = new int[vector.length];
+        for (int i = 0; i < vector.length; i++) {
+            quantized[i] = max == 0 ? 0 : Math.round(vector[i] / max * INT8_MAX);
+        }
+        return quantized;
+    }
+
+    /**
+     * 量化查询向量（kNN 查询参数为浮点列表，取整数值）
+     */
+    public static List<Float> quantizeInt8(List<Float> vector) {
+        float max = 0;
+        for (Float value : vector) {
+            max = Math.max(max, Math.abs(value));
+        }
+        List<Float> quantized = new ArrayList<>(vector.size());
+        for (Float value : vector) {
+            quantized.add(max == 0 ? 0f : (float) Math.round(value / max * INT8_MAX));
+        }
+        return quantized;
+    }
+
+    private static float maxAbs(float[] vector) {
+        float max = 0;
+        for (float value : vector) {
+            max = Math.max(max, Math.abs(value));
+        }
+        return max;
+    }
+}